@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+
+/**
+ * Consumer calling functional callbacks, created once per registration so that the functional
+ * {@code basicConsume} overloads of {@link TracingChannel} are traced by a {@link TracingConsumer}
+ * like any other consumer. Per delivery it only allocates the {@link Delivery} the callback takes,
+ * as the client itself does.
+ */
+final class CallbackConsumer implements Consumer {
+
+  private final DeliverCallback deliverCallback;
+  private final CancelCallback cancelCallback;
+  private final ConsumerShutdownSignalCallback shutdownSignalCallback;
+
+  CallbackConsumer(DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) {
+    this.deliverCallback = deliverCallback;
+    this.cancelCallback = cancelCallback;
+    this.shutdownSignalCallback = shutdownSignalCallback;
+  }
+
+  @Override
+  public void handleConsumeOk(String consumerTag) {
+  }
+
+  @Override
+  public void handleCancelOk(String consumerTag) {
+  }
+
+  @Override
+  public void handleCancel(String consumerTag) throws IOException {
+    if (cancelCallback != null) {
+      cancelCallback.handle(consumerTag);
+    }
+  }
+
+  @Override
+  public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+    if (shutdownSignalCallback != null) {
+      shutdownSignalCallback.handleShutdownSignal(consumerTag, sig);
+    }
+  }
+
+  @Override
+  public void handleRecoverOk(String consumerTag) {
+  }
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body) throws IOException {
+    deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes only the latest message per key within a window, for streams of state updates where
+ * older values are worthless once a newer one exists. A message replaces the one pending for its
+ * key, and every window all pending messages are published, in the order their keys first became
+ * pending.
+ *
+ * <p>The send span of a published message is a child of the span that was active when it was
+ * published, follows from those active when the messages it replaced were published, at most
+ * {@link #MAX_REFERENCES} of the latest, and is tagged with the number of messages it replaced.
+ */
+public class CoalescingPublisher implements Closeable {
+
+  static final int MAX_REFERENCES = 16;
+
+  private final TracingChannel channel;
+  private final ScheduledExecutorService executor;
+  private final LongAdder publishedCount = new LongAdder();
+  private final LongAdder coalescedCount = new LongAdder();
+  private final LongAdder failedCount = new LongAdder();
+
+  // guarded by this
+  private Map<String, Pending> pending = new LinkedHashMap<>();
+  private boolean closed;
+
+  /**
+   * @param window how long a message waits at most for a newer one of its key
+   */
+  public CoalescingPublisher(TracingChannel channel, long window, TimeUnit unit) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("window must be positive: " + window);
+    }
+    this.channel = channel;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-coalescing-publisher"));
+    executor.scheduleWithFixedDelay(this::flushQuietly, window, window, unit);
+  }
+
+  /**
+   * Holds the message until the end of the window, replacing the one pending for the key. Keys
+   * are not scoped by exchange or routing key.
+   */
+  public void publish(String key, String exchange, String routingKey,
+      AMQP.BasicProperties props, byte[] body) {
+    SpanContext parent = channel.parentContext(props);
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Publisher is closed");
+      }
+      Pending replaced = pending.get(key);
+      Pending message = new Pending(exchange, routingKey, props, body, parent, replaced);
+      pending.put(key, message);
+    }
+  }
+
+  /**
+   * Publishes all pending messages now.
+   *
+   * @throws IOException the first publish that failed, after trying all
+   */
+  public void flush() throws IOException {
+    Map<String, Pending> messages;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      messages = pending;
+      pending = new LinkedHashMap<>();
+    }
+    IOException failure = null;
+    for (Pending message : messages.values()) {
+      Iterable<SpanContext> followsFrom = message.replacedContexts != null
+          ? message.replacedContexts : Collections.emptyList();
+      Span span = channel.buildSpan(message.exchange, message.parent, followsFrom);
+      if (message.replacedCount > 0) {
+        SpanDecorator.onCoalesce(span, message.replacedCount);
+      }
+      try {
+        channel.publish(span, message.exchange, message.routingKey, false, false, message.props,
+            message.body);
+        publishedCount.increment();
+        coalescedCount.add(message.replacedCount);
+      } catch (IOException | RuntimeException e) {
+        failedCount.increment();
+        if (failure == null) {
+          failure = e instanceof IOException ? (IOException) e
+              : new IOException("Failed to publish coalesced message", e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  public long getPublishedCount() {
+    return publishedCount.sum();
+  }
+
+  /**
+   * @return messages replaced by newer ones before they were published
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.sum();
+  }
+
+  /**
+   * @return messages whose publish failed, including in the background
+   */
+  public long getFailedCount() {
+    return failedCount.sum();
+  }
+
+  /**
+   * Publishes the pending messages and stops.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    executor.shutdownNow();
+    flush();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException e) {
+      // counted, the next window tries its own messages
+    }
+  }
+
+  private static final class Pending {
+
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+    final SpanContext parent;
+    final int replacedCount;
+    final Deque<SpanContext> replacedContexts;
+
+    Pending(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+        SpanContext parent, Pending replaced) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+      this.parent = parent;
+      if (replaced == null) {
+        this.replacedCount = 0;
+        this.replacedContexts = null;
+        return;
+      }
+      this.replacedCount = replaced.replacedCount + 1;
+      // the replaced message's list is not used anymore, take it over
+      Deque<SpanContext> contexts = replaced.replacedContexts != null
+          ? replaced.replacedContexts : new ArrayDeque<>();
+      if (replaced.parent != null) {
+        if (contexts.size() == MAX_REFERENCES) {
+          contexts.removeFirst();
+        }
+        contexts.addLast(replaced.parent);
+      }
+      this.replacedContexts = contexts;
+    }
+  }
+}
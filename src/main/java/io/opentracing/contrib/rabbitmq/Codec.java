@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.io.IOException;
+
+/**
+ * Serializes values of one type to message bodies and back, for the typed
+ * {@link TracingChannel#basicPublish(String, String, com.rabbitmq.client.AMQP.BasicProperties,
+ * Object, Codec)} and {@link TracingChannel#basicConsume(String, boolean, Codec, TypedConsumer)}.
+ * Implementations must be thread safe.
+ */
+public interface Codec<T> {
+
+  /**
+   * @return content type set on published messages that do not have one
+   */
+  String contentType();
+
+  /**
+   * @param buffer empty buffer of the calling thread, reused for the next publish
+   */
+  void encode(T value, CodecBuffer buffer) throws IOException;
+
+  T decode(byte[] body) throws IOException;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer a {@link Codec} encodes into. There is one per thread, so the only copy per
+ * publish is the final one into a body of the exact size, which the client needs.
+ */
+public final class CodecBuffer extends OutputStream {
+
+  /**
+   * Larger buffers are not kept for the next publish of the thread.
+   */
+  static final int MAX_RETAINED = 1 << 20;
+
+  private static final ThreadLocal<CodecBuffer> buffers = new ThreadLocal<>();
+
+  private byte[] bytes;
+  private int size;
+
+  CodecBuffer(int capacity) {
+    this.bytes = new byte[capacity];
+  }
+
+  /**
+   * @return the empty buffer of the calling thread
+   */
+  static CodecBuffer forThread() {
+    CodecBuffer buffer = buffers.get();
+    if (buffer == null) {
+      buffer = new CodecBuffer(1024);
+      buffers.set(buffer);
+    }
+    buffer.size = 0;
+    return buffer;
+  }
+
+  /**
+   * Drops the buffer of the calling thread if it grew too large to keep.
+   */
+  void release() {
+    if (bytes.length > MAX_RETAINED) {
+      buffers.remove();
+    }
+  }
+
+  @Override
+  public void write(int b) {
+    ensureCapacity(size + 1);
+    bytes[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    ensureCapacity(size + len);
+    System.arraycopy(b, off, bytes, size, len);
+    size += len;
+  }
+
+  /**
+   * Makes room for {@code capacity} bytes in total, for codecs that write to {@link #array()}
+   * directly.
+   */
+  public void ensureCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new OutOfMemoryError("Buffer too large");
+    }
+    if (capacity > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+    }
+  }
+
+  /**
+   * @return backing array, valid up to {@link #size()} and until the next write
+   */
+  public byte[] array() {
+    return bytes;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param size number of valid bytes after writing to {@link #array()} directly
+   */
+  public void setSize(int size) {
+    if (size < 0 || size > bytes.length) {
+      throw new IndexOutOfBoundsException("size: " + size);
+    }
+    this.size = size;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, size);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Something that happened to a connection, as recorded by its {@link RoundTripProbe} together with
+ * the round trip latency measured last before it.
+ */
+public final class ConnectionEvent {
+
+  public enum Type {
+    BLOCKED,
+    UNBLOCKED,
+    SHUTDOWN,
+    RECOVERED,
+    PROBE_FAILED,
+    SLOW_ROUND_TRIP
+  }
+
+  private final Type type;
+  private final long timestamp;
+  private final String detail;
+  private final long roundTripNanos;
+
+  ConnectionEvent(Type type, long timestamp, String detail, long roundTripNanos) {
+    this.type = type;
+    this.timestamp = timestamp;
+    this.detail = detail;
+    this.roundTripNanos = roundTripNanos;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return when it happened, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return reason given by the broker or cause, if any
+   */
+  public String getDetail() {
+    return detail;
+  }
+
+  /**
+   * @return round trip latency measured last before the event, or -1 if none was yet
+   */
+  public long getRoundTrip(TimeUnit unit) {
+    return roundTripNanos < 0 ? -1 : unit.convert(roundTripNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionEvent{type=" + type + ", timestamp=" + timestamp + ", detail='" + detail
+        + "', roundTripNanos=" + roundTripNanos + '}';
+  }
+}
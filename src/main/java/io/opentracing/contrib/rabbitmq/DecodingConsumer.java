@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import java.io.IOException;
+
+/**
+ * Decodes deliveries for a {@link TypedConsumer} and records the time it took on the receive
+ * span. A message whose content type differs from the codec's, or that the codec fails on, is
+ * rejected without requeue and handed to {@link TypedConsumer#handleDecodeFailure}, with the
+ * receive span tagged as an error; failing the delivery instead would close the channel.
+ */
+class DecodingConsumer<T> extends DefaultConsumer implements SpanAwareConsumer {
+
+  private final Codec<T> codec;
+  private final TypedConsumer<T> consumer;
+  private final boolean autoAck;
+
+  DecodingConsumer(TracingChannel channel, Codec<T> codec, TypedConsumer<T> consumer,
+      boolean autoAck) {
+    super(channel);
+    this.codec = codec;
+    this.consumer = consumer;
+    this.autoAck = autoAck;
+  }
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Span span) throws IOException {
+    String contentType = properties != null ? properties.getContentType() : null;
+    if (contentType != null && !contentType.equals(codec.contentType())) {
+      onDecodeFailure(consumerTag, envelope, properties, body, span,
+          new IOException("Cannot decode " + contentType + " as " + codec.contentType()));
+      return;
+    }
+    long start = System.nanoTime();
+    T message;
+    try {
+      message = codec.decode(body);
+    } catch (IOException | RuntimeException e) {
+      onDecodeFailure(consumerTag, envelope, properties, body, span, e);
+      return;
+    }
+    if (span != null) {
+      SpanDecorator.onDeserialize(span, System.nanoTime() - start);
+    }
+    consumer.handleMessage(consumerTag, envelope, properties, message, span);
+  }
+
+  private void onDecodeFailure(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Span span, Exception cause)
+      throws IOException {
+    if (span != null) {
+      SpanDecorator.onError(cause, span);
+    }
+    if (!autoAck) {
+      getChannel().basicReject(envelope.getDeliveryTag(), false);
+    }
+    consumer.handleDecodeFailure(consumerTag, envelope, properties, body, cause);
+  }
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body) throws IOException {
+    handleDelivery(consumerTag, envelope, properties, body, null);
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded set of recently processed message keys, used to skip redelivered duplicates.
+ *
+ * <p>Only a 64 bit fingerprint of each key is stored, in open addressing tables of primitive
+ * longs, so an entry costs 16 to 32 bytes. The set is split into segments, each holding two
+ * generations of entries. The current generation is retired once it is full or older than the
+ * time to live, dropping the generation before it. Entries therefore live between one and two
+ * times the time to live unless pushed out earlier by the size limit.
+ */
+public class DeduplicationCache {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param maxEntries max number of keys remembered
+   * @param ttl how long a key is remembered at least, unless evicted by the size limit
+   */
+  public DeduplicationCache(int maxEntries, long ttl, TimeUnit unit) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    int generationCapacity = Math.max(1, maxEntries / SEGMENTS / 2);
+    long generationNanos = unit.toNanos(ttl);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(generationCapacity, generationNanos);
+    }
+  }
+
+  public boolean contains(String key) {
+    return contains(fingerprint(key));
+  }
+
+  public void add(String key) {
+    add(fingerprint(key));
+  }
+
+  boolean contains(long fingerprint) {
+    boolean found = segment(fingerprint).contains(fingerprint, System.nanoTime());
+    if (found) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return found;
+  }
+
+  void add(long fingerprint) {
+    segment(fingerprint).add(fingerprint, System.nanoTime());
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public double getHitRate() {
+    long hits = getHitCount();
+    long total = hits + getMissCount();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  /**
+   * @return number of keys currently remembered
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return bytes used by the fingerprint tables
+   */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.memoryBytes();
+    }
+    return bytes;
+  }
+
+  static long fingerprint(String key) {
+    long hash = Hashing.hash(key);
+    // zero marks empty slots
+    return hash == 0L ? 1L : hash;
+  }
+
+  private Segment segment(long fingerprint) {
+    return segments[(int) (fingerprint >>> 60)];
+  }
+
+  private static final class Segment {
+
+    private final int capacity;
+    private final long generationNanos;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private int previousSize;
+    private long currentStarted = System.nanoTime();
+
+    Segment(int capacity, long generationNanos) {
+      this.capacity = capacity;
+      this.generationNanos = generationNanos;
+      int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+      this.current = new long[tableSize];
+      this.previous = new long[tableSize];
+    }
+
+    synchronized boolean contains(long fingerprint, long now) {
+      expire(now);
+      return find(current, fingerprint) || find(previous, fingerprint);
+    }
+
+    synchronized void add(long fingerprint, long now) {
+      expire(now);
+      if (find(current, fingerprint)) {
+        return;
+      }
+      if (currentSize >= capacity) {
+        retire(now);
+      }
+      long[] table = current;
+      int mask = table.length - 1;
+      int index = (int) fingerprint & mask;
+      while (table[index] != 0L) {
+        index = (index + 1) & mask;
+      }
+      table[index] = fingerprint;
+      currentSize++;
+    }
+
+    synchronized int size() {
+      return currentSize + previousSize;
+    }
+
+    long memoryBytes() {
+      return 2L * current.length * Long.BYTES;
+    }
+
+    private void expire(long now) {
+      long age = now - currentStarted;
+      if (age >= 2 * generationNanos) {
+        retire(now);
+        retire(now);
+      } else if (age >= generationNanos) {
+        retire(now);
+      }
+    }
+
+    private void retire(long now) {
+      long[] dropped = previous;
+      Arrays.fill(dropped, 0L);
+      previous = current;
+      previousSize = currentSize;
+      current = dropped;
+      currentSize = 0;
+      currentStarted = now;
+    }
+
+    private static boolean find(long[] table, long fingerprint) {
+      int mask = table.length - 1;
+      int index = (int) fingerprint & mask;
+      long value;
+      while ((value = table[index]) != 0L) {
+        if (value == fingerprint) {
+          return true;
+        }
+        index = (index + 1) & mask;
+      }
+      return false;
+    }
+  }
+}
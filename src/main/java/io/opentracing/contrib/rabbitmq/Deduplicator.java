@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Per-channel glue between deliveries and a shared {@link DeduplicationCache}. A key only enters
+ * the cache once its delivery is acked, so a message whose processing failed is not mistaken for a
+ * duplicate when it comes back.
+ */
+class Deduplicator {
+
+  private static final Consumer<Long> FORGET = fingerprint -> {
+  };
+
+  private final DeduplicationCache cache;
+  private final String keyHeader;
+  private final DeliveryTagMap<Long> unacked = new DeliveryTagMap<>();
+
+  Deduplicator(DeduplicationCache cache, String keyHeader) {
+    this.cache = cache;
+    this.keyHeader = keyHeader;
+  }
+
+  /**
+   * @return fingerprint of the message key, or 0 if the message has none
+   */
+  long fingerprint(AMQP.BasicProperties props) {
+    if (props == null) {
+      return 0L;
+    }
+    Object key;
+    if (keyHeader == null) {
+      key = props.getMessageId();
+    } else {
+      Map<String, Object> headers = props.getHeaders();
+      key = headers != null ? headers.get(keyHeader) : null;
+    }
+    return key != null ? DeduplicationCache.fingerprint(key.toString()) : 0L;
+  }
+
+  boolean isDuplicate(long fingerprint) {
+    return cache.contains(fingerprint);
+  }
+
+  void onDelivery(long deliveryTag, long fingerprint, boolean autoAck) {
+    if (autoAck) {
+      cache.add(fingerprint);
+    } else {
+      unacked.put(deliveryTag, fingerprint);
+    }
+  }
+
+  void onAck(long deliveryTag, boolean multiple) {
+    if (multiple) {
+      unacked.removeUpTo(deliveryTag, cache::add);
+    } else {
+      unacked.remove(deliveryTag, cache::add);
+    }
+  }
+
+  void onNack(long deliveryTag, boolean multiple) {
+    if (multiple) {
+      unacked.removeUpTo(deliveryTag, FORGET);
+    } else {
+      unacked.remove(deliveryTag, FORGET);
+    }
+  }
+
+  void clear() {
+    unacked.clear(FORGET);
+  }
+}
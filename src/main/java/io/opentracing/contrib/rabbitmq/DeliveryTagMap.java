@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free map keyed by delivery tag. Tags of a channel increase by one with every delivery, so
+ * the in-flight ones mostly fit a ring indexed by the low bits of the tag, without boxing the key.
+ * A tag whose slot is still taken by an older delivery goes to an overflow map instead.
+ */
+class DeliveryTagMap<V> {
+
+  static final int DEFAULT_CAPACITY = 1024;
+
+  private final AtomicReferenceArray<Entry<V>> ring;
+  private final int mask;
+  private final ConcurrentNavigableMap<Long, Entry<V>> overflow = new ConcurrentSkipListMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  /**
+   * No tag below this one is in the map.
+   */
+  private final AtomicLong floor = new AtomicLong(1);
+
+  DeliveryTagMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  DeliveryTagMap(int capacity) {
+    int ringSize = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.ring = new AtomicReferenceArray<>(ringSize);
+    this.mask = ringSize - 1;
+  }
+
+  /**
+   * @param value may be null
+   */
+  void put(long tag, V value) {
+    Entry<V> entry = new Entry<>(tag, value);
+    size.incrementAndGet();
+    if (!ring.compareAndSet(index(tag), null, entry)) {
+      overflow.put(tag, entry);
+    }
+  }
+
+  /**
+   * @return value of the tag, or null if the tag is not in the map
+   */
+  V get(long tag) {
+    Entry<V> entry = ring.get(index(tag));
+    if (entry == null || entry.tag != tag) {
+      entry = overflow.get(tag);
+    }
+    return entry != null ? entry.value : null;
+  }
+
+  /**
+   * @return whether the tag was in the map, in which case its value was passed to the action
+   */
+  boolean remove(long tag, Consumer<? super V> action) {
+    int index = index(tag);
+    Entry<V> entry = ring.get(index);
+    if (entry == null || entry.tag != tag || !ring.compareAndSet(index, entry, null)) {
+      entry = overflow.remove(tag);
+      if (entry == null) {
+        return false;
+      }
+    }
+    size.decrementAndGet();
+    action.accept(entry.value);
+    return true;
+  }
+
+  /**
+   * Removes all tags up to and including the given one, as a multiple ack does. Tag 0 stands for
+   * all of them.
+   */
+  void removeUpTo(long tag, Consumer<? super V> action) {
+    if (tag == 0) {
+      clear(action);
+      return;
+    }
+    long from = floor.get();
+    if (tag - from + 1 >= ring.length()) {
+      for (int i = 0; i < ring.length(); i++) {
+        removeSlot(i, tag, action);
+      }
+    } else {
+      for (long t = from; t <= tag; t++) {
+        removeSlot(index(t), tag, action);
+      }
+    }
+    drain(overflow.headMap(tag, true), action);
+    long current;
+    while ((current = floor.get()) <= tag && !floor.compareAndSet(current, tag + 1)) {
+      // retry
+    }
+  }
+
+  /**
+   * Removes all tags. Tags start again from 1 afterwards, as they do on a recovered channel.
+   */
+  void clear(Consumer<? super V> action) {
+    for (int i = 0; i < ring.length(); i++) {
+      removeSlot(i, Long.MAX_VALUE, action);
+    }
+    drain(overflow, action);
+    floor.set(1);
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  private void removeSlot(int index, long maxTag, Consumer<? super V> action) {
+    Entry<V> entry = ring.get(index);
+    if (entry != null && entry.tag <= maxTag && ring.compareAndSet(index, entry, null)) {
+      size.decrementAndGet();
+      action.accept(entry.value);
+    }
+  }
+
+  private void drain(ConcurrentNavigableMap<Long, Entry<V>> entries, Consumer<? super V> action) {
+    Map.Entry<Long, Entry<V>> entry;
+    while ((entry = entries.pollFirstEntry()) != null) {
+      size.decrementAndGet();
+      action.accept(entry.getValue().value);
+    }
+  }
+
+  private int index(long tag) {
+    return (int) tag & mask;
+  }
+
+  private static final class Entry<V> {
+
+    final long tag;
+    final V value;
+
+    Entry(long tag, V value) {
+      this.tag = tag;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Consumers of one queue, each on a channel of its own, whose number follows the load.
+ *
+ * <p>Every interval the group sizes itself by Little's law: the consumers needed to keep up are
+ * the arrival rate times the time a consumer takes per delivery, plus those needed to work off the
+ * backlog within the target drain time. The rate and backlog come from the connection's
+ * {@link QueueSampler}, the time per delivery is measured around the traced consumer. The group
+ * grows right away, but only shrinks by one consumer after the load stayed lower for a number of
+ * intervals, so it does not flap around the threshold.
+ */
+public class ElasticConsumerGroup implements Closeable {
+
+  /**
+   * Spare capacity on top of what the arrival rate needs.
+   */
+  static final double HEADROOM = 1.2;
+
+  private final TracingConnection connection;
+  private final String queue;
+  private final Function<Channel, Consumer> consumerFactory;
+  private final int minConsumers;
+  private final int maxConsumers;
+  private final Deque<Member> members = new ArrayDeque<>();
+  private final LongAdder handledCount = new LongAdder();
+  private final LongAdder handlerNanos = new LongAdder();
+
+  private volatile int prefetch = 1;
+  private volatile long targetDrainNanos = TimeUnit.MINUTES.toNanos(1);
+  private volatile int scaleDownIntervals = 3;
+
+  // only touched by the scaling task, or before it is started
+  private QueueSampler sampler;
+  private ScheduledFuture<?> task;
+  private long lastHandledCount;
+  private long lastHandlerNanos;
+  private volatile double handlerSeconds = Double.NaN;
+  private int lowIntervals;
+  private volatile boolean closed;
+
+  /**
+   * @param consumerFactory creates the consumer of each new channel
+   */
+  public ElasticConsumerGroup(TracingConnection connection, String queue,
+      Function<Channel, Consumer> consumerFactory, int minConsumers, int maxConsumers) {
+    if (minConsumers < 0 || maxConsumers < Math.max(1, minConsumers)) {
+      throw new IllegalArgumentException(
+          "Invalid consumer bounds: " + minConsumers + ".." + maxConsumers);
+    }
+    this.connection = connection;
+    this.queue = queue;
+    this.consumerFactory = consumerFactory;
+    this.minConsumers = minConsumers;
+    this.maxConsumers = maxConsumers;
+  }
+
+  /**
+   * @param prefetch unacked deliveries per consumer, 1 by default
+   */
+  public void setPrefetch(int prefetch) {
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * @param drainTime how fast a backlog should be worked off, one minute by default
+   */
+  public void setTargetDrainTime(long drainTime, TimeUnit unit) {
+    this.targetDrainNanos = unit.toNanos(drainTime);
+  }
+
+  /**
+   * @param intervals how many intervals the load has to stay lower before a consumer is removed,
+   * 3 by default
+   */
+  public void setScaleDownIntervals(int intervals) {
+    this.scaleDownIntervals = intervals;
+  }
+
+  /**
+   * Starts the minimum number of consumers and resizes the group every interval. The queue is
+   * sampled at the same interval, unless the connection already samples queues.
+   */
+  public synchronized void start(long interval, TimeUnit unit) {
+    if (task != null) {
+      throw new IllegalStateException("Consumer group is already started");
+    }
+    sampler = connection.queueSampler(interval, unit);
+    sampler.register(queue);
+    resize(minConsumers);
+    task = connection.executor().scheduleWithFixedDelay(this::scale, interval, interval, unit);
+  }
+
+  public synchronized int getConsumerCount() {
+    return members.size();
+  }
+
+  /**
+   * @return average time a consumer took per delivery in the last interval with deliveries, or -1
+   * if there were none yet
+   */
+  public long getHandlerTime(TimeUnit unit) {
+    double seconds = handlerSeconds;
+    if (Double.isNaN(seconds)) {
+      return -1;
+    }
+    return unit.convert((long) (seconds * 1e9), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (task != null) {
+      task.cancel(false);
+    }
+    if (sampler != null) {
+      sampler.unregister(queue);
+    }
+    while (!members.isEmpty()) {
+      members.pollLast().stop();
+    }
+  }
+
+  private synchronized void scale() {
+    if (closed) {
+      return;
+    }
+    // replace consumers whose channel was closed under them
+    for (Iterator<Member> iterator = members.iterator(); iterator.hasNext(); ) {
+      if (!iterator.next().channel.isOpen()) {
+        iterator.remove();
+      }
+    }
+
+    long handled = handledCount.sum();
+    long nanos = handlerNanos.sum();
+    if (handled > lastHandledCount) {
+      handlerSeconds = (nanos - lastHandlerNanos) / 1e9 / (handled - lastHandledCount);
+    }
+    lastHandledCount = handled;
+    lastHandlerNanos = nanos;
+
+    int current = members.size();
+    int desired = current;
+    QueueStats stats = sampler.getStats(queue);
+    if (stats != null) {
+      desired = desiredConsumers(stats.getIngressRate(), handlerSeconds, stats.getMessageCount(),
+          targetDrainNanos / 1e9, current);
+    }
+    desired = Math.max(minConsumers, Math.min(maxConsumers, desired));
+
+    if (desired > current) {
+      lowIntervals = 0;
+      resize(desired);
+    } else if (desired < current) {
+      if (++lowIntervals >= scaleDownIntervals) {
+        lowIntervals = 0;
+        resize(current - 1);
+      }
+    } else {
+      lowIntervals = 0;
+    }
+  }
+
+  /**
+   * @param handlerSeconds time per delivery, NaN if unknown
+   * @return consumers needed, before applying the bounds
+   */
+  static int desiredConsumers(double arrivalRate, double handlerSeconds, long backlog,
+      double drainSeconds, int current) {
+    if (Double.isNaN(handlerSeconds)) {
+      // nothing measured yet, probe with one more consumer while messages are waiting
+      return backlog > 0 ? current + 1 : current;
+    }
+    double busy = arrivalRate * handlerSeconds * HEADROOM;
+    double draining = backlog * handlerSeconds / drainSeconds;
+    return (int) Math.ceil(busy + draining);
+  }
+
+  private void resize(int size) {
+    while (members.size() > size) {
+      members.pollLast().stop();
+    }
+    while (members.size() < size) {
+      try {
+        members.addLast(new Member());
+      } catch (IOException | ShutdownSignalException e) {
+        // try again next interval
+        return;
+      }
+    }
+  }
+
+  private final class Member implements TracingConsumer.Listener {
+
+    private final TracingChannel channel;
+    private final String consumerTag;
+
+    Member() throws IOException {
+      channel = (TracingChannel) connection.createChannel();
+      if (channel == null) {
+        throw new IOException("No channel available for consumer of " + queue);
+      }
+      try {
+        channel.basicQos(prefetch);
+        Consumer consumer = consumerFactory.apply(channel);
+        consumerTag = channel.basicConsume(queue, false, consumer, this);
+      } catch (IOException | RuntimeException e) {
+        channel.abort();
+        throw e;
+      }
+    }
+
+    /**
+     * Cancels the consumer first; the channel is closed once the deliveries it already got are
+     * handled, so they can still be acked.
+     */
+    void stop() {
+      try {
+        channel.basicCancel(consumerTag);
+      } catch (IOException | ShutdownSignalException e) {
+        abort();
+      }
+    }
+
+    @Override
+    public void onHandled(long nanos) {
+      handledCount.increment();
+      handlerNanos.add(nanos);
+    }
+
+    @Override
+    public void onCancelOk() {
+      // not on the channel's own dispatch thread
+      try {
+        connection.executor().execute(this::abort);
+      } catch (RejectedExecutionException e) {
+        // the connection is closing
+      }
+    }
+
+    void abort() {
+      try {
+        channel.abort();
+      } catch (IOException ignore) {
+        // closing anyway
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+
+/**
+ * Flight Recorder events for publishes, deliveries, gets, acks and confirms. There is no Flight
+ * Recorder API on Java 8, so this class does nothing; on Java 11 and later the multi-release jar
+ * replaces it with the one in {@code src/main/java11}, which emits JFR events.
+ *
+ * <p>An event is begun before and committed after the operation. Begin methods return null while
+ * the event is disabled, which commit methods ignore.
+ */
+final class FlightRecorderEvents {
+
+  private FlightRecorderEvents() {
+  }
+
+  /**
+   * @return whether events can be recorded at all on this JVM
+   */
+  static boolean isAvailable() {
+    return false;
+  }
+
+  static Object beginPublish() {
+    return null;
+  }
+
+  static void commitPublish(Object event, String exchange, String routingKey, byte[] body,
+      Tracer tracer, Span span) {
+  }
+
+  static Object beginDelivery() {
+    return null;
+  }
+
+  static void commitDelivery(Object event, String queue, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Tracer tracer) {
+  }
+
+  static Object beginGet() {
+    return null;
+  }
+
+  static void commitGet(Object event, String queue, GetResponse response, Tracer tracer) {
+  }
+
+  /**
+   * @param method "ack", "nack" or "reject"
+   */
+  static void settle(String method, long deliveryTag, boolean multiple) {
+  }
+
+  static void confirm(long deliveryTag, boolean multiple, boolean ack) {
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import io.opentracing.Span;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flags consumers that take longer than a threshold for a delivery, set on channels with
+ * {@link TracingChannel#setHandlerWatchdog(HandlerWatchdog)} and possibly shared by several of
+ * them. A stuck consumer holds up all deliveries of its channel's prefetch window.
+ *
+ * <p>Deliveries in flight sit in a fixed array of slots, claimed and released with a compare and
+ * set, each slot pointing to a record reused by the consumer thread, so watching allocates
+ * nothing per delivery. A background thread scans the slots at a quarter of the threshold. A
+ * delivery found over the threshold is counted, its consumer thread's stack is sampled, and its
+ * span is tagged with {@code rabbitmq.slow_handler} and logs the stack. Deliveries beyond the
+ * capacity are not watched.
+ */
+public class HandlerWatchdog implements Closeable {
+
+  static final int MAX_STACK_DEPTH = 32;
+
+  private final long thresholdNanos;
+  private final AtomicReferenceArray<Watch> slots;
+  private final ThreadLocal<Watch> watches = ThreadLocal.withInitial(Watch::new);
+  private final LongAdder slowCount = new LongAdder();
+  private final LongAdder unwatchedCount = new LongAdder();
+  private final ScheduledExecutorService executor;
+  private volatile StackTraceElement[] lastStackTrace;
+
+  public HandlerWatchdog(long threshold, TimeUnit unit) {
+    this(threshold, unit, 256);
+  }
+
+  /**
+   * @param capacity how many deliveries in flight can be watched at once
+   */
+  public HandlerWatchdog(long threshold, TimeUnit unit, int capacity) {
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("threshold must be positive: " + threshold);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.thresholdNanos = unit.toNanos(threshold);
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-handler-watchdog"));
+    long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), thresholdNanos / 4);
+    executor.scheduleWithFixedDelay(this::scan, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return deliveries flagged as slow so far
+   */
+  public long getSlowCount() {
+    return slowCount.sum();
+  }
+
+  /**
+   * @return deliveries not watched because all slots were taken
+   */
+  public long getUnwatchedCount() {
+    return unwatchedCount.sum();
+  }
+
+  public int getInFlightCount() {
+    int count = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return stack of the consumer thread flagged last, or null if none was yet
+   */
+  public StackTraceElement[] getLastStackTrace() {
+    return lastStackTrace;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Starts watching a delivery on the current thread.
+   *
+   * @return the record to update with the span and to pass to {@link #exit(Watch)}, or null if the
+   * delivery is not watched
+   */
+  Watch enter() {
+    Watch watch = watches.get();
+    if (watch.slot >= 0) {
+      // nested in a delivery already watched on this thread
+      return null;
+    }
+    watch.span = null;
+    watch.startNanos = System.nanoTime();
+    int length = slots.length();
+    int first = (int) ((watch.thread.getId() * 0x9E3779B97F4A7C15L) >>> 33) % length;
+    for (int i = 0; i < length; i++) {
+      int slot = (first + i) % length;
+      if (slots.get(slot) == null && slots.compareAndSet(slot, null, watch)) {
+        watch.slot = slot;
+        return watch;
+      }
+    }
+    unwatchedCount.increment();
+    return null;
+  }
+
+  void exit(Watch watch) {
+    slots.compareAndSet(watch.slot, watch, null);
+    watch.span = null;
+    watch.slot = -1;
+  }
+
+  private void scan() {
+    long now = System.nanoTime();
+    for (int slot = 0; slot < slots.length(); slot++) {
+      Watch watch = slots.get(slot);
+      if (watch == null) {
+        continue;
+      }
+      long start = watch.startNanos;
+      if (watch.flaggedStartNanos != start && now - start > thresholdNanos) {
+        flag(watch, slot, start, now - start);
+      }
+    }
+  }
+
+  private void flag(Watch watch, int slot, long start, long elapsedNanos) {
+    StackTraceElement[] stack = watch.thread.getStackTrace();
+    Span span = watch.span;
+    if (slots.get(slot) != watch || watch.startNanos != start) {
+      // returned meanwhile
+      return;
+    }
+    watch.flaggedStartNanos = start;
+    if (stack.length > MAX_STACK_DEPTH) {
+      stack = Arrays.copyOf(stack, MAX_STACK_DEPTH);
+    }
+    lastStackTrace = stack;
+    if (span != null) {
+      try {
+        SpanDecorator.onSlowHandler(span, elapsedNanos, stack);
+      } catch (RuntimeException e) {
+        // finished meanwhile
+      }
+    }
+    // last, so that whoever sees the count also sees the stack trace and the tagged span
+    slowCount.increment();
+  }
+
+  /**
+   * Delivery in flight on a consumer thread, reused for the thread's next one.
+   */
+  static final class Watch {
+
+    final Thread thread = Thread.currentThread();
+    volatile long startNanos;
+    volatile long flaggedStartNanos;
+    volatile Span span;
+    volatile int slot = -1;
+
+    void setSpan(Span span) {
+      this.span = span;
+    }
+  }
+}
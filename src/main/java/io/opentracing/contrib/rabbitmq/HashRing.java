@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable consistent hash ring. Every member owns a number of points on the ring and a key
+ * belongs to the member owning the first point at or after the hash of the key. Adding a member
+ * only moves the keys that fall on its new points, about one in the new number of members.
+ */
+final class HashRing<T> {
+
+  private final int pointsPerMember;
+  private final Map<String, T> members;
+  private final long[] points;
+  private final String[] owners;
+
+  HashRing(int pointsPerMember) {
+    this(pointsPerMember, Collections.emptyMap());
+  }
+
+  private HashRing(int pointsPerMember, Map<String, T> members) {
+    if (pointsPerMember <= 0) {
+      throw new IllegalArgumentException("pointsPerMember must be positive: " + pointsPerMember);
+    }
+    this.pointsPerMember = pointsPerMember;
+    this.members = members;
+    int size = members.size() * pointsPerMember;
+    long[] hashes = new long[size];
+    String[] names = new String[size];
+    int index = 0;
+    for (String name : members.keySet()) {
+      for (int i = 0; i < pointsPerMember; i++) {
+        hashes[index] = Hashing.hash(name + '#' + i);
+        names[index++] = name;
+      }
+    }
+    // sort points and owners together
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+    this.points = new long[size];
+    this.owners = new String[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = hashes[order[i]];
+      owners[i] = names[order[i]];
+    }
+  }
+
+  HashRing<T> with(String name, T member) {
+    Map<String, T> copy = new LinkedHashMap<>(members);
+    copy.put(name, member);
+    return new HashRing<>(pointsPerMember, copy);
+  }
+
+  HashRing<T> without(String name) {
+    Map<String, T> copy = new LinkedHashMap<>(members);
+    copy.remove(name);
+    return new HashRing<>(pointsPerMember, copy);
+  }
+
+  /**
+   * @return name of the member the key belongs to, or null if the ring is empty
+   */
+  String owner(String key) {
+    if (points.length == 0) {
+      return null;
+    }
+    int index = Arrays.binarySearch(points, Hashing.hash(key));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return owners[index == points.length ? 0 : index];
+  }
+
+  T member(String name) {
+    return members.get(name);
+  }
+
+  List<String> names() {
+    return new ArrayList<>(members.keySet());
+  }
+
+  boolean contains(String name) {
+    return members.containsKey(name);
+  }
+}
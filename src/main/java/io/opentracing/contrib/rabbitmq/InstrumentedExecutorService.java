@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps the executor consumers are dispatched on, see
+ * {@link TracingConnectionFactory#setSharedExecutor(ExecutorService)}, and measures how long tasks
+ * wait for a thread and how long they run, along with the number of tasks queued and running.
+ *
+ * <p>The client runs the deliveries of a channel in tasks of several deliveries each. The "receive"
+ * span of the first delivery of a task is tagged with {@code rabbitmq.queue_wait_us}, the time
+ * the task waited for a thread, the later ones with 0 as they found the thread already running.
+ * A growing queue wait with few deliveries queued at the broker means the client is short of
+ * threads; a short one means consumers are waiting for the broker.
+ */
+public class InstrumentedExecutorService extends AbstractExecutorService {
+
+  /**
+   * Queue wait of the task running on the thread not yet tagged on a span, -1 if none.
+   */
+  private static final ThreadLocal<long[]> QUEUE_WAIT = new ThreadLocal<>();
+
+  private final ExecutorService executor;
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+  private final LatencyHistogram runTime = new LatencyHistogram();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final LongAdder completed = new LongAdder();
+
+  public InstrumentedExecutorService(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * @return time tasks waited for a thread
+   */
+  public LatencyHistogram getQueueWait() {
+    return queueWait;
+  }
+
+  /**
+   * @return time tasks ran
+   */
+  public LatencyHistogram getRunTime() {
+    return runTime;
+  }
+
+  /**
+   * @return number of tasks waiting for a thread
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * @return number of threads running a task
+   */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  public long getCompletedCount() {
+    return completed.sum();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    queued.incrementAndGet();
+    try {
+      executor.execute(new InstrumentedTask(command));
+    } catch (RejectedExecutionException e) {
+      queued.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * @return how long the task running on this thread waited for it, once, then 0; or -1 if the
+   * thread is not running a task of an instrumented executor
+   */
+  static long takeQueueWait() {
+    long[] holder = QUEUE_WAIT.get();
+    if (holder == null) {
+      return -1;
+    }
+    long nanos = holder[0];
+    if (nanos > 0) {
+      holder[0] = 0;
+    }
+    return nanos;
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * @return the tasks that never ran, as submitted
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> pending = executor.shutdownNow();
+    List<Runnable> tasks = new ArrayList<>(pending.size());
+    for (Runnable runnable : pending) {
+      if (runnable instanceof InstrumentedTask) {
+        queued.decrementAndGet();
+        tasks.add(((InstrumentedTask) runnable).task);
+      } else {
+        tasks.add(runnable);
+      }
+    }
+    return tasks;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return executor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return executor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  private final class InstrumentedTask implements Runnable {
+
+    final Runnable task;
+    final long submittedAt = System.nanoTime();
+
+    InstrumentedTask(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      long start = System.nanoTime();
+      queued.decrementAndGet();
+      active.incrementAndGet();
+      long wait = start - submittedAt;
+      queueWait.record(wait, TimeUnit.NANOSECONDS);
+      long[] holder = QUEUE_WAIT.get();
+      if (holder == null) {
+        holder = new long[1];
+        QUEUE_WAIT.set(holder);
+      }
+      holder[0] = wait;
+      try {
+        task.run();
+      } finally {
+        holder[0] = -1;
+        active.decrementAndGet();
+        completed.increment();
+        runTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+}
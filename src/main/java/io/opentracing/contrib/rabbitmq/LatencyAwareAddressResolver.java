@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the broker node for new connections of a {@link TracingConnectionFactory} by measured
+ * latency. Every interval each node is probed: a TCP connect, then the AMQP protocol header is
+ * sent and the time to the broker's first reply byte is taken as round trip. The probe connection
+ * is closed right after, which brokers may log.
+ *
+ * <p>Among healthy nodes whose latency is within the tolerance of the fastest, the one with the
+ * fewest connections from this resolver's factory is picked, so a service spreads over equally
+ * fast nodes. A node is ejected for the ejection time after a number of failed probes or connects
+ * in a row, and only comes back with a successful probe.
+ *
+ * <p>{@link #getAddresses()} returns the picked node only, as the client shuffles the addresses
+ * when automatic recovery is on. Before the first probe, or when no node is healthy, all nodes are
+ * returned.
+ */
+public class LatencyAwareAddressResolver implements AddressResolver, Closeable {
+
+  private static final byte[] PROTOCOL_HEADER = {'A', 'M', 'Q', 'P', 0, 0, 9, 1};
+
+  /**
+   * Weight of the latest probe in the moving averages.
+   */
+  static final double ALPHA = 0.3;
+
+  private final List<Node> nodes = new ArrayList<>();
+  private final Map<Connection, Node> connections = new ConcurrentHashMap<>();
+  private final AtomicInteger nextPick = new AtomicInteger();
+  private final ThreadLocal<Node> lastPicked = new ThreadLocal<>();
+  private volatile long probeTimeoutNanos = TimeUnit.SECONDS.toNanos(2);
+  private volatile int maxFailures = 2;
+  private volatile long ejectionNanos = TimeUnit.SECONDS.toNanos(30);
+  private volatile double tolerance = 1.5;
+  private ScheduledExecutorService executor;
+
+  public LatencyAwareAddressResolver(List<Address> addresses) {
+    if (addresses.isEmpty()) {
+      throw new IllegalArgumentException("No addresses");
+    }
+    for (Address address : addresses) {
+      nodes.add(new Node(address));
+    }
+  }
+
+  /**
+   * @param timeout how long a probe may take before it counts as failed, 2 seconds by default
+   */
+  public void setProbeTimeout(long timeout, TimeUnit unit) {
+    this.probeTimeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * @param maxFailures failures in a row that eject a node, 2 by default
+   * @param ejectionTime how long an ejected node is not picked, 30 seconds by default
+   */
+  public void setEjection(int maxFailures, long ejectionTime, TimeUnit unit) {
+    this.maxFailures = maxFailures;
+    this.ejectionNanos = unit.toNanos(ejectionTime);
+  }
+
+  /**
+   * @param tolerance factor over the fastest node's latency within which nodes count as equally
+   * fast, 1.5 by default
+   */
+  public void setTolerance(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Probes all nodes now and then every interval, on a thread of the resolver.
+   */
+  public synchronized void start(long interval, TimeUnit unit) {
+    if (executor != null) {
+      throw new IllegalStateException("Resolver is already started");
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-node-probe"));
+    executor.scheduleWithFixedDelay(this::probeAll, 0L, interval, unit);
+  }
+
+  /**
+   * Probes all nodes once, in the calling thread.
+   */
+  public void probeAll() {
+    for (Node node : nodes) {
+      probe(node);
+    }
+  }
+
+  @Override
+  public List<Address> getAddresses() {
+    Node picked = pick();
+    lastPicked.set(picked);
+    if (picked == null) {
+      List<Address> addresses = new ArrayList<>(nodes.size());
+      for (Node node : nodes) {
+        addresses.add(node.address);
+      }
+      return addresses;
+    }
+    return Collections.singletonList(picked.address);
+  }
+
+  public List<NodeStats> getNodeStats() {
+    List<NodeStats> stats = new ArrayList<>(nodes.size());
+    long now = System.nanoTime();
+    for (Node node : nodes) {
+      stats.add(node.stats(now));
+    }
+    return stats;
+  }
+
+  public int getHealthyCount() {
+    int healthy = 0;
+    long now = System.nanoTime();
+    for (Node node : nodes) {
+      if (node.isHealthy(now)) {
+        healthy++;
+      }
+    }
+    return healthy;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return healthy node with a latency, or null if there is none
+   */
+  Node pick() {
+    long now = System.nanoTime();
+    long fastest = Long.MAX_VALUE;
+    for (Node node : nodes) {
+      if (node.isHealthy(now) && node.latencyNanos() >= 0) {
+        fastest = Math.min(fastest, node.latencyNanos());
+      }
+    }
+    if (fastest == Long.MAX_VALUE) {
+      return null;
+    }
+    double limit = fastest * tolerance;
+    List<Node> candidates = new ArrayList<>();
+    int fewest = Integer.MAX_VALUE;
+    for (Node node : nodes) {
+      if (!node.isHealthy(now) || node.latencyNanos() < 0 || node.latencyNanos() > limit) {
+        continue;
+      }
+      int count = node.connections.get();
+      if (count < fewest) {
+        candidates.clear();
+        fewest = count;
+      }
+      if (count == fewest) {
+        candidates.add(node);
+      }
+    }
+    // take turns among ties, connections made at once would all go to the first one otherwise
+    return candidates.get((nextPick.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+  }
+
+  /**
+   * Counts the connection against its node, until it closes or recovers to another node.
+   *
+   * @return stats of the node the connection went to, or null if it is none of the resolver's
+   */
+  NodeStats onConnected(Connection connection) {
+    lastPicked.remove();
+    Node node = assign(connection);
+    connection.addShutdownListener(cause -> unassign(connection));
+    if (connection instanceof Recoverable) {
+      ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          assign(connection);
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+        }
+      });
+    }
+    return node != null ? node.stats(System.nanoTime()) : null;
+  }
+
+  /**
+   * A failed connect counts like a failed probe of the node picked for it in this thread.
+   */
+  void onConnectFailed(Exception cause) {
+    Node node = lastPicked.get();
+    lastPicked.remove();
+    if (node != null) {
+      node.onFailure(cause, System.nanoTime());
+    }
+  }
+
+  private Node assign(Connection connection) {
+    Node node = find(connection.getAddress(), connection.getPort());
+    Node previous = node != null ? connections.put(connection, node)
+        : connections.remove(connection);
+    if (previous != null) {
+      previous.connections.decrementAndGet();
+    }
+    if (node != null) {
+      node.connections.incrementAndGet();
+    }
+    return node;
+  }
+
+  private void unassign(Connection connection) {
+    Node node = connections.remove(connection);
+    if (node != null) {
+      node.connections.decrementAndGet();
+    }
+  }
+
+  private Node find(InetAddress address, int port) {
+    for (Node node : nodes) {
+      InetAddress resolved = node.resolved;
+      if (node.port() == port && address != null && address.equals(resolved)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  private void probe(Node node) {
+    int timeoutMillis = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(probeTimeoutNanos));
+    long start = System.nanoTime();
+    try (Socket socket = new Socket()) {
+      InetSocketAddress target = new InetSocketAddress(node.address.getHost(), node.port());
+      node.resolved = target.getAddress();
+      socket.connect(target, timeoutMillis);
+      long connected = System.nanoTime();
+      socket.setSoTimeout(timeoutMillis);
+      socket.setTcpNoDelay(true);
+      socket.getOutputStream().write(PROTOCOL_HEADER);
+      InputStream in = socket.getInputStream();
+      if (in.read() < 0) {
+        throw new IOException("Connection closed by " + node.address);
+      }
+      long answered = System.nanoTime();
+      node.onSuccess(connected - start, answered - connected);
+    } catch (IOException | RuntimeException e) {
+      node.onFailure(e, System.nanoTime());
+    }
+  }
+
+  final class Node {
+
+    final Address address;
+    final AtomicInteger connections = new AtomicInteger();
+    volatile InetAddress resolved;
+    private long connectNanos = -1;
+    private long roundTripNanos = -1;
+    private int consecutiveFailures;
+    private long ejectedUntil;
+    private boolean ejected;
+    private String lastError;
+
+    Node(Address address) {
+      this.address = address;
+    }
+
+    int port() {
+      return address.getPort() > 0 ? address.getPort() : ConnectionFactory.DEFAULT_AMQP_PORT;
+    }
+
+    synchronized long latencyNanos() {
+      return connectNanos < 0 ? -1 : connectNanos + roundTripNanos;
+    }
+
+    synchronized boolean isHealthy(long now) {
+      return !ejected || (consecutiveFailures == 0 && now - ejectedUntil >= 0);
+    }
+
+    synchronized void onSuccess(long connect, long roundTrip) {
+      connectNanos = connectNanos < 0 ? connect
+          : (long) (ALPHA * connect + (1 - ALPHA) * connectNanos);
+      roundTripNanos = roundTripNanos < 0 ? roundTrip
+          : (long) (ALPHA * roundTrip + (1 - ALPHA) * roundTripNanos);
+      consecutiveFailures = 0;
+      if (ejected && System.nanoTime() - ejectedUntil >= 0) {
+        ejected = false;
+      }
+    }
+
+    synchronized void onFailure(Exception cause, long now) {
+      lastError = cause.toString();
+      if (++consecutiveFailures >= maxFailures) {
+        ejected = true;
+        ejectedUntil = now + ejectionNanos;
+      }
+    }
+
+    synchronized NodeStats stats(long now) {
+      return new NodeStats(address, isHealthy(now), connectNanos, roundTripNanos,
+          consecutiveFailures, connections.get(), lastError);
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a broker, shared by the {@link LoopbackConnection}s created on it.
+ * Supports direct, topic and fanout exchanges, the default exchange and queues; nothing is
+ * persisted.
+ */
+public class LoopbackBroker {
+
+  private final Map<String, Exchange> exchanges = new ConcurrentHashMap<>();
+  private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+
+  public LoopbackBroker() {
+    exchanges.put("", new Exchange("", "direct", true, false));
+    exchanges.put("amq.direct", new Exchange("amq.direct", "direct", true, false));
+    exchanges.put("amq.fanout", new Exchange("amq.fanout", "fanout", true, false));
+    exchanges.put("amq.topic", new Exchange("amq.topic", "topic", true, false));
+  }
+
+  Exchange declareExchange(String name, String type, boolean durable, boolean autoDelete)
+      throws IOException {
+    if (!type.equals("direct") && !type.equals("fanout") && !type.equals("topic")) {
+      throw new IOException("Exchange type not supported by loopback broker: " + type);
+    }
+    Exchange exchange = exchanges.computeIfAbsent(name,
+        key -> new Exchange(name, type, durable, autoDelete));
+    if (!exchange.type.equals(type)) {
+      throw new IOException("Exchange " + name + " already declared with type " + exchange.type);
+    }
+    return exchange;
+  }
+
+  Exchange exchange(String name) throws IOException {
+    Exchange exchange = exchanges.get(name);
+    if (exchange == null) {
+      throw new IOException("No exchange '" + name + "'");
+    }
+    return exchange;
+  }
+
+  boolean deleteExchange(String name) {
+    return !name.isEmpty() && exchanges.remove(name) != null;
+  }
+
+  Queue declareQueue(String name, boolean durable, boolean exclusive, boolean autoDelete) {
+    String queueName = name.isEmpty() ? "amq.gen-" + UUID.randomUUID() : name;
+    return queues.computeIfAbsent(queueName,
+        key -> new Queue(queueName, durable, exclusive, autoDelete));
+  }
+
+  Queue queue(String name) throws IOException {
+    Queue queue = queues.get(name);
+    if (queue == null) {
+      throw new IOException("No queue '" + name + "'");
+    }
+    return queue;
+  }
+
+  /**
+   * @return messages the deleted queue held
+   */
+  int deleteQueue(Queue queue) {
+    if (!queues.remove(queue.name, queue)) {
+      return 0;
+    }
+    for (Exchange exchange : exchanges.values()) {
+      exchange.unbind(queue, null);
+    }
+    for (LoopbackChannel.Subscription subscription : queue.subscriptions) {
+      subscription.cancelledByBroker();
+    }
+    return queue.purge();
+  }
+
+  /**
+   * @return queues the message went to
+   */
+  List<Queue> route(String exchangeName, String routingKey) throws IOException {
+    if (exchangeName.isEmpty()) {
+      Queue queue = queues.get(routingKey);
+      List<Queue> routed = new ArrayList<>(1);
+      if (queue != null) {
+        routed.add(queue);
+      }
+      return routed;
+    }
+    return exchange(exchangeName).route(routingKey);
+  }
+
+  static final class Message {
+
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+    final boolean redelivered;
+
+    Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+        boolean redelivered) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+      this.redelivered = redelivered;
+    }
+  }
+
+  static final class Queue {
+
+    final String name;
+    final boolean durable;
+    final boolean exclusive;
+    final boolean autoDelete;
+    final List<LoopbackChannel.Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Message> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readyCount = new AtomicInteger();
+    private final AtomicInteger nextSubscription = new AtomicInteger();
+
+    Queue(String name, boolean durable, boolean exclusive, boolean autoDelete) {
+      this.name = name;
+      this.durable = durable;
+      this.exclusive = exclusive;
+      this.autoDelete = autoDelete;
+    }
+
+    void enqueue(Message message) {
+      ready.offer(message);
+      readyCount.incrementAndGet();
+      if (!subscriptions.isEmpty()) {
+        dispatch();
+      }
+    }
+
+    /**
+     * Puts back a message that was delivered but not acked, it goes to the end of the queue.
+     */
+    void requeue(Message message) {
+      enqueue(new Message(message.exchange, message.routingKey, message.props, message.body,
+          true));
+    }
+
+    Message poll() {
+      Message message = ready.poll();
+      if (message != null) {
+        readyCount.decrementAndGet();
+      }
+      return message;
+    }
+
+    /**
+     * Hands ready messages to consumers, round robin. Called whenever messages or consumers are
+     * added, so that neither side can miss the other.
+     */
+    void dispatch() {
+      while (true) {
+        List<LoopbackChannel.Subscription> current = subscriptions;
+        int size = current.size();
+        if (size == 0) {
+          return;
+        }
+        Message message = poll();
+        if (message == null) {
+          return;
+        }
+        LoopbackChannel.Subscription subscription;
+        try {
+          subscription = current.get((nextSubscription.getAndIncrement() & Integer.MAX_VALUE)
+              % size);
+        } catch (IndexOutOfBoundsException e) {
+          // a consumer was cancelled meanwhile
+          enqueue(message);
+          return;
+        }
+        subscription.deliver(message);
+      }
+    }
+
+    int messageCount() {
+      return readyCount.get();
+    }
+
+    int consumerCount() {
+      return subscriptions.size();
+    }
+
+    int purge() {
+      int purged = 0;
+      while (poll() != null) {
+        purged++;
+      }
+      return purged;
+    }
+  }
+
+  static final class Exchange {
+
+    final String name;
+    final String type;
+    final boolean durable;
+    final boolean autoDelete;
+    private final List<Binding> bindings = new CopyOnWriteArrayList<>();
+
+    Exchange(String name, String type, boolean durable, boolean autoDelete) {
+      this.name = name;
+      this.type = type;
+      this.durable = durable;
+      this.autoDelete = autoDelete;
+    }
+
+    void bind(Queue queue, String routingKey) {
+      Binding binding = new Binding(queue, routingKey);
+      for (Binding existing : bindings) {
+        if (existing.queue == queue && existing.routingKey.equals(routingKey)) {
+          return;
+        }
+      }
+      bindings.add(binding);
+    }
+
+    /**
+     * @param routingKey null for all bindings of the queue
+     */
+    void unbind(Queue queue, String routingKey) {
+      bindings.removeIf(binding -> binding.queue == queue
+          && (routingKey == null || binding.routingKey.equals(routingKey)));
+    }
+
+    List<Queue> route(String routingKey) {
+      List<Queue> routed = new ArrayList<>(2);
+      String[] words = type.equals("topic") ? routingKey.split("\\.", -1) : null;
+      for (Binding binding : bindings) {
+        boolean matches;
+        switch (type) {
+          case "fanout":
+            matches = true;
+            break;
+          case "topic":
+            matches = matches(binding.pattern, 0, words, 0);
+            break;
+          default:
+            matches = binding.routingKey.equals(routingKey);
+        }
+        if (matches && !routed.contains(binding.queue)) {
+          routed.add(binding.queue);
+        }
+      }
+      return routed;
+    }
+
+    /**
+     * Topic matching, where "*" stands for one word and "#" for any number of words.
+     */
+    static boolean matches(String[] pattern, int p, String[] words, int w) {
+      if (p == pattern.length) {
+        return w == words.length;
+      }
+      if (pattern[p].equals("#")) {
+        for (int i = w; i <= words.length; i++) {
+          if (matches(pattern, p + 1, words, i)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return w < words.length && (pattern[p].equals("*") || pattern[p].equals(words[w]))
+          && matches(pattern, p + 1, words, w + 1);
+    }
+  }
+
+  private static final class Binding {
+
+    final Queue queue;
+    final String routingKey;
+    final String[] pattern;
+
+    Binding(Queue queue, String routingKey) {
+      this.queue = queue;
+      this.routingKey = routingKey;
+      this.pattern = routingKey.split("\\.", -1);
+    }
+  }
+}
@@ -0,0 +1,1001 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Command;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.Method;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Channel of a {@link LoopbackConnection}. Publishes are routed to queues in the calling thread,
+ * consumers are called on a dispatch thread of the channel, one at a time, like the client does.
+ *
+ * <p>Confirms are sent as soon as a message is routed, and prefetch is not enforced: a consumer
+ * gets every ready message right away.
+ *
+ * <p>Channel errors close the channel as they do on the broker, but the failing call throws right
+ * away, while the client only learns about it on a later call.
+ */
+class LoopbackChannel implements Channel {
+
+  private static final AtomicInteger consumerTags = new AtomicInteger();
+  private static final java.util.function.Consumer<Unacked> FORGET = unacked -> {
+  };
+
+  private final LoopbackConnection connection;
+  private final LoopbackBroker broker;
+  private final int channelNumber;
+  private final ExecutorService dispatcher;
+  private final AtomicLong deliveryTags = new AtomicLong();
+  private final DeliveryTagMap<Unacked> unacked = new DeliveryTagMap<>();
+  private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+  private final List<ReturnListener> returnListeners = new CopyOnWriteArrayList<>();
+  private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+  private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+  private final List<LoopbackBroker.Message> transaction = new ArrayList<>();
+  private final List<Boolean> transactionMandatory = new ArrayList<>();
+  private final AtomicLong nextPublishSeqNo = new AtomicLong();
+  private volatile ShutdownSignalException closeReason;
+  private volatile Consumer defaultConsumer;
+  private volatile boolean transactional;
+
+  LoopbackChannel(LoopbackConnection connection, LoopbackBroker broker, int channelNumber) {
+    this.connection = connection;
+    this.broker = broker;
+    this.channelNumber = channelNumber;
+    this.dispatcher = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("rabbitmq-loopback-channel-" + channelNumber));
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channelNumber;
+  }
+
+  @Override
+  public Connection getConnection() {
+    return connection;
+  }
+
+  @Override
+  public void close() {
+    close(AMQP.REPLY_SUCCESS, "OK");
+  }
+
+  @Override
+  public void close(int closeCode, String closeMessage) {
+    checkOpen();
+    shutdown(new ShutdownSignalException(false, true,
+        new AMQImpl.Channel.Close(closeCode, closeMessage, 0, 0), this));
+  }
+
+  @Override
+  public void abort() {
+    abort(AMQP.REPLY_SUCCESS, "OK");
+  }
+
+  @Override
+  public void abort(int closeCode, String closeMessage) {
+    if (isOpen()) {
+      shutdown(new ShutdownSignalException(false, true,
+          new AMQImpl.Channel.Close(closeCode, closeMessage, 0, 0), this));
+    }
+  }
+
+  /**
+   * Cancels consumers, returns unacked messages to their queues and notifies listeners.
+   */
+  synchronized void shutdown(ShutdownSignalException reason) {
+    if (closeReason != null) {
+      return;
+    }
+    closeReason = reason;
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.queue.subscriptions.remove(subscription);
+      dispatch(() -> subscription.consumer.handleShutdownSignal(subscription.consumerTag, reason));
+      subscription.deleteQueueIfUnused();
+    }
+    subscriptions.clear();
+    unacked.clear(Unacked::requeue);
+    dispatcher.shutdown();
+    connection.removeChannel(this);
+    notifyListeners();
+  }
+
+  @Override
+  public void addReturnListener(ReturnListener listener) {
+    returnListeners.add(listener);
+  }
+
+  @Override
+  public ReturnListener addReturnListener(ReturnCallback returnCallback) {
+    ReturnListener listener = (replyCode, replyText, exchange, routingKey, props, body) ->
+        returnCallback.handle(new Return(replyCode, replyText, exchange,
+            routingKey, props, body));
+    addReturnListener(listener);
+    return listener;
+  }
+
+  @Override
+  public boolean removeReturnListener(ReturnListener listener) {
+    return returnListeners.remove(listener);
+  }
+
+  @Override
+  public void clearReturnListeners() {
+    returnListeners.clear();
+  }
+
+  @Override
+  public void addConfirmListener(ConfirmListener listener) {
+    confirmListeners.add(listener);
+  }
+
+  @Override
+  public ConfirmListener addConfirmListener(ConfirmCallback ackCallback,
+      ConfirmCallback nackCallback) {
+    ConfirmListener listener = new ConfirmListener() {
+      @Override
+      public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+        ackCallback.handle(deliveryTag, multiple);
+      }
+
+      @Override
+      public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+        nackCallback.handle(deliveryTag, multiple);
+      }
+    };
+    addConfirmListener(listener);
+    return listener;
+  }
+
+  @Override
+  public boolean removeConfirmListener(ConfirmListener listener) {
+    return confirmListeners.remove(listener);
+  }
+
+  @Override
+  public void clearConfirmListeners() {
+    confirmListeners.clear();
+  }
+
+  @Override
+  public Consumer getDefaultConsumer() {
+    return defaultConsumer;
+  }
+
+  @Override
+  public void setDefaultConsumer(Consumer consumer) {
+    this.defaultConsumer = consumer;
+  }
+
+  @Override
+  public void basicQos(int prefetchSize, int prefetchCount, boolean global) {
+    checkOpen();
+  }
+
+  @Override
+  public void basicQos(int prefetchCount, boolean global) {
+    checkOpen();
+  }
+
+  @Override
+  public void basicQos(int prefetchCount) {
+    checkOpen();
+  }
+
+  @Override
+  public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties props,
+      byte[] body) throws IOException {
+    basicPublish(exchange, routingKey, false, false, props, body);
+  }
+
+  @Override
+  public void basicPublish(String exchange, String routingKey, boolean mandatory,
+      AMQP.BasicProperties props, byte[] body) throws IOException {
+    basicPublish(exchange, routingKey, mandatory, false, props, body);
+  }
+
+  @Override
+  public void basicPublish(String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    checkOpen();
+    LoopbackBroker.Message message = new LoopbackBroker.Message(exchange, routingKey,
+        props != null ? props : new AMQP.BasicProperties(), body, false);
+    if (transactional) {
+      synchronized (transaction) {
+        transaction.add(message);
+        transactionMandatory.add(mandatory);
+      }
+      return;
+    }
+    route(message, mandatory);
+  }
+
+  private void route(LoopbackBroker.Message message, boolean mandatory) throws IOException {
+    List<LoopbackBroker.Queue> queues = broker.route(message.exchange, message.routingKey);
+    for (LoopbackBroker.Queue queue : queues) {
+      queue.enqueue(message);
+    }
+    if (queues.isEmpty() && mandatory) {
+      for (ReturnListener listener : returnListeners) {
+        listener.handleReturn(AMQP.NO_ROUTE, "NO_ROUTE", message.exchange, message.routingKey,
+            message.props, message.body);
+      }
+    }
+    long seqNo = nextPublishSeqNo.get();
+    if (seqNo > 0) {
+      nextPublishSeqNo.incrementAndGet();
+      for (ConfirmListener listener : confirmListeners) {
+        listener.handleAck(seqNo, false);
+      }
+    }
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type)
+      throws IOException {
+    return exchangeDeclare(exchange, type, false, false, false, null);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type)
+      throws IOException {
+    return exchangeDeclare(exchange, type.getType());
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable)
+      throws IOException {
+    return exchangeDeclare(exchange, type, durable, false, false, null);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type,
+      boolean durable) throws IOException {
+    return exchangeDeclare(exchange, type.getType(), durable);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable,
+      boolean autoDelete, Map<String, Object> arguments) throws IOException {
+    return exchangeDeclare(exchange, type, durable, autoDelete, false, arguments);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type,
+      boolean durable, boolean autoDelete, Map<String, Object> arguments) throws IOException {
+    return exchangeDeclare(exchange, type.getType(), durable, autoDelete, arguments);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable,
+      boolean autoDelete, boolean internal, Map<String, Object> arguments) throws IOException {
+    checkOpen();
+    broker.declareExchange(exchange, type, durable, autoDelete);
+    return new AMQImpl.Exchange.DeclareOk();
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type,
+      boolean durable, boolean autoDelete, boolean internal, Map<String, Object> arguments)
+      throws IOException {
+    return exchangeDeclare(exchange, type.getType(), durable, autoDelete, internal, arguments);
+  }
+
+  @Override
+  public void exchangeDeclareNoWait(String exchange, String type, boolean durable,
+      boolean autoDelete, boolean internal, Map<String, Object> arguments) throws IOException {
+    exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
+  }
+
+  @Override
+  public void exchangeDeclareNoWait(String exchange, BuiltinExchangeType type, boolean durable,
+      boolean autoDelete, boolean internal, Map<String, Object> arguments) throws IOException {
+    exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
+  }
+
+  @Override
+  public AMQP.Exchange.DeclareOk exchangeDeclarePassive(String name) throws IOException {
+    checkOpen();
+    broker.exchange(name);
+    return new AMQImpl.Exchange.DeclareOk();
+  }
+
+  @Override
+  public AMQP.Exchange.DeleteOk exchangeDelete(String exchange, boolean ifUnused) {
+    checkOpen();
+    broker.deleteExchange(exchange);
+    return new AMQImpl.Exchange.DeleteOk();
+  }
+
+  @Override
+  public void exchangeDeleteNoWait(String exchange, boolean ifUnused) {
+    exchangeDelete(exchange, ifUnused);
+  }
+
+  @Override
+  public AMQP.Exchange.DeleteOk exchangeDelete(String exchange) {
+    return exchangeDelete(exchange, false);
+  }
+
+  @Override
+  public AMQP.Exchange.BindOk exchangeBind(String destination, String source,
+      String routingKey) {
+    throw new UnsupportedOperationException("Exchange to exchange bindings are not supported");
+  }
+
+  @Override
+  public AMQP.Exchange.BindOk exchangeBind(String destination, String source, String routingKey,
+      Map<String, Object> arguments) {
+    return exchangeBind(destination, source, routingKey);
+  }
+
+  @Override
+  public void exchangeBindNoWait(String destination, String source, String routingKey,
+      Map<String, Object> arguments) {
+    exchangeBind(destination, source, routingKey);
+  }
+
+  @Override
+  public AMQP.Exchange.UnbindOk exchangeUnbind(String destination, String source,
+      String routingKey) {
+    throw new UnsupportedOperationException("Exchange to exchange bindings are not supported");
+  }
+
+  @Override
+  public AMQP.Exchange.UnbindOk exchangeUnbind(String destination, String source,
+      String routingKey, Map<String, Object> arguments) {
+    return exchangeUnbind(destination, source, routingKey);
+  }
+
+  @Override
+  public void exchangeUnbindNoWait(String destination, String source, String routingKey,
+      Map<String, Object> arguments) {
+    exchangeUnbind(destination, source, routingKey);
+  }
+
+  @Override
+  public AMQP.Queue.DeclareOk queueDeclare() {
+    return queueDeclare("", false, true, true, null);
+  }
+
+  @Override
+  public AMQP.Queue.DeclareOk queueDeclare(String queue, boolean durable, boolean exclusive,
+      boolean autoDelete, Map<String, Object> arguments) {
+    checkOpen();
+    LoopbackBroker.Queue declared = broker.declareQueue(queue, durable, exclusive, autoDelete);
+    if (declared.exclusive) {
+      connection.addExclusiveQueue(declared);
+    }
+    return new AMQImpl.Queue.DeclareOk(declared.name, declared.messageCount(),
+        declared.consumerCount());
+  }
+
+  @Override
+  public void queueDeclareNoWait(String queue, boolean durable, boolean exclusive,
+      boolean autoDelete, Map<String, Object> arguments) {
+    queueDeclare(queue, durable, exclusive, autoDelete, arguments);
+  }
+
+  @Override
+  public AMQP.Queue.DeclareOk queueDeclarePassive(String queue) throws IOException {
+    checkOpen();
+    LoopbackBroker.Queue declared;
+    try {
+      declared = broker.queue(queue);
+    } catch (IOException e) {
+      throw channelError(AMQP.NOT_FOUND, "NOT_FOUND - no queue '" + queue + "'");
+    }
+    return new AMQImpl.Queue.DeclareOk(declared.name, declared.messageCount(),
+        declared.consumerCount());
+  }
+
+  @Override
+  public AMQP.Queue.DeleteOk queueDelete(String queue) throws IOException {
+    return queueDelete(queue, false, false);
+  }
+
+  @Override
+  public AMQP.Queue.DeleteOk queueDelete(String queue, boolean ifUnused, boolean ifEmpty)
+      throws IOException {
+    checkOpen();
+    int purged = 0;
+    try {
+      LoopbackBroker.Queue deleted = broker.queue(queue);
+      if ((!ifUnused || deleted.consumerCount() == 0) && (!ifEmpty
+          || deleted.messageCount() == 0)) {
+        purged = broker.deleteQueue(deleted);
+      }
+    } catch (IOException e) {
+      // deleting a missing queue succeeds
+    }
+    return new AMQImpl.Queue.DeleteOk(purged);
+  }
+
+  @Override
+  public void queueDeleteNoWait(String queue, boolean ifUnused, boolean ifEmpty)
+      throws IOException {
+    queueDelete(queue, ifUnused, ifEmpty);
+  }
+
+  @Override
+  public AMQP.Queue.BindOk queueBind(String queue, String exchange, String routingKey)
+      throws IOException {
+    return queueBind(queue, exchange, routingKey, null);
+  }
+
+  @Override
+  public AMQP.Queue.BindOk queueBind(String queue, String exchange, String routingKey,
+      Map<String, Object> arguments) throws IOException {
+    checkOpen();
+    if (exchange.isEmpty()) {
+      throw new IOException("Cannot bind to the default exchange");
+    }
+    broker.exchange(exchange).bind(broker.queue(queue), routingKey);
+    return new AMQImpl.Queue.BindOk();
+  }
+
+  @Override
+  public void queueBindNoWait(String queue, String exchange, String routingKey,
+      Map<String, Object> arguments) throws IOException {
+    queueBind(queue, exchange, routingKey, arguments);
+  }
+
+  @Override
+  public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey)
+      throws IOException {
+    return queueUnbind(queue, exchange, routingKey, null);
+  }
+
+  @Override
+  public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey,
+      Map<String, Object> arguments) throws IOException {
+    checkOpen();
+    broker.exchange(exchange).unbind(broker.queue(queue), routingKey);
+    return new AMQImpl.Queue.UnbindOk();
+  }
+
+  @Override
+  public AMQP.Queue.PurgeOk queuePurge(String queue) throws IOException {
+    checkOpen();
+    return new AMQImpl.Queue.PurgeOk(broker.queue(queue).purge());
+  }
+
+  @Override
+  public GetResponse basicGet(String queue, boolean autoAck) throws IOException {
+    checkOpen();
+    LoopbackBroker.Queue source = broker.queue(queue);
+    LoopbackBroker.Message message = source.poll();
+    if (message == null) {
+      return null;
+    }
+    long deliveryTag = deliveryTags.incrementAndGet();
+    if (!autoAck) {
+      unacked.put(deliveryTag, new Unacked(source, message));
+    }
+    return new GetResponse(envelope(deliveryTag, message), message.props, message.body,
+        source.messageCount());
+  }
+
+  @Override
+  public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+    settle(deliveryTag, multiple, FORGET);
+  }
+
+  @Override
+  public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+    settle(deliveryTag, multiple, requeue ? Unacked::requeue : FORGET);
+  }
+
+  @Override
+  public void basicReject(long deliveryTag, boolean requeue) throws IOException {
+    basicNack(deliveryTag, false, requeue);
+  }
+
+  /**
+   * Like the broker, fails the channel if the tag is not that of an unacked delivery, except for a
+   * multiple ack of tag 0.
+   */
+  private synchronized void settle(long deliveryTag, boolean multiple,
+      java.util.function.Consumer<Unacked> action) throws IOException {
+    checkOpen();
+    if (multiple && deliveryTag == 0) {
+      unacked.clear(action);
+    } else if (multiple && unacked.get(deliveryTag) != null) {
+      unacked.removeUpTo(deliveryTag, action);
+    } else if (multiple || !unacked.remove(deliveryTag, action)) {
+      throw channelError(AMQP.PRECONDITION_FAILED,
+          "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+    }
+  }
+
+  @Override
+  public String basicConsume(String queue, Consumer callback) throws IOException {
+    return basicConsume(queue, false, callback);
+  }
+
+  @Override
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
+      CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, false, deliverCallback, cancelCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, false, deliverCallback, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
+      CancelCallback cancelCallback, ConsumerShutdownSignalCallback shutdownSignalCallback)
+      throws IOException {
+    return basicConsume(queue, false, deliverCallback, cancelCallback, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, Consumer callback)
+      throws IOException {
+    return basicConsume(queue, autoAck, "", callback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
+      CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", deliverCallback, cancelCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", deliverCallback, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
+      CancelCallback cancelCallback, ConsumerShutdownSignalCallback shutdownSignalCallback)
+      throws IOException {
+    return basicConsume(queue, autoAck, "", deliverCallback, cancelCallback,
+        shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      Consumer callback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments, callback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback,
+        cancelCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, ConsumerShutdownSignalCallback shutdownSignalCallback)
+      throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback,
+        shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback,
+        cancelCallback, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      Consumer callback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null, callback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback,
+        cancelCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      DeliverCallback deliverCallback, ConsumerShutdownSignalCallback shutdownSignalCallback)
+      throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback,
+        shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback,
+        cancelCallback, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      boolean noLocal, boolean exclusive, Map<String, Object> arguments, Consumer callback)
+      throws IOException {
+    checkOpen();
+    LoopbackBroker.Queue source = broker.queue(queue);
+    String tag = consumerTag.isEmpty()
+        ? "amq.ctag-loopback-" + consumerTags.incrementAndGet() : consumerTag;
+    Subscription subscription = new Subscription(source, tag, callback, autoAck);
+    if (subscriptions.putIfAbsent(tag, subscription) != null) {
+      throw new IOException("Consumer tag already in use: " + tag);
+    }
+    dispatch(() -> callback.handleConsumeOk(tag));
+    source.subscriptions.add(subscription);
+    source.dispatch();
+    return tag;
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      boolean noLocal, boolean exclusive, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+        deliverCallback, cancelCallback, null);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      boolean noLocal, boolean exclusive, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, ConsumerShutdownSignalCallback shutdownSignalCallback)
+      throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+        deliverCallback, null, shutdownSignalCallback);
+  }
+
+  @Override
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      boolean noLocal, boolean exclusive, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    Consumer consumer = new DefaultConsumer(this) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) throws IOException {
+        deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+      }
+
+      @Override
+      public void handleCancel(String consumerTag) throws IOException {
+        if (cancelCallback != null) {
+          cancelCallback.handle(consumerTag);
+        }
+      }
+
+      @Override
+      public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        if (shutdownSignalCallback != null) {
+          shutdownSignalCallback.handleShutdownSignal(consumerTag, sig);
+        }
+      }
+    };
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments, consumer);
+  }
+
+  @Override
+  public void basicCancel(String consumerTag) throws IOException {
+    checkOpen();
+    Subscription subscription = subscriptions.remove(consumerTag);
+    if (subscription == null) {
+      throw new IOException("Unknown consumer tag " + consumerTag);
+    }
+    subscription.queue.subscriptions.remove(subscription);
+    dispatch(() -> subscription.consumer.handleCancelOk(consumerTag));
+    subscription.deleteQueueIfUnused();
+  }
+
+  @Override
+  public AMQP.Basic.RecoverOk basicRecover() {
+    return basicRecover(true);
+  }
+
+  /**
+   * Messages are always requeued, like RabbitMQ does.
+   */
+  @Override
+  public AMQP.Basic.RecoverOk basicRecover(boolean requeue) {
+    checkOpen();
+    unacked.clear(Unacked::requeue);
+    return new AMQImpl.Basic.RecoverOk();
+  }
+
+  @Override
+  public AMQP.Tx.SelectOk txSelect() {
+    checkOpen();
+    transactional = true;
+    return new AMQImpl.Tx.SelectOk();
+  }
+
+  @Override
+  public AMQP.Tx.CommitOk txCommit() throws IOException {
+    checkTransactional();
+    List<LoopbackBroker.Message> messages;
+    List<Boolean> mandatory;
+    synchronized (transaction) {
+      messages = new ArrayList<>(transaction);
+      mandatory = new ArrayList<>(transactionMandatory);
+      transaction.clear();
+      transactionMandatory.clear();
+    }
+    for (int i = 0; i < messages.size(); i++) {
+      route(messages.get(i), mandatory.get(i));
+    }
+    return new AMQImpl.Tx.CommitOk();
+  }
+
+  @Override
+  public AMQP.Tx.RollbackOk txRollback() throws IOException {
+    checkTransactional();
+    synchronized (transaction) {
+      transaction.clear();
+      transactionMandatory.clear();
+    }
+    return new AMQImpl.Tx.RollbackOk();
+  }
+
+  private void checkTransactional() throws IOException {
+    checkOpen();
+    if (!transactional) {
+      throw new IOException("Channel is not transactional");
+    }
+  }
+
+  @Override
+  public AMQP.Confirm.SelectOk confirmSelect() {
+    checkOpen();
+    nextPublishSeqNo.compareAndSet(0, 1);
+    return new AMQImpl.Confirm.SelectOk();
+  }
+
+  @Override
+  public long getNextPublishSeqNo() {
+    return nextPublishSeqNo.get();
+  }
+
+  /**
+   * Every message is confirmed while it is published.
+   */
+  @Override
+  public boolean waitForConfirms() {
+    if (nextPublishSeqNo.get() == 0) {
+      throw new IllegalStateException("Confirms not selected");
+    }
+    return true;
+  }
+
+  @Override
+  public boolean waitForConfirms(long timeout) {
+    return waitForConfirms();
+  }
+
+  @Override
+  public void waitForConfirmsOrDie() {
+    waitForConfirms();
+  }
+
+  @Override
+  public void waitForConfirmsOrDie(long timeout) {
+    waitForConfirms();
+  }
+
+  @Override
+  public void asyncRpc(Method method) {
+    throw new UnsupportedOperationException("Raw methods are not supported");
+  }
+
+  @Override
+  public Command rpc(Method method) {
+    throw new UnsupportedOperationException("Raw methods are not supported");
+  }
+
+  @Override
+  public CompletableFuture<Command> asyncCompletableRpc(Method method) {
+    throw new UnsupportedOperationException("Raw methods are not supported");
+  }
+
+  @Override
+  public long messageCount(String queue) throws IOException {
+    return queueDeclarePassive(queue).getMessageCount();
+  }
+
+  @Override
+  public long consumerCount(String queue) throws IOException {
+    return queueDeclarePassive(queue).getConsumerCount();
+  }
+
+  @Override
+  public void addShutdownListener(ShutdownListener listener) {
+    ShutdownSignalException reason = closeReason;
+    if (reason != null) {
+      listener.shutdownCompleted(reason);
+    } else {
+      shutdownListeners.add(listener);
+    }
+  }
+
+  @Override
+  public void removeShutdownListener(ShutdownListener listener) {
+    shutdownListeners.remove(listener);
+  }
+
+  @Override
+  public ShutdownSignalException getCloseReason() {
+    return closeReason;
+  }
+
+  @Override
+  public void notifyListeners() {
+    ShutdownSignalException reason = closeReason;
+    if (reason == null) {
+      return;
+    }
+    for (ShutdownListener listener : shutdownListeners) {
+      listener.shutdownCompleted(reason);
+    }
+    shutdownListeners.clear();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return closeReason == null;
+  }
+
+  @Override
+  public String toString() {
+    return "LoopbackChannel(" + channelNumber + ")";
+  }
+
+  /**
+   * Closes the channel with a channel error, as the broker does.
+   *
+   * @return the exception the client throws for the failed method
+   */
+  private IOException channelError(int replyCode, String replyText) {
+    ShutdownSignalException reason = new ShutdownSignalException(false, false,
+        new AMQImpl.Channel.Close(replyCode, replyText, 0, 0), this);
+    shutdown(reason);
+    return new IOException(reason);
+  }
+
+  private void checkOpen() {
+    ShutdownSignalException reason = closeReason;
+    if (reason != null) {
+      throw new AlreadyClosedException(reason);
+    }
+  }
+
+  private static Envelope envelope(long deliveryTag, LoopbackBroker.Message message) {
+    return new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+  }
+
+  private void dispatch(ConsumerCall call) {
+    try {
+      dispatcher.execute(() -> {
+        try {
+          call.run();
+        } catch (Throwable ignore) {
+          // a failing consumer must not stop the dispatch thread
+        }
+      });
+    } catch (RejectedExecutionException ignore) {
+      // closed meanwhile
+    }
+  }
+
+  private interface ConsumerCall {
+
+    void run() throws IOException;
+  }
+
+  /**
+   * A consumer of a queue on this channel.
+   */
+  final class Subscription {
+
+    final LoopbackBroker.Queue queue;
+    final String consumerTag;
+    final Consumer consumer;
+    final boolean autoAck;
+
+    Subscription(LoopbackBroker.Queue queue, String consumerTag, Consumer consumer,
+        boolean autoAck) {
+      this.queue = queue;
+      this.consumerTag = consumerTag;
+      this.consumer = consumer;
+      this.autoAck = autoAck;
+    }
+
+    void deliver(LoopbackBroker.Message message) {
+      long deliveryTag = deliveryTags.incrementAndGet();
+      if (!autoAck) {
+        unacked.put(deliveryTag, new Unacked(queue, message));
+      }
+      Envelope envelope = envelope(deliveryTag, message);
+      dispatch(() -> consumer.handleDelivery(consumerTag, envelope, message.props, message.body));
+    }
+
+    /**
+     * The queue was deleted under the consumer.
+     */
+    void cancelledByBroker() {
+      if (subscriptions.remove(consumerTag, this)) {
+        dispatch(() -> consumer.handleCancel(consumerTag));
+      }
+    }
+
+    void deleteQueueIfUnused() {
+      if (queue.autoDelete && queue.subscriptions.isEmpty()) {
+        broker.deleteQueue(queue);
+      }
+    }
+  }
+
+  private static final class Unacked {
+
+    final LoopbackBroker.Queue queue;
+    final LoopbackBroker.Message message;
+
+    Unacked(LoopbackBroker.Queue queue, LoopbackBroker.Message message) {
+      this.queue = queue;
+      this.message = message;
+    }
+
+    void requeue() {
+      queue.requeue(message);
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ExceptionHandler;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.DefaultExceptionHandler;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to a {@link LoopbackBroker} in the same JVM, for tests and benchmarks that need the
+ * client API without the network or a broker process. It can be wrapped in a
+ * {@link TracingConnection} like any other connection.
+ *
+ * <p>Exclusive queues are deleted when the connection that declared them closes. The connection
+ * never recovers, and is only blocked by {@link #block(String)}.
+ */
+public class LoopbackConnection implements Connection {
+
+  private static final int CHANNEL_MAX = 2047;
+
+  private final LoopbackBroker broker;
+  private final ConcurrentMap<Integer, LoopbackChannel> channels = new ConcurrentHashMap<>();
+  private final AtomicInteger nextChannelNumber = new AtomicInteger();
+  private final Set<LoopbackBroker.Queue> exclusiveQueues = ConcurrentHashMap.newKeySet();
+  private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+  private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+  private final ExceptionHandler exceptionHandler = new DefaultExceptionHandler();
+  private volatile ShutdownSignalException closeReason;
+  private volatile String id;
+
+  /**
+   * Connects to a broker of its own.
+   */
+  public LoopbackConnection() {
+    this(new LoopbackBroker());
+  }
+
+  public LoopbackConnection(LoopbackBroker broker) {
+    this.broker = broker;
+  }
+
+  @Override
+  public InetAddress getAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public int getPort() {
+    return -1;
+  }
+
+  @Override
+  public int getChannelMax() {
+    return CHANNEL_MAX;
+  }
+
+  @Override
+  public int getFrameMax() {
+    return 0;
+  }
+
+  @Override
+  public int getHeartbeat() {
+    return 0;
+  }
+
+  @Override
+  public Map<String, Object> getClientProperties() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public String getClientProvidedName() {
+    return null;
+  }
+
+  @Override
+  public Map<String, Object> getServerProperties() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public Channel createChannel() {
+    checkOpen();
+    for (int i = 0; i < CHANNEL_MAX; i++) {
+      int number = Math.floorMod(nextChannelNumber.getAndIncrement(), CHANNEL_MAX) + 1;
+      Channel channel = createChannel(number);
+      if (channel != null) {
+        return channel;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return null if the channel number is in use
+   */
+  @Override
+  public Channel createChannel(int channelNumber) {
+    checkOpen();
+    LoopbackChannel channel = new LoopbackChannel(this, broker, channelNumber);
+    if (channels.putIfAbsent(channelNumber, channel) != null) {
+      channel.shutdown(new ShutdownSignalException(false, true,
+          new AMQImpl.Channel.Close(AMQP.REPLY_SUCCESS, "OK", 0, 0), channel));
+      return null;
+    }
+    return channel;
+  }
+
+  void removeChannel(LoopbackChannel channel) {
+    channels.remove(channel.getChannelNumber(), channel);
+  }
+
+  void addExclusiveQueue(LoopbackBroker.Queue queue) {
+    exclusiveQueues.add(queue);
+  }
+
+  @Override
+  public void close() {
+    close(AMQP.REPLY_SUCCESS, "OK");
+  }
+
+  @Override
+  public void close(int closeCode, String closeMessage) {
+    checkOpen();
+    shutdown(closeCode, closeMessage);
+  }
+
+  @Override
+  public void close(int timeout) {
+    close();
+  }
+
+  @Override
+  public void close(int closeCode, String closeMessage, int timeout) {
+    close(closeCode, closeMessage);
+  }
+
+  @Override
+  public void abort() {
+    abort(AMQP.REPLY_SUCCESS, "OK");
+  }
+
+  @Override
+  public void abort(int closeCode, String closeMessage) {
+    shutdown(closeCode, closeMessage);
+  }
+
+  @Override
+  public void abort(int timeout) {
+    abort();
+  }
+
+  @Override
+  public void abort(int closeCode, String closeMessage, int timeout) {
+    abort(closeCode, closeMessage);
+  }
+
+  private synchronized void shutdown(int closeCode, String closeMessage) {
+    if (closeReason != null) {
+      return;
+    }
+    ShutdownSignalException reason = new ShutdownSignalException(true, true,
+        new AMQImpl.Connection.Close(closeCode, closeMessage, 0, 0), this);
+    closeReason = reason;
+    for (LoopbackChannel channel : channels.values()) {
+      channel.shutdown(reason);
+    }
+    for (LoopbackBroker.Queue queue : exclusiveQueues) {
+      broker.deleteQueue(queue);
+    }
+    exclusiveQueues.clear();
+    notifyListeners();
+  }
+
+  /**
+   * Notifies the blocked listeners as the broker does when a resource alarm blocks publishers.
+   * Publishes are not actually held back.
+   */
+  public void block(String reason) {
+    for (BlockedListener listener : blockedListeners) {
+      try {
+        listener.handleBlocked(reason);
+      } catch (IOException e) {
+        exceptionHandler.handleBlockedListenerException(this, e);
+      }
+    }
+  }
+
+  public void unblock() {
+    for (BlockedListener listener : blockedListeners) {
+      try {
+        listener.handleUnblocked();
+      } catch (IOException e) {
+        exceptionHandler.handleBlockedListenerException(this, e);
+      }
+    }
+  }
+
+  @Override
+  public void addBlockedListener(BlockedListener listener) {
+    blockedListeners.add(listener);
+  }
+
+  @Override
+  public BlockedListener addBlockedListener(BlockedCallback blockedCallback,
+      UnblockedCallback unblockedCallback) {
+    BlockedListener listener = new BlockedListener() {
+      @Override
+      public void handleBlocked(String reason) throws IOException {
+        blockedCallback.handle(reason);
+      }
+
+      @Override
+      public void handleUnblocked() throws IOException {
+        unblockedCallback.handle();
+      }
+    };
+    addBlockedListener(listener);
+    return listener;
+  }
+
+  @Override
+  public boolean removeBlockedListener(BlockedListener listener) {
+    return blockedListeners.remove(listener);
+  }
+
+  @Override
+  public void clearBlockedListeners() {
+    blockedListeners.clear();
+  }
+
+  @Override
+  public ExceptionHandler getExceptionHandler() {
+    return exceptionHandler;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  @Override
+  public void addShutdownListener(ShutdownListener listener) {
+    ShutdownSignalException reason = closeReason;
+    if (reason != null) {
+      listener.shutdownCompleted(reason);
+    } else {
+      shutdownListeners.add(listener);
+    }
+  }
+
+  @Override
+  public void removeShutdownListener(ShutdownListener listener) {
+    shutdownListeners.remove(listener);
+  }
+
+  @Override
+  public ShutdownSignalException getCloseReason() {
+    return closeReason;
+  }
+
+  @Override
+  public void notifyListeners() {
+    ShutdownSignalException reason = closeReason;
+    if (reason == null) {
+      return;
+    }
+    for (ShutdownListener listener : shutdownListeners) {
+      listener.shutdownCompleted(reason);
+    }
+    shutdownListeners.clear();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return closeReason == null;
+  }
+
+  @Override
+  public String toString() {
+    return "loopback://" + Integer.toHexString(System.identityHashCode(broker));
+  }
+
+  private void checkOpen() {
+    ShutdownSignalException reason = closeReason;
+    if (reason != null) {
+      throw new AlreadyClosedException(reason);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs small messages published on a channel into one AMQP message per exchange, routing key,
+ * delivery mode, priority and expiration, see
+ * {@link TracingChannel#enablePacking(int, int, long, java.util.concurrent.TimeUnit)}. The packed
+ * message carries these three properties over, so that the broker persists, orders and expires it
+ * as it would each of its messages.
+ *
+ * <p>The body of a packed message holds, for each logical message, its properties in the client's
+ * content header encoding, with the span context of its own send span injected, then the length
+ * and bytes of its body. The packed message carries the number of logical messages in the
+ * {@link #COUNT_HEADER} header and is sent with a "send" span that follows from the send spans of
+ * at most {@link #MAX_REFERENCES} logical messages.
+ */
+class MessagePacker {
+
+  static final String COUNT_HEADER = "x-packed-count";
+  static final String CONTENT_TYPE = "application/x-rabbitmq-packed";
+  static final int MAX_REFERENCES = 16;
+
+  private final TracingChannel channel;
+  private final int maxBytes;
+  private final int maxMessages;
+  private final long lingerNanos;
+  // guarded by this, in the order the packs were started
+  private final Map<String, Pack> packs = new LinkedHashMap<>();
+
+  MessagePacker(TracingChannel channel, int maxBytes, int maxMessages, long lingerNanos) {
+    if (maxBytes <= 0 || maxMessages <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid pack limits: " + maxBytes + " bytes, " + maxMessages + " messages");
+    }
+    this.channel = channel;
+    this.maxBytes = maxBytes;
+    this.maxMessages = maxMessages;
+    this.lingerNanos = lingerNanos;
+  }
+
+  /**
+   * Adds a message to the pack of its destination, and sends the pack once full. The send span
+   * is finished once the pack is sent.
+   *
+   * @param props properties with the span context injected
+   */
+  synchronized void add(Span span, String exchange, String routingKey,
+      AMQP.BasicProperties props, byte[] body) throws IOException {
+    Integer deliveryMode = props != null ? props.getDeliveryMode() : null;
+    Integer priority = props != null ? props.getPriority() : null;
+    String expiration = props != null ? props.getExpiration() : null;
+    String key = exchange + '\u0000' + routingKey + '\u0000' + deliveryMode + '\u0000' + priority
+        + '\u0000' + expiration;
+    Pack pack = packs.get(key);
+    if (pack == null) {
+      pack = new Pack(exchange, routingKey, deliveryMode, priority, expiration);
+      packs.put(key, pack);
+    }
+    pack.add(span, props, body);
+    if (pack.bytes.size() >= maxBytes || pack.spans.size() >= maxMessages) {
+      packs.remove(key);
+      send(pack);
+    }
+  }
+
+  /**
+   * Sends all packs, the first failure is thrown once all were tried.
+   */
+  synchronized void flush() throws IOException {
+    IOException failure = null;
+    for (Iterator<Pack> iterator = packs.values().iterator(); iterator.hasNext(); ) {
+      Pack pack = iterator.next();
+      iterator.remove();
+      try {
+        send(pack);
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Sends the packs whose first message is older than the linger time. Failures are tagged on the
+   * spans of the messages only, there is no caller left to throw to.
+   */
+  synchronized void flushIfDue() {
+    long now = System.nanoTime();
+    for (Iterator<Pack> iterator = packs.values().iterator(); iterator.hasNext(); ) {
+      Pack pack = iterator.next();
+      if (now - pack.startedAt < lingerNanos) {
+        continue;
+      }
+      iterator.remove();
+      try {
+        send(pack);
+      } catch (IOException | RuntimeException ignore) {
+        // on the spans
+      }
+    }
+  }
+
+  /**
+   * Drops all packs without sending them, finishing the spans of their messages.
+   */
+  synchronized void discard(String event) {
+    for (Pack pack : packs.values()) {
+      for (Span span : pack.spans) {
+        span.log(event);
+        span.finish();
+      }
+    }
+    packs.clear();
+  }
+
+  synchronized int getPendingCount() {
+    int count = 0;
+    for (Pack pack : packs.values()) {
+      count += pack.spans.size();
+    }
+    return count;
+  }
+
+  private void send(Pack pack) throws IOException {
+    int count = pack.spans.size();
+    int references = Math.min(count, MAX_REFERENCES);
+    List<SpanContext> contexts = new ArrayList<>(references);
+    for (int i = 0; i < references; i++) {
+      // an even sample of the pack
+      contexts.add(pack.spans.get(i * count / references).context());
+    }
+    byte[] body = pack.bytes.toByteArray();
+    Span span = channel.buildSpan(pack.exchange, null, contexts);
+    SpanDecorator.onPack(span, count, body.length);
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+        .contentType(CONTENT_TYPE)
+        .deliveryMode(pack.deliveryMode)
+        .priority(pack.priority)
+        .expiration(pack.expiration)
+        .headers(Collections.singletonMap(COUNT_HEADER, count))
+        .build();
+    try {
+      channel.send(span, pack.exchange, pack.routingKey, false, false, props, body);
+    } catch (IOException | RuntimeException e) {
+      for (Span logical : pack.spans) {
+        SpanDecorator.onError(e, logical);
+      }
+      throw e;
+    } finally {
+      for (Span logical : pack.spans) {
+        logical.finish();
+      }
+    }
+  }
+
+  /**
+   * @return number of logical messages in a packed message, or 0 if it is not packed
+   */
+  static int count(AMQP.BasicProperties props) {
+    Map<String, Object> headers = props != null ? props.getHeaders() : null;
+    Object count = headers != null ? headers.get(COUNT_HEADER) : null;
+    return count instanceof Number ? ((Number) count).intValue() : 0;
+  }
+
+  static void unpack(byte[] body, int count, Handler handler) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    for (int i = 0; i < count; i++) {
+      AMQP.BasicProperties props = PropertiesCodec.read(in);
+      byte[] message = new byte[in.readInt()];
+      in.readFully(message);
+      handler.handle(props, message);
+    }
+  }
+
+  interface Handler {
+
+    void handle(AMQP.BasicProperties props, byte[] body) throws IOException;
+  }
+
+  private static final class Pack {
+
+    final String exchange;
+    final String routingKey;
+    final Integer deliveryMode;
+    final Integer priority;
+    final String expiration;
+    final long startedAt = System.nanoTime();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final List<Span> spans = new ArrayList<>();
+
+    Pack(String exchange, String routingKey, Integer deliveryMode, Integer priority,
+        String expiration) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.deliveryMode = deliveryMode;
+      this.priority = priority;
+      this.expiration = expiration;
+    }
+
+    void add(Span span, AMQP.BasicProperties props, byte[] body) throws IOException {
+      PropertiesCodec.write(props, out);
+      int length = body != null ? body.length : 0;
+      out.writeInt(length);
+      if (length > 0) {
+        out.write(body);
+      }
+      spans.add(span);
+    }
+  }
+}
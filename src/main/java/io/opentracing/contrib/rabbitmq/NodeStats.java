@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.Address;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probe results of a broker node, as measured by a {@link LatencyAwareAddressResolver}.
+ * Latencies are moving averages over the recent probes.
+ */
+public final class NodeStats {
+
+  private final Address address;
+  private final boolean healthy;
+  private final long connectNanos;
+  private final long roundTripNanos;
+  private final int consecutiveFailures;
+  private final int connections;
+  private final String lastError;
+
+  NodeStats(Address address, boolean healthy, long connectNanos, long roundTripNanos,
+      int consecutiveFailures, int connections, String lastError) {
+    this.address = address;
+    this.healthy = healthy;
+    this.connectNanos = connectNanos;
+    this.roundTripNanos = roundTripNanos;
+    this.consecutiveFailures = consecutiveFailures;
+    this.connections = connections;
+    this.lastError = lastError;
+  }
+
+  public Address getAddress() {
+    return address;
+  }
+
+  /**
+   * @return false while the node is ejected after failed probes
+   */
+  public boolean isHealthy() {
+    return healthy;
+  }
+
+  /**
+   * @return time to open a TCP connection, or -1 if no probe succeeded yet
+   */
+  public long getConnectLatency(TimeUnit unit) {
+    return connectNanos < 0 ? -1 : unit.convert(connectNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return time from sending the protocol header to the broker's first reply byte, or -1 if no
+   * probe succeeded yet
+   */
+  public long getRoundTripLatency(TimeUnit unit) {
+    return roundTripNanos < 0 ? -1 : unit.convert(roundTripNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return open connections of the resolver's factory to the node
+   */
+  public int getConnections() {
+    return connections;
+  }
+
+  /**
+   * @return message of the last failed probe, or null
+   */
+  public String getLastError() {
+    return lastError;
+  }
+
+  @Override
+  public String toString() {
+    return "NodeStats{address=" + address + ", healthy=" + healthy + ", connectNanos="
+        + connectNanos + ", roundTripNanos=" + roundTripNanos + ", connections=" + connections
+        + '}';
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local store-and-forward outbox for publishes of a {@link TracingConnection}.
+ *
+ * <p>Publishes, including their injected span context, are appended to an {@link OutboxJournal}
+ * and sent by a background thread on a dedicated channel in publisher confirm mode. Records are
+ * dropped from the journal once the broker confirms them; anything unconfirmed, e.g. after a
+ * connection failure or a process crash, is sent again in order, so delivery is at least once.
+ */
+public class Outbox implements Closeable {
+
+  private static final long RETRY_INTERVAL_MILLIS = 1000L;
+
+  private final Connection connection;
+  private final TracingConnection tracingConnection;
+  private final OutboxJournal journal;
+  private final ScheduledExecutorService sender;
+  private final RecordBuffer buffer = new RecordBuffer();
+  private final AtomicBoolean sendScheduled = new AtomicBoolean();
+
+  // the following are only touched by the sender thread and confirm listeners
+  private final ConcurrentNavigableMap<Long, Long> unconfirmed = new ConcurrentSkipListMap<>();
+  private volatile Channel channel;
+  private volatile boolean rewind = true;
+  private OutboxJournal.Cursor cursor;
+
+  Outbox(Connection connection, TracingConnection tracingConnection, Path directory,
+      int segmentSize) throws IOException {
+    this.connection = connection;
+    this.tracingConnection = tracingConnection;
+    this.journal = OutboxJournal.open(directory, segmentSize);
+    this.sender = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-outbox-" + directory.getFileName()));
+    sender.scheduleWithFixedDelay(this::send, 0L, RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  void publish(String exchange, String routingKey, boolean mandatory, boolean immediate,
+      AMQP.BasicProperties props, byte[] body) throws IOException {
+    synchronized (buffer) {
+      buffer.reset();
+      DataOutputStream out = buffer.dataOutput;
+      out.writeUTF(exchange);
+      out.writeUTF(routingKey);
+      out.writeByte((mandatory ? 1 : 0) | (immediate ? 2 : 0));
+      PropertiesCodec.write(props, out);
+      out.writeInt(body.length);
+      out.write(body);
+      journal.append(buffer.array(), 0, buffer.size());
+    }
+    replay();
+  }
+
+  /**
+   * Asks the sender thread to send everything not yet sent. Called whenever the connection may
+   * have become healthy again; unsent records are also retried periodically.
+   */
+  public void replay() {
+    if (sendScheduled.compareAndSet(false, true)) {
+      sender.execute(this::send);
+    }
+  }
+
+  /**
+   * @return number of records appended but not yet confirmed by the broker
+   */
+  public long getPendingCount() {
+    return journal.lastSequence() - journal.checkpoint();
+  }
+
+  /**
+   * @return sequence number of the last appended record
+   */
+  public long getLastSequence() {
+    return journal.lastSequence();
+  }
+
+  /**
+   * @return sequence number up to which all records are confirmed by the broker
+   */
+  public long getConfirmedSequence() {
+    return journal.checkpoint();
+  }
+
+  @Override
+  public void close() throws IOException {
+    sender.shutdown();
+    try {
+      sender.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // cleared first, so that the shutdown listener does not schedule a rewind
+    Channel channel = this.channel;
+    this.channel = null;
+    if (channel != null && channel.isOpen()) {
+      try {
+        channel.abort();
+      } catch (IOException ignore) {
+        // nothing to do, unconfirmed records are sent again next time
+      }
+    }
+    journal.close();
+  }
+
+  private void send() {
+    sendScheduled.set(false);
+    try {
+      Channel channel = openChannel();
+      if (channel == null) {
+        return;
+      }
+      if (rewind) {
+        unconfirmed.clear();
+        cursor = journal.cursor(journal.checkpoint() + 1);
+        rewind = false;
+      }
+
+      while (!tracingConnection.isBlocked()) {
+        OutboxJournal.Record record = cursor.next();
+        if (record == null) {
+          return;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.payload));
+        String exchange = in.readUTF();
+        String routingKey = in.readUTF();
+        int flags = in.readByte();
+        AMQP.BasicProperties props = PropertiesCodec.read(in);
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        unconfirmed.put(channel.getNextPublishSeqNo(), record.sequence);
+        channel.basicPublish(exchange, routingKey, (flags & 1) != 0, (flags & 2) != 0, props,
+            body);
+      }
+    } catch (IOException | ShutdownSignalException e) {
+      discardChannel();
+    }
+  }
+
+  private Channel openChannel() throws IOException {
+    Channel channel = this.channel;
+    if (channel != null && channel.isOpen()) {
+      return channel;
+    }
+    if (!connection.isOpen()) {
+      return null;
+    }
+
+    Channel opened = connection.createChannel();
+    opened.confirmSelect();
+    opened.addConfirmListener(
+        (deliveryTag, multiple) -> onConfirm(opened, deliveryTag, multiple),
+        (deliveryTag, multiple) -> onNack(opened));
+    opened.addShutdownListener(cause -> onNack(opened));
+    rewind = true;
+    this.channel = opened;
+    return opened;
+  }
+
+  private void onConfirm(Channel confirmed, long deliveryTag, boolean multiple) throws IOException {
+    if (confirmed != channel) {
+      return;
+    }
+    Long confirmedSequence;
+    if (multiple) {
+      ConcurrentNavigableMap<Long, Long> acked = unconfirmed.headMap(deliveryTag, true);
+      Map.Entry<Long, Long> lastConfirmed = acked.lastEntry();
+      confirmedSequence = lastConfirmed != null ? lastConfirmed.getValue() : null;
+      acked.clear();
+    } else {
+      confirmedSequence = unconfirmed.remove(deliveryTag);
+    }
+    if (confirmedSequence == null) {
+      return;
+    }
+
+    // confirms may arrive before the sender thread is done with the publish, so the checkpoint
+    // follows the confirmed records rather than the sent ones
+    Map.Entry<Long, Long> firstUnconfirmed = unconfirmed.firstEntry();
+    journal.checkpoint(
+        firstUnconfirmed == null ? confirmedSequence : firstUnconfirmed.getValue() - 1);
+  }
+
+  private void onNack(Channel nacked) {
+    if (nacked != channel) {
+      return;
+    }
+    // start over with a fresh channel from the first unconfirmed record on the next retry
+    sender.execute(this::discardChannel);
+  }
+
+  private void discardChannel() {
+    Channel channel = this.channel;
+    this.channel = null;
+    rewind = true;
+    if (channel != null && channel.isOpen()) {
+      try {
+        channel.abort();
+      } catch (IOException ignore) {
+        // already broken
+      }
+    }
+  }
+
+  private static class RecordBuffer extends ByteArrayOutputStream {
+
+    private final DataOutputStream dataOutput = new DataOutputStream(this);
+
+    RecordBuffer() {
+      super(4096);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+}
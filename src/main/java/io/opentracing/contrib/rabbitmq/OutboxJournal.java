@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of memory-mapped, fixed size segment files.
+ *
+ * <p>Each segment starts with a header holding the format version. Each record is
+ * {@code [payload length][crc32][sequence][payload]}. The length is written last, so a record torn
+ * by a process crash reads as the end of the journal. Records up to the checkpoint are considered
+ * done; segments holding only such records are deleted.
+ */
+class OutboxJournal implements Closeable {
+
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String LOCK_FILE = "lock";
+  private static final byte FORMAT_VERSION = 1;
+  // format version, padded so records stay aligned
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+  private static final int END_OF_SEGMENT = -1;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private final MappedByteBuffer checkpointBuffer;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private final CRC32 crc = new CRC32();
+
+  private volatile Segment active;
+  private volatile long lastSequence;
+  private volatile long checkpoint;
+
+  private OutboxJournal(Path directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+
+    Files.createDirectories(directory);
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    lock = lockChannel.tryLock();
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Outbox journal " + directory + " is in use by another process");
+    }
+
+    checkpointBuffer = map(directory.resolve(CHECKPOINT_FILE), 8);
+    checkpoint = checkpointBuffer.getLong(0);
+  }
+
+  static OutboxJournal open(Path directory, int segmentSize) throws IOException {
+    if (segmentSize < 4096) {
+      throw new IllegalArgumentException("segment size must be at least 4096: " + segmentSize);
+    }
+    OutboxJournal journal = new OutboxJournal(directory, segmentSize);
+    try {
+      journal.recover();
+    } catch (IOException | RuntimeException e) {
+      journal.close();
+      throw e;
+    }
+    return journal;
+  }
+
+  private void recover() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+
+    long last = checkpoint;
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      long firstSequence = Long
+          .parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      Segment segment = new Segment(file, firstSequence, map(file, segmentSize));
+      segment.scan();
+      segments.add(segment);
+      last = Math.max(last, segment.lastSequence);
+    }
+    lastSequence = last;
+
+    if (segments.isEmpty()) {
+      active = roll();
+    } else {
+      active = segments.get(segments.size() - 1);
+      if (active.sealed || active.lastSequence < lastSequence) {
+        active = roll();
+      }
+    }
+    deleteCompletedSegments();
+  }
+
+  /**
+   * @return sequence number assigned to the record
+   */
+  synchronized long append(byte[] payload, int offset, int length) throws IOException {
+    int recordSize = HEADER_SIZE + length;
+    // leave room for the end of segment marker
+    if (SEGMENT_HEADER_SIZE + recordSize + 4 > segmentSize) {
+      throw new IOException(
+          "Record of " + length + " bytes does not fit into journal segment of " + segmentSize);
+    }
+
+    Segment segment = active;
+    if (segment.limit + recordSize + 4 > segmentSize) {
+      segment.seal();
+      segment = active = roll();
+    }
+
+    long sequence = lastSequence + 1;
+    int position = segment.limit;
+    ByteBuffer writer = segment.writer;
+    writer.position(position + 8);
+    writer.putLong(sequence);
+    writer.put(payload, offset, length);
+
+    crc.reset();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (sequence >>> shift));
+    }
+    crc.update(payload, offset, length);
+    writer.putInt(position + 4, (int) crc.getValue());
+    writer.putInt(position, length);
+
+    segment.limit = position + recordSize;
+    segment.lastSequence = sequence;
+    lastSequence = sequence;
+    return sequence;
+  }
+
+  long lastSequence() {
+    return lastSequence;
+  }
+
+  long checkpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * Marks all records up to and including the sequence as done.
+   */
+  synchronized void checkpoint(long sequence) throws IOException {
+    if (sequence <= checkpoint) {
+      return;
+    }
+    checkpointBuffer.putLong(0, sequence);
+    checkpoint = sequence;
+    deleteCompletedSegments();
+  }
+
+  /**
+   * @return cursor positioned at the first record with a sequence not lower than the given one
+   */
+  Cursor cursor(long fromSequence) {
+    Segment start = segments.get(0);
+    for (Segment segment : segments) {
+      if (segment.firstSequence <= fromSequence) {
+        start = segment;
+      }
+    }
+    Cursor cursor = new Cursor(start);
+    cursor.skipTo(fromSequence);
+    return cursor;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+    checkpointBuffer.force();
+    try {
+      lock.release();
+    } finally {
+      lockChannel.close();
+    }
+  }
+
+  private void deleteCompletedSegments() throws IOException {
+    for (Segment segment : segments) {
+      if (segment == active || segment.lastSequence > checkpoint) {
+        break;
+      }
+      segments.remove(segment);
+      Files.deleteIfExists(segment.path);
+    }
+  }
+
+  private Segment roll() throws IOException {
+    long firstSequence = lastSequence + 1;
+    Path file = directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+    Segment segment = new Segment(file, firstSequence, map(file, segmentSize));
+    segment.buffer.put(0, FORMAT_VERSION);
+    segment.limit = SEGMENT_HEADER_SIZE;
+    segments.add(segment);
+    return segment;
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      if (raf.length() < size) {
+        raf.setLength(size);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static final class Segment {
+
+    private final Path path;
+    private final long firstSequence;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer writer;
+    private volatile int limit;
+    private volatile long lastSequence;
+    private volatile boolean sealed;
+
+    Segment(Path path, long firstSequence, MappedByteBuffer buffer) {
+      this.path = path;
+      this.firstSequence = firstSequence;
+      this.buffer = buffer;
+      this.writer = buffer.duplicate();
+      this.lastSequence = firstSequence - 1;
+    }
+
+    void scan() throws IOException {
+      byte version = buffer.get(0);
+      if (version == 0 && buffer.getInt(SEGMENT_HEADER_SIZE) == 0) {
+        // rolled, but the process died before the header made it to disk
+        buffer.put(0, FORMAT_VERSION);
+      } else if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported outbox journal format " + version + " in " + path);
+      }
+
+      CRC32 crc = new CRC32();
+      byte[] chunk = new byte[8192];
+      int position = SEGMENT_HEADER_SIZE;
+      long expected = firstSequence;
+      while (position + HEADER_SIZE <= buffer.capacity()) {
+        int length = buffer.getInt(position);
+        if (length == END_OF_SEGMENT) {
+          sealed = true;
+          break;
+        }
+        if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()
+            || buffer.getLong(position + 8) != expected
+            || buffer.getInt(position + 4) != checksum(crc, chunk, position, length)) {
+          break;
+        }
+        position += HEADER_SIZE + length;
+        expected++;
+      }
+      limit = position;
+      lastSequence = expected - 1;
+
+      if (!sealed && position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+        // torn record left by a crash, wipe it so it can not be mistaken for data later
+        for (int i = position; i < buffer.capacity(); i++) {
+          buffer.put(i, (byte) 0);
+        }
+      }
+    }
+
+    private int checksum(CRC32 crc, byte[] chunk, int position, int length) {
+      ByteBuffer data = buffer.duplicate();
+      data.position(position + 8);
+      data.limit(position + HEADER_SIZE + length);
+      crc.reset();
+      while (data.hasRemaining()) {
+        int n = Math.min(chunk.length, data.remaining());
+        data.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+      return (int) crc.getValue();
+    }
+
+    void seal() {
+      if (limit + 4 <= buffer.capacity()) {
+        buffer.putInt(limit, END_OF_SEGMENT);
+      }
+      sealed = true;
+    }
+  }
+
+  static final class Record {
+
+    final long sequence;
+    final byte[] payload;
+
+    Record(long sequence, byte[] payload) {
+      this.sequence = sequence;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Reads records in order. Not thread safe, but may be used concurrently with appends.
+   */
+  final class Cursor {
+
+    private Segment segment;
+    private int position;
+    private long nextSequence;
+
+    private Cursor(Segment segment) {
+      this.segment = segment;
+      this.position = SEGMENT_HEADER_SIZE;
+      this.nextSequence = segment.firstSequence;
+    }
+
+    private void skipTo(long sequence) {
+      while (nextSequence < sequence && nextSequence <= lastSequence && advance()) {
+        long skipped = segment.buffer.getLong(position + 8);
+        position += HEADER_SIZE + segment.buffer.getInt(position);
+        nextSequence = skipped + 1;
+      }
+      nextSequence = Math.max(nextSequence, sequence);
+    }
+
+    /**
+     * @return next record or null if the cursor reached the end of the journal
+     */
+    Record next() {
+      if (nextSequence > lastSequence || !advance()) {
+        return null;
+      }
+
+      int length = segment.buffer.getInt(position);
+      long sequence = segment.buffer.getLong(position + 8);
+      byte[] payload = new byte[length];
+      ByteBuffer reader = segment.buffer.duplicate();
+      reader.position(position + HEADER_SIZE);
+      reader.get(payload);
+
+      position += HEADER_SIZE + length;
+      nextSequence = sequence + 1;
+      return new Record(sequence, payload);
+    }
+
+    /**
+     * Moves to the segment holding the next record.
+     */
+    private boolean advance() {
+      while (position >= segment.limit) {
+        if (!segment.sealed && segment == active) {
+          return false;
+        }
+        int index = segments.indexOf(segment);
+        if (index < 0) {
+          // the segment was deleted under us, continue with the oldest one still around
+          segment = segments.get(0);
+        } else if (index + 1 < segments.size()) {
+          segment = segments.get(index + 1);
+        } else {
+          return false;
+        }
+        position = SEGMENT_HEADER_SIZE;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+/**
+ * What a full publish buffer does with a new message while the connection is blocked.
+ */
+public enum OverflowPolicy {
+  /**
+   * Fail the publish with an {@link java.io.IOException}.
+   */
+  REJECT,
+
+  /**
+   * Discard the oldest buffered message to make room.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Wait for room up to the configured timeout, then fail the publish.
+   */
+  BLOCK
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+
+/**
+ * Counts acks of the logical messages of packed deliveries, see {@link MessagePacker}, and settles
+ * a packed delivery with the broker once all of its logical messages are settled.
+ *
+ * <p>A packed delivery is acked if all its logical messages were acked, and nacked with requeue if
+ * any was nacked or rejected with requeue, which redelivers the logical messages already acked as
+ * well. A multiple ack or nack of a logical message settles the earlier deliveries once its own
+ * packed delivery is settled. Tags that are not packed pass through.
+ */
+class PackedAcks {
+
+  private final Channel channel;
+  private final DeliveryTagMap<Pack> packs = new DeliveryTagMap<>();
+
+  PackedAcks(Channel channel) {
+    this.channel = channel;
+  }
+
+  void onDelivery(long deliveryTag, int count) {
+    packs.put(deliveryTag, new Pack(count));
+  }
+
+  synchronized void ack(long deliveryTag, boolean multiple) throws IOException {
+    Pack pack = packs.get(deliveryTag);
+    if (pack == null) {
+      if (multiple) {
+        packs.removeUpTo(deliveryTag, ignored -> {
+        });
+      }
+      channel.basicAck(deliveryTag, multiple);
+      return;
+    }
+    settle(deliveryTag, pack, multiple, false, false);
+  }
+
+  synchronized void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+    Pack pack = packs.get(deliveryTag);
+    if (pack == null) {
+      if (multiple) {
+        packs.removeUpTo(deliveryTag, ignored -> {
+        });
+      }
+      channel.basicNack(deliveryTag, multiple, requeue);
+      return;
+    }
+    settle(deliveryTag, pack, multiple, true, requeue);
+  }
+
+  synchronized void reject(long deliveryTag, boolean requeue) throws IOException {
+    Pack pack = packs.get(deliveryTag);
+    if (pack == null) {
+      channel.basicReject(deliveryTag, requeue);
+      return;
+    }
+    settle(deliveryTag, pack, false, true, requeue);
+  }
+
+  /**
+   * Forgets all packed deliveries, their tags are void once the channel is closed or recovered.
+   */
+  void clear() {
+    packs.clear(ignored -> {
+    });
+  }
+
+  int size() {
+    return packs.size();
+  }
+
+  private void settle(long deliveryTag, Pack pack, boolean multiple, boolean nack,
+      boolean requeue) throws IOException {
+    pack.multiple |= multiple;
+    pack.nacked |= nack;
+    pack.requeue |= requeue;
+    if (--pack.remaining > 0) {
+      return;
+    }
+    // earlier packs are settled along, if multiple
+    if (pack.multiple) {
+      packs.removeUpTo(deliveryTag, ignored -> {
+      });
+    } else {
+      packs.remove(deliveryTag, ignored -> {
+      });
+    }
+    if (pack.nacked) {
+      channel.basicNack(deliveryTag, pack.multiple, pack.requeue);
+    } else {
+      channel.basicAck(deliveryTag, pack.multiple);
+    }
+  }
+
+  private static final class Pack {
+
+    int remaining;
+    boolean multiple;
+    boolean nacked;
+    boolean requeue;
+
+    Pack(int count) {
+      this.remaining = count;
+    }
+  }
+}
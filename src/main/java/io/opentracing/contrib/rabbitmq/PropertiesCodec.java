@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.LongString;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@link AMQP.BasicProperties} field by field through their public getters: a bit mask of
+ * the fields present, followed by their values. Header values keep their type, except that long
+ * strings are read back as {@link String}.
+ */
+final class PropertiesCodec {
+
+  private static final int CONTENT_TYPE = 1;
+  private static final int CONTENT_ENCODING = 1 << 1;
+  private static final int HEADERS = 1 << 2;
+  private static final int DELIVERY_MODE = 1 << 3;
+  private static final int PRIORITY = 1 << 4;
+  private static final int CORRELATION_ID = 1 << 5;
+  private static final int REPLY_TO = 1 << 6;
+  private static final int EXPIRATION = 1 << 7;
+  private static final int MESSAGE_ID = 1 << 8;
+  private static final int TIMESTAMP = 1 << 9;
+  private static final int TYPE = 1 << 10;
+  private static final int USER_ID = 1 << 11;
+  private static final int APP_ID = 1 << 12;
+  private static final int CLUSTER_ID = 1 << 13;
+  private static final int PRESENT = 1 << 14;
+
+  private PropertiesCodec() {
+  }
+
+  static void write(AMQP.BasicProperties props, DataOutputStream out) throws IOException {
+    if (props == null) {
+      out.writeShort(0);
+      return;
+    }
+    int mask = PRESENT
+        | flag(props.getContentType(), CONTENT_TYPE)
+        | flag(props.getContentEncoding(), CONTENT_ENCODING)
+        | flag(props.getHeaders(), HEADERS)
+        | flag(props.getDeliveryMode(), DELIVERY_MODE)
+        | flag(props.getPriority(), PRIORITY)
+        | flag(props.getCorrelationId(), CORRELATION_ID)
+        | flag(props.getReplyTo(), REPLY_TO)
+        | flag(props.getExpiration(), EXPIRATION)
+        | flag(props.getMessageId(), MESSAGE_ID)
+        | flag(props.getTimestamp(), TIMESTAMP)
+        | flag(props.getType(), TYPE)
+        | flag(props.getUserId(), USER_ID)
+        | flag(props.getAppId(), APP_ID)
+        | flag(props.getClusterId(), CLUSTER_ID);
+    out.writeShort(mask);
+    writeString(props.getContentType(), out);
+    writeString(props.getContentEncoding(), out);
+    if (props.getHeaders() != null) {
+      writeTable(props.getHeaders(), out);
+    }
+    if (props.getDeliveryMode() != null) {
+      out.writeByte(props.getDeliveryMode());
+    }
+    if (props.getPriority() != null) {
+      out.writeByte(props.getPriority());
+    }
+    writeString(props.getCorrelationId(), out);
+    writeString(props.getReplyTo(), out);
+    writeString(props.getExpiration(), out);
+    writeString(props.getMessageId(), out);
+    if (props.getTimestamp() != null) {
+      out.writeLong(props.getTimestamp().getTime());
+    }
+    writeString(props.getType(), out);
+    writeString(props.getUserId(), out);
+    writeString(props.getAppId(), out);
+    writeString(props.getClusterId(), out);
+  }
+
+  static AMQP.BasicProperties read(DataInputStream in) throws IOException {
+    int mask = in.readUnsignedShort();
+    if (mask == 0) {
+      return null;
+    }
+    if ((mask & ~(PRESENT * 2 - 1)) != 0) {
+      throw new IOException("Unknown message property flags " + Integer.toHexString(mask));
+    }
+    AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+    if ((mask & CONTENT_TYPE) != 0) {
+      builder.contentType(in.readUTF());
+    }
+    if ((mask & CONTENT_ENCODING) != 0) {
+      builder.contentEncoding(in.readUTF());
+    }
+    if ((mask & HEADERS) != 0) {
+      builder.headers(readTable(in));
+    }
+    if ((mask & DELIVERY_MODE) != 0) {
+      builder.deliveryMode(in.readUnsignedByte());
+    }
+    if ((mask & PRIORITY) != 0) {
+      builder.priority(in.readUnsignedByte());
+    }
+    if ((mask & CORRELATION_ID) != 0) {
+      builder.correlationId(in.readUTF());
+    }
+    if ((mask & REPLY_TO) != 0) {
+      builder.replyTo(in.readUTF());
+    }
+    if ((mask & EXPIRATION) != 0) {
+      builder.expiration(in.readUTF());
+    }
+    if ((mask & MESSAGE_ID) != 0) {
+      builder.messageId(in.readUTF());
+    }
+    if ((mask & TIMESTAMP) != 0) {
+      builder.timestamp(new Date(in.readLong()));
+    }
+    if ((mask & TYPE) != 0) {
+      builder.type(in.readUTF());
+    }
+    if ((mask & USER_ID) != 0) {
+      builder.userId(in.readUTF());
+    }
+    if ((mask & APP_ID) != 0) {
+      builder.appId(in.readUTF());
+    }
+    if ((mask & CLUSTER_ID) != 0) {
+      builder.clusterId(in.readUTF());
+    }
+    return builder.build();
+  }
+
+  private static int flag(Object value, int flag) {
+    return value != null ? flag : 0;
+  }
+
+  private static void writeString(String value, DataOutputStream out) throws IOException {
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static void writeTable(Map<String, Object> table, DataOutputStream out)
+      throws IOException {
+    out.writeInt(table.size());
+    for (Map.Entry<String, Object> entry : table.entrySet()) {
+      out.writeUTF(entry.getKey());
+      writeValue(entry.getValue(), out);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void writeValue(Object value, DataOutputStream out) throws IOException {
+    // type tags of the AMQP 0-9-1 field table
+    if (value == null) {
+      out.writeByte('V');
+    } else if (value instanceof String || value instanceof LongString) {
+      byte[] bytes = value instanceof String
+          ? ((String) value).getBytes(StandardCharsets.UTF_8)
+          : ((LongString) value).getBytes();
+      out.writeByte('S');
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    } else if (value instanceof Integer) {
+      out.writeByte('I');
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte('l');
+      out.writeLong((Long) value);
+    } else if (value instanceof Short) {
+      out.writeByte('s');
+      out.writeShort((Short) value);
+    } else if (value instanceof Byte) {
+      out.writeByte('b');
+      out.writeByte((Byte) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte('t');
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte('d');
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte('f');
+      out.writeFloat((Float) value);
+    } else if (value instanceof BigDecimal) {
+      byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+      out.writeByte('D');
+      out.writeInt(((BigDecimal) value).scale());
+      out.writeInt(unscaled.length);
+      out.write(unscaled);
+    } else if (value instanceof Date) {
+      out.writeByte('T');
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof byte[]) {
+      out.writeByte('x');
+      out.writeInt(((byte[]) value).length);
+      out.write((byte[]) value);
+    } else if (value instanceof Map) {
+      out.writeByte('F');
+      writeTable((Map<String, Object>) value, out);
+    } else if (value instanceof List) {
+      out.writeByte('A');
+      out.writeInt(((List<?>) value).size());
+      for (Object element : (List<?>) value) {
+        writeValue(element, out);
+      }
+    } else {
+      throw new IllegalArgumentException("Invalid header value type " + value.getClass());
+    }
+  }
+
+  private static Map<String, Object> readTable(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    Map<String, Object> table = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      String key = in.readUTF();
+      table.put(key, readValue(in));
+    }
+    return table;
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case 'V':
+        return null;
+      case 'S':
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+      case 'I':
+        return in.readInt();
+      case 'l':
+        return in.readLong();
+      case 's':
+        return in.readShort();
+      case 'b':
+        return in.readByte();
+      case 't':
+        return in.readBoolean();
+      case 'd':
+        return in.readDouble();
+      case 'f':
+        return in.readFloat();
+      case 'D':
+        int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      case 'T':
+        return new Date(in.readLong());
+      case 'x':
+        return readBytes(in);
+      case 'F':
+        return readTable(in);
+      case 'A':
+        int size = in.readInt();
+        List<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in));
+        }
+        return list;
+      default:
+        throw new IOException("Unknown header value type " + (char) tag);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-channel queue of publishes held back while the broker blocks the connection.
+ */
+class PublishBuffer {
+
+  private final Channel channel;
+  private final TracingConnection connection;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long timeoutNanos;
+
+  private final ArrayDeque<PendingPublish> queue = new ArrayDeque<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private boolean draining;
+
+  PublishBuffer(Channel channel, TracingConnection connection, int capacity,
+      OverflowPolicy overflowPolicy, long timeoutNanos) {
+    this.channel = channel;
+    this.connection = connection;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Returns false if the message should be published directly, i.e. the connection is not blocked
+   * and nothing is waiting in front of it.
+   */
+  boolean offer(Span span, String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    PendingPublish dropped = null;
+    RejectedExecutionException rejected = null;
+    lock.lock();
+    try {
+      if (queue.isEmpty() && !connection.isBlocked()) {
+        return false;
+      }
+
+      if (queue.size() >= capacity) {
+        switch (overflowPolicy) {
+          case DROP_OLDEST:
+            dropped = queue.poll();
+            break;
+          case BLOCK:
+            awaitRoom();
+            break;
+          default:
+            connection.onPublishRejected();
+            throw new IOException(
+                "Publish buffer is full (" + capacity + " messages) while connection is blocked");
+        }
+      }
+
+      if (!draining && !connection.isBlocked()) {
+        // unblocked while we were waiting for room, nobody else is going to drain; the drain
+        // waits for the lock, so it finds the message queued below
+        try {
+          connection.drainExecutor().execute(this::drain);
+          draining = true;
+        } catch (RejectedExecutionException e) {
+          rejected = e;
+        }
+      }
+      if (rejected == null) {
+        queue.add(
+            new PendingPublish(span, exchange, routingKey, mandatory, immediate, props, body));
+        connection.onPublishBuffered();
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (dropped != null) {
+      connection.onPublishDropped();
+      dropped.fail("dropped from full publish buffer");
+    }
+    if (rejected != null) {
+      // the caller's span is finished by the caller
+      failAll("connection closed");
+      throw new IOException("Connection is closing", rejected);
+    }
+    return true;
+  }
+
+  private void awaitRoom() throws IOException {
+    long nanos = timeoutNanos;
+    try {
+      while (queue.size() >= capacity) {
+        if (nanos <= 0L) {
+          connection.onPublishRejected();
+          throw new IOException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+              + " ms waiting for room in publish buffer");
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for room in publish buffer", e);
+    }
+  }
+
+  /**
+   * Drains on the connection's drain thread, or fails the buffered publishes if the connection is
+   * closing.
+   */
+  void scheduleDrain() {
+    lock.lock();
+    try {
+      if (draining || queue.isEmpty()) {
+        return;
+      }
+      draining = true;
+    } finally {
+      lock.unlock();
+    }
+    try {
+      connection.drainExecutor().execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      lock.lock();
+      try {
+        draining = false;
+      } finally {
+        lock.unlock();
+      }
+      failAll("connection closed");
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      PendingPublish pending;
+      lock.lock();
+      try {
+        pending = queue.peek();
+        if (pending == null || connection.isBlocked()) {
+          draining = false;
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      // the message stays at the head of the queue until it is on the wire so that concurrent
+      // publishers keep queueing behind it
+      pending.send(channel);
+
+      lock.lock();
+      try {
+        queue.poll();
+        connection.onPublishDrained();
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  void failAll(String reason) {
+    ArrayDeque<PendingPublish> pending;
+    lock.lock();
+    try {
+      pending = new ArrayDeque<>(queue);
+      queue.clear();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (PendingPublish publish : pending) {
+      connection.onPublishDropped();
+      publish.fail(reason);
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static class PendingPublish {
+
+    private final Span span;
+    private final String exchange;
+    private final String routingKey;
+    private final boolean mandatory;
+    private final boolean immediate;
+    private final AMQP.BasicProperties props;
+    private final byte[] body;
+    private final long enqueuedAt = System.nanoTime();
+
+    PendingPublish(Span span, String exchange, String routingKey, boolean mandatory,
+        boolean immediate, AMQP.BasicProperties props, byte[] body) {
+      this.span = span;
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.mandatory = mandatory;
+      this.immediate = immediate;
+      this.props = props;
+      this.body = body;
+    }
+
+    void send(Channel channel) {
+      span.setTag(SpanDecorator.BLOCKED_TIME_TAG,
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - enqueuedAt));
+      try {
+        channel.basicPublish(exchange, routingKey, mandatory, immediate, props, body);
+      } catch (IOException | RuntimeException e) {
+        SpanDecorator.onError(e, span);
+      } finally {
+        span.finish();
+      }
+    }
+
+    void fail(String reason) {
+      span.setTag(SpanDecorator.BLOCKED_TIME_TAG,
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - enqueuedAt));
+      Tags.ERROR.set(span, Boolean.TRUE);
+      span.log(Collections.singletonMap("event", reason));
+      span.finish();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Polls the depth and consumer count of registered queues with passive declares on a dedicated
+ * channel, so that readers get them from memory. While a queue has a recent sample,
+ * {@link TracingChannel#messageCount(String)} and {@link TracingChannel#consumerCount(String)} of
+ * the sampling connection are served from it too.
+ *
+ * <p>Sampling runs on a thread of its own. A missing queue closes the sampling channel, so it is
+ * sampled again only after a backoff that doubles up to {@link #MAX_BACKOFF} intervals.
+ */
+public class QueueSampler implements Closeable {
+
+  static final int MAX_BACKOFF = 64;
+
+  private final Connection connection;
+  private final long intervalNanos;
+  private final ConcurrentMap<String, SampledQueue> queues = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+  private volatile boolean closed;
+
+  // only replaced by the sampling thread
+  private volatile Channel channel;
+
+  QueueSampler(Connection connection, long interval, TimeUnit unit) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive: " + interval);
+    }
+    this.connection = connection;
+    this.intervalNanos = unit.toNanos(interval);
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-queue-sampler-" + connection));
+    executor.scheduleWithFixedDelay(this::sample, 0L, interval, unit);
+  }
+
+  public void register(String queue) {
+    queues.computeIfAbsent(queue, SampledQueue::new);
+  }
+
+  public void unregister(String queue) {
+    queues.remove(queue);
+  }
+
+  /**
+   * @return latest sample of the queue, or null if it was not sampled yet or does not exist
+   */
+  public QueueStats getStats(String queue) {
+    SampledQueue sampled = queues.get(queue);
+    return sampled != null ? sampled.stats : null;
+  }
+
+  /**
+   * @return latest sample of the queue if it is not older than two sampling intervals
+   */
+  QueueStats freshStats(String queue) {
+    SampledQueue sampled = queues.get(queue);
+    if (sampled == null || sampled.stats == null) {
+      return null;
+    }
+    return System.nanoTime() - sampled.sampledAt <= 2 * intervalNanos ? sampled.stats : null;
+  }
+
+  void onDelivery(String queue) {
+    SampledQueue sampled = queues.get(queue);
+    if (sampled != null) {
+      sampled.deliveries.increment();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+    Channel channel = this.channel;
+    if (channel != null) {
+      try {
+        channel.abort();
+      } catch (IOException ignore) {
+        // closing anyway
+      }
+    }
+  }
+
+  private void sample() {
+    if (closed || !connection.isOpen()) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (SampledQueue sampled : queues.values()) {
+      if (sampled.backoff > 0 && now - sampled.retryAt < 0) {
+        continue;
+      }
+      try {
+        sample(sampled);
+        sampled.backoff = 0;
+      } catch (IOException | ShutdownSignalException e) {
+        // the queue is gone, or the connection is; either way the channel is closed
+        sampled.stats = null;
+        channel = null;
+        if (isNotFound(e)) {
+          sampled.backoff = Math.min(Math.max(1, 2 * sampled.backoff), MAX_BACKOFF);
+          sampled.retryAt = now + sampled.backoff * intervalNanos;
+        }
+      }
+    }
+  }
+
+  private static boolean isNotFound(Exception e) {
+    Throwable cause = e instanceof ShutdownSignalException ? e : e.getCause();
+    if (!(cause instanceof ShutdownSignalException)) {
+      return false;
+    }
+    Object reason = ((ShutdownSignalException) cause).getReason();
+    return reason instanceof AMQP.Channel.Close
+        && ((AMQP.Channel.Close) reason).getReplyCode() == AMQP.NOT_FOUND;
+  }
+
+  private void sample(SampledQueue sampled) throws IOException {
+    Channel channel = this.channel;
+    if (channel == null || !channel.isOpen()) {
+      channel = connection.createChannel();
+      if (channel == null) {
+        throw new IOException("No channel available to sample queues");
+      }
+      this.channel = channel;
+    }
+    AMQP.Queue.DeclareOk declareOk = channel.queueDeclarePassive(sampled.queue);
+    long now = System.nanoTime();
+    long deliveries = sampled.deliveries.sum();
+
+    double netRate = 0.0;
+    double deliveryRate = 0.0;
+    QueueStats previous = sampled.stats;
+    if (previous != null) {
+      double seconds = (now - sampled.sampledAt) / 1e9;
+      netRate = (declareOk.getMessageCount() - previous.getMessageCount()) / seconds;
+      deliveryRate = (deliveries - sampled.sampledDeliveries) / seconds;
+    }
+    sampled.sampledAt = now;
+    sampled.sampledDeliveries = deliveries;
+    sampled.stats = new QueueStats(sampled.queue, declareOk.getMessageCount(),
+        declareOk.getConsumerCount(), System.currentTimeMillis(), netRate, deliveryRate);
+  }
+
+  private static final class SampledQueue {
+
+    final String queue;
+    final LongAdder deliveries = new LongAdder();
+    volatile QueueStats stats;
+    volatile long sampledAt;
+    long sampledDeliveries;
+    // sampling intervals to skip after the queue was found missing
+    int backoff;
+    long retryAt;
+
+    SampledQueue(String queue) {
+      this.queue = queue;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of a queue taken by a {@link QueueSampler}. Rates are in messages per second, averaged
+ * over the last sampling interval.
+ *
+ * <p>The broker only reports the depth of a queue, so {@link #getNetRate()} is the only rate that
+ * covers all publishers and consumers. {@link #getDeliveryRate()} counts deliveries to consumers
+ * on the sampling connection, and {@link #getIngressRate()} is derived from both. It is exact when
+ * this connection hosts all consumers of the queue, and too low otherwise.
+ */
+public final class QueueStats {
+
+  private final String queue;
+  private final long messageCount;
+  private final long consumerCount;
+  private final long timestamp;
+  private final double netRate;
+  private final double deliveryRate;
+
+  QueueStats(String queue, long messageCount, long consumerCount, long timestamp, double netRate,
+      double deliveryRate) {
+    this.queue = queue;
+    this.messageCount = messageCount;
+    this.consumerCount = consumerCount;
+    this.timestamp = timestamp;
+    this.netRate = netRate;
+    this.deliveryRate = deliveryRate;
+  }
+
+  public String getQueue() {
+    return queue;
+  }
+
+  /**
+   * @return messages ready for delivery, not counting delivered ones waiting for an ack
+   */
+  public long getMessageCount() {
+    return messageCount;
+  }
+
+  public long getConsumerCount() {
+    return consumerCount;
+  }
+
+  /**
+   * @return when the sample was taken, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return change of the queue depth, negative while the queue drains
+   */
+  public double getNetRate() {
+    return netRate;
+  }
+
+  /**
+   * @return deliveries to consumers on the sampling connection
+   */
+  public double getDeliveryRate() {
+    return deliveryRate;
+  }
+
+  /**
+   * @return estimated rate of messages entering the queue
+   */
+  public double getIngressRate() {
+    return Math.max(0.0, netRate + deliveryRate);
+  }
+
+  /**
+   * @return estimated time until the queue is empty at the current net rate, or -1 if the queue is
+   * not draining
+   */
+  public long getDrainTime(TimeUnit unit) {
+    if (messageCount == 0) {
+      return 0;
+    }
+    if (netRate >= 0.0) {
+      return -1;
+    }
+    double seconds = messageCount / -netRate;
+    return unit.convert((long) (seconds * 1e9), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return "QueueStats{queue='" + queue + "', messageCount=" + messageCount
+        + ", consumerCount=" + consumerCount + ", netRate=" + netRate
+        + ", deliveryRate=" + deliveryRate + '}';
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket for publishes, set on channels with {@link TracingChannel#setRateLimiter} and
+ * possibly shared by several of them.
+ *
+ * <p>Implemented as a generic cell rate algorithm: a single theoretical arrival time, advanced by
+ * one emission interval per permit with a compare and set, stands for the bucket. A publish
+ * conforms while the theoretical arrival time is at most the burst tolerance ahead of now, so up to
+ * {@code burst} publishes pass at once and then at the rate, without a lock or a refill thread.
+ */
+public class RateLimiter {
+
+  private final double permitsPerSecond;
+  private final int burst;
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+  private final LongAdder throttledCount = new LongAdder();
+  private final LongAdder throttledNanos = new LongAdder();
+
+  /**
+   * @param burst publishes that may pass at once after a quiet period
+   */
+  public RateLimiter(double permitsPerSecond, int burst) {
+    if (!(permitsPerSecond > 0)) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+    }
+    if (burst <= 0) {
+      throw new IllegalArgumentException("burst must be positive: " + burst);
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    this.toleranceNanos = intervalNanos * (burst - 1);
+  }
+
+  public double getRate() {
+    return permitsPerSecond;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * @return publishes that had to wait or were refused
+   */
+  public long getThrottledCount() {
+    return throttledCount.sum();
+  }
+
+  /**
+   * @return total time publishes waited for this limiter
+   */
+  public long getThrottledTime(TimeUnit unit) {
+    return unit.convert(throttledNanos.sum(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Takes a permit, possibly from the future.
+   *
+   * @return how long to wait before using it, 0 if right away
+   */
+  long reserve(long now) {
+    while (true) {
+      long arrival = theoreticalArrival.get();
+      long next = (arrival - now > 0 ? arrival : now) + intervalNanos;
+      if (theoreticalArrival.compareAndSet(arrival, next)) {
+        long wait = arrival - toleranceNanos - now;
+        return wait > 0 ? wait : 0L;
+      }
+    }
+  }
+
+  /**
+   * Takes a permit only if it can be used right away.
+   */
+  boolean tryAcquire(long now) {
+    while (true) {
+      long arrival = theoreticalArrival.get();
+      if (arrival - toleranceNanos - now > 0) {
+        throttledCount.increment();
+        return false;
+      }
+      long next = (arrival - now > 0 ? arrival : now) + intervalNanos;
+      if (theoreticalArrival.compareAndSet(arrival, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back a permit taken by {@link #reserve} or {@link #tryAcquire} that went unused.
+   */
+  void refund() {
+    theoreticalArrival.addAndGet(-intervalNanos);
+  }
+
+  void onThrottled(long nanos) {
+    throttledCount.increment();
+    throttledNanos.add(nanos);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import java.io.IOException;
+
+/**
+ * Reassembles chunked streams for a {@link StreamConsumer}. Without auto ack, the acks of chunks
+ * before the last are held by {@link StreamAcks} and settled with the last one, and chunks of
+ * streams the reassembler dropped are nacked. Messages that are not chunked are passed on as a
+ * stream of their body.
+ */
+class ReassemblingConsumer extends DefaultConsumer implements SpanAwareConsumer {
+
+  private final Tracer tracer;
+  private final StreamAcks acks;
+  private final StreamReassembler reassembler;
+  private final StreamConsumer consumer;
+
+  /**
+   * @param acks holds the acks of chunks, or null with auto ack
+   */
+  ReassemblingConsumer(TracingChannel channel, Tracer tracer, StreamAcks acks,
+      StreamReassembler reassembler, StreamConsumer consumer) {
+    super(channel);
+    this.tracer = tracer;
+    this.acks = acks;
+    this.reassembler = reassembler;
+    this.consumer = consumer;
+  }
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Span span) throws IOException {
+    long deliveryTag = envelope.getDeliveryTag();
+    StreamReassembler.Reassembled stream = reassembler.add(properties, body, tracer, acks,
+        deliveryTag);
+    if (stream == null) {
+      // held or dropped
+      return;
+    }
+    if (acks != null) {
+      acks.onHandedOver(deliveryTag, stream.chunkTags());
+    }
+    Span streamSpan = stream.span() != null ? stream.span() : span;
+    try {
+      consumer.handleStream(consumerTag, envelope, properties, stream.input(), streamSpan);
+    } catch (IOException | RuntimeException e) {
+      if (streamSpan != null) {
+        SpanDecorator.onError(e, streamSpan);
+      }
+      throw e;
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body) throws IOException {
+    handleDelivery(consumerTag, envelope, properties, body, null);
+  }
+}
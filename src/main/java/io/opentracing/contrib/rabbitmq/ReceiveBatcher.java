@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import io.opentracing.References;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.tag.Tags;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Summarizes the deliveries of a channel in one "receive-batch" span per batch instead of one
+ * "receive" span per delivery. A batch ends after a number of deliveries or once its first
+ * delivery is older than the window, whichever comes first.
+ *
+ * <p>Per delivery only counters are updated and the message properties may be kept in a
+ * reservoir sample. Span contexts are extracted from the sample when the batch ends, and the
+ * span follows from each of them.
+ */
+class ReceiveBatcher {
+
+  private final Tracer tracer;
+  private final int maxDeliveries;
+  private final int maxReferences;
+  private final long windowNanos;
+
+  // guarded by this
+  private Batch batch;
+
+  ReceiveBatcher(Tracer tracer, int maxDeliveries, int maxReferences, long windowNanos) {
+    if (maxDeliveries <= 0) {
+      throw new IllegalArgumentException("maxDeliveries must be positive: " + maxDeliveries);
+    }
+    if (maxReferences < 0) {
+      throw new IllegalArgumentException("maxReferences must not be negative: " + maxReferences);
+    }
+    if (windowNanos <= 0) {
+      throw new IllegalArgumentException("window must be positive: " + windowNanos + " ns");
+    }
+    this.tracer = tracer;
+    this.maxDeliveries = maxDeliveries;
+    this.maxReferences = maxReferences;
+    this.windowNanos = windowNanos;
+    this.batch = new Batch(maxReferences);
+  }
+
+  /**
+   * @param handlerNanos time the consumer took, or -1 if there was no consumer
+   */
+  void record(AMQP.BasicProperties props, byte[] body, long handlerNanos) {
+    Batch full = null;
+    synchronized (this) {
+      batch.add(props, body != null ? body.length : 0, handlerNanos);
+      if (batch.count >= maxDeliveries || System.nanoTime() - batch.startNanos >= windowNanos) {
+        full = batch;
+        batch = new Batch(maxReferences);
+      }
+    }
+    if (full != null) {
+      finish(full);
+    }
+  }
+
+  /**
+   * Ends the current batch if it is older than the window, so that it does not wait for the next
+   * delivery.
+   */
+  void flushIfDue() {
+    Batch due;
+    synchronized (this) {
+      if (batch.count == 0 || System.nanoTime() - batch.startNanos < windowNanos) {
+        return;
+      }
+      due = batch;
+      batch = new Batch(maxReferences);
+    }
+    finish(due);
+  }
+
+  void flush() {
+    Batch current;
+    synchronized (this) {
+      if (batch.count == 0) {
+        return;
+      }
+      current = batch;
+      batch = new Batch(maxReferences);
+    }
+    finish(current);
+  }
+
+  private void finish(Batch batch) {
+    Tracer.SpanBuilder spanBuilder = tracer.buildSpan("receive-batch")
+        .ignoreActiveSpan()
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CONSUMER)
+        .withStartTimestamp(batch.startMicros);
+    int references = Math.min(batch.withHeaders, batch.sample.length);
+    for (int i = 0; i < references; i++) {
+      SpanContext context = tracer.extract(Format.Builtin.TEXT_MAP,
+          new HeadersMapExtractAdapter(batch.sample[i].getHeaders()));
+      if (context != null) {
+        spanBuilder.addReference(References.FOLLOWS_FROM, context);
+      }
+    }
+    Span span = spanBuilder.start();
+    SpanDecorator.onReceiveBatch(span, batch.count, batch.bytes);
+    if (batch.timed > 0) {
+      SpanDecorator.onHandlerTimes(span, batch.minNanos / 1000, batch.sumNanos / batch.timed / 1000,
+          batch.maxNanos / 1000);
+    }
+    span.finish();
+  }
+
+  private static final class Batch {
+
+    final AMQP.BasicProperties[] sample;
+    // set by the first delivery, so that an idle channel does not age an empty batch
+    long startNanos;
+    long startMicros;
+    int count;
+    long bytes;
+    int withHeaders;
+    int timed;
+    long minNanos = Long.MAX_VALUE;
+    long maxNanos;
+    long sumNanos;
+
+    Batch(int maxReferences) {
+      this.sample = new AMQP.BasicProperties[maxReferences];
+    }
+
+    void add(AMQP.BasicProperties props, int bodySize, long handlerNanos) {
+      if (count++ == 0) {
+        startNanos = System.nanoTime();
+        startMicros = System.currentTimeMillis() * 1000;
+      }
+      bytes += bodySize;
+      if (handlerNanos >= 0) {
+        timed++;
+        minNanos = Math.min(minNanos, handlerNanos);
+        maxNanos = Math.max(maxNanos, handlerNanos);
+        sumNanos += handlerNanos;
+      }
+      if (props == null || props.getHeaders() == null || sample.length == 0) {
+        return;
+      }
+      // reservoir sampling, every message with headers has the same chance to be referenced
+      int seen = withHeaders++;
+      if (seen < sample.length) {
+        sample[seen] = props;
+      } else {
+        int slot = ThreadLocalRandom.current().nextInt(seen + 1);
+        if (slot < sample.length) {
+          sample[slot] = props;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the broker round trip of a connection with a synchronous basic.qos on a channel of its
+ * own, every interval, into a {@link LatencyHistogram}. The probe runs on a thread of its own, so
+ * a stalled broker does not hold up the connection's other background work, and the age of an
+ * unanswered probe shows how long a stall has lasted so far.
+ *
+ * <p>Blocked, unblocked, shutdown and recovery events of the connection, failed probes and probes
+ * slower than the slow threshold are kept in a ring of recent events, each with the round trip
+ * measured last. A round trip that stays low while message latency grows points at consumers; one
+ * that grows with it points at the network or the broker, and at a missed heartbeat when it
+ * exceeds the heartbeat interval.
+ */
+public class RoundTripProbe implements Closeable {
+
+  static final int MAX_EVENTS = 256;
+
+  private final Connection connection;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+  private final Deque<ConnectionEvent> events = new ArrayDeque<>();
+  private final ScheduledExecutorService executor;
+  private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(100);
+  private volatile long lastRoundTripNanos = -1;
+  private volatile long probeStartedNanos;
+  private volatile boolean probing;
+  private volatile boolean closed;
+
+  // only touched by the probe thread
+  private Channel channel;
+
+  RoundTripProbe(Connection connection, long interval, TimeUnit unit) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive: " + interval);
+    }
+    this.connection = connection;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("rabbitmq-round-trip-probe-" + connection));
+    executor.scheduleWithFixedDelay(this::probe, 0L, interval, unit);
+  }
+
+  /**
+   * @param threshold round trips above it are recorded as events, 100 milliseconds by default
+   */
+  public void setSlowThreshold(long threshold, TimeUnit unit) {
+    this.slowThresholdNanos = unit.toNanos(threshold);
+  }
+
+  public LatencyHistogram getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * @return latest round trip, or -1 if none was measured yet
+   */
+  public long getLastRoundTrip(TimeUnit unit) {
+    long nanos = lastRoundTripNanos;
+    return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return how long the current probe has been waiting for the broker, 0 if none is
+   */
+  public long getCurrentStall(TimeUnit unit) {
+    return probing ? unit.convert(System.nanoTime() - probeStartedNanos, TimeUnit.NANOSECONDS)
+        : 0;
+  }
+
+  /**
+   * @return recent events, oldest first
+   */
+  public List<ConnectionEvent> getEvents() {
+    synchronized (events) {
+      return new ArrayList<>(events);
+    }
+  }
+
+  void onEvent(ConnectionEvent.Type type, String detail) {
+    ConnectionEvent event = new ConnectionEvent(type, System.currentTimeMillis(), detail,
+        lastRoundTripNanos);
+    synchronized (events) {
+      if (events.size() == MAX_EVENTS) {
+        events.removeFirst();
+      }
+      events.addLast(event);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+    Channel channel = this.channel;
+    if (channel != null) {
+      try {
+        channel.abort();
+      } catch (IOException ignore) {
+        // closing anyway
+      }
+    }
+  }
+
+  private void probe() {
+    if (closed || !connection.isOpen()) {
+      return;
+    }
+    try {
+      if (channel == null || !channel.isOpen()) {
+        channel = connection.createChannel();
+        if (channel == null) {
+          throw new IOException("No channel available to probe the broker");
+        }
+      }
+      probeStartedNanos = System.nanoTime();
+      probing = true;
+      channel.basicQos(0);
+      long roundTrip = System.nanoTime() - probeStartedNanos;
+      probing = false;
+      lastRoundTripNanos = roundTrip;
+      histogram.record(roundTrip, TimeUnit.NANOSECONDS);
+      if (roundTrip > slowThresholdNanos) {
+        onEvent(ConnectionEvent.Type.SLOW_ROUND_TRIP, slowDetail(roundTrip));
+      }
+    } catch (IOException | ShutdownSignalException e) {
+      probing = false;
+      channel = null;
+      if (!closed) {
+        onEvent(ConnectionEvent.Type.PROBE_FAILED, e.toString());
+      }
+    }
+  }
+
+  private String slowDetail(long roundTripNanos) {
+    int heartbeat = connection.getHeartbeat();
+    if (heartbeat > 0 && roundTripNanos > TimeUnit.SECONDS.toNanos(heartbeat)) {
+      return "longer than the heartbeat interval of " + heartbeat + "s";
+    }
+    return null;
+  }
+}
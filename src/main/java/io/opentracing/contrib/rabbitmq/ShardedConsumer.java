@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Consumes all shards of a {@link ShardedPublisher} in parallel, each on a channel of its own
+ * connection. The shard is tagged on the receive span.
+ *
+ * <p>Within a shard deliveries keep their order, so messages of a key are consumed in order
+ * except while they move to a shard that was just added.
+ */
+public class ShardedConsumer implements Closeable {
+
+  private final Function<Channel, Consumer> consumerFactory;
+  private final boolean autoAck;
+  private final Map<String, TracingChannel> shards = new LinkedHashMap<>();
+
+  /**
+   * @param consumerFactory creates the consumer of each shard's channel
+   */
+  public ShardedConsumer(Function<Channel, Consumer> consumerFactory, boolean autoAck) {
+    this.consumerFactory = consumerFactory;
+    this.autoAck = autoAck;
+  }
+
+  public synchronized void addShard(TracingConnection connection, String queue)
+      throws IOException {
+    if (shards.containsKey(queue)) {
+      throw new IllegalArgumentException("Shard already added: " + queue);
+    }
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    if (channel == null) {
+      throw new IOException("No channel available for shard " + queue);
+    }
+    try {
+      Consumer consumer = consumerFactory.apply(channel);
+      channel.basicConsume(queue, autoAck, consumer instanceof SpanAwareConsumer
+          ? new SpanAwareTaggingConsumer(queue, (SpanAwareConsumer) consumer, connection.tracer())
+          : new TaggingConsumer(queue, consumer, connection.tracer()));
+    } catch (IOException | RuntimeException e) {
+      channel.abort();
+      throw e;
+    }
+    shards.put(queue, channel);
+  }
+
+  /**
+   * Closes the shard's channel, deliveries not acked yet go back to the queue.
+   */
+  public synchronized boolean removeShard(String queue) {
+    TracingChannel channel = shards.remove(queue);
+    if (channel == null) {
+      return false;
+    }
+    close(channel);
+    return true;
+  }
+
+  public synchronized int getShardCount() {
+    return shards.size();
+  }
+
+  @Override
+  public synchronized void close() {
+    for (TracingChannel channel : shards.values()) {
+      close(channel);
+    }
+    shards.clear();
+  }
+
+  private static void close(TracingChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException | TimeoutException | ShutdownSignalException ignore) {
+      // closed already
+    }
+  }
+
+  /**
+   * Tags the receive span, which is active while a plain consumer runs.
+   */
+  private static class TaggingConsumer implements Consumer {
+
+    final String queue;
+    final Consumer consumer;
+    final Tracer tracer;
+
+    TaggingConsumer(String queue, Consumer consumer, Tracer tracer) {
+      this.queue = queue;
+      this.consumer = consumer;
+      this.tracer = tracer;
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+      consumer.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+      consumer.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+      consumer.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+      consumer.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+      consumer.handleRecoverOk(consumerTag);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+        AMQP.BasicProperties properties, byte[] body) throws IOException {
+      Span span = tracer.activeSpan();
+      if (span != null) {
+        SpanDecorator.onShard(span, queue);
+      }
+      consumer.handleDelivery(consumerTag, envelope, properties, body);
+    }
+  }
+
+  /**
+   * Tags the receive span passed to a span aware consumer.
+   */
+  private static final class SpanAwareTaggingConsumer extends TaggingConsumer implements
+      SpanAwareConsumer {
+
+    SpanAwareTaggingConsumer(String queue, SpanAwareConsumer consumer, Tracer tracer) {
+      super(queue, consumer, tracer);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+        AMQP.BasicProperties properties, byte[] body, Span span) throws IOException {
+      if (span != null) {
+        SpanDecorator.onShard(span, queue);
+      }
+      ((SpanAwareConsumer) consumer).handleDelivery(consumerTag, envelope, properties, body, span);
+    }
+  }
+}
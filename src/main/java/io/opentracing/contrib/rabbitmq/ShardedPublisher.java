@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.opentracing.Span;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Spreads messages over several queues, the shards, by consistent hashing of a message key, so
+ * that a stream is not limited to what one queue can take. Shards may live on different
+ * connections, and so on different nodes. Messages with the same key go to the same shard as long
+ * as the shards do not change; adding a shard moves only the keys it takes over.
+ *
+ * <p>Each shard is published to through a channel of its own, by the default exchange. The shard
+ * is tagged on the send span. {@link ShardedConsumer} consumes all shards.
+ */
+public class ShardedPublisher implements Closeable {
+
+  /**
+   * Points per shard on the hash ring, which keeps the shards within about five percent of an equal
+   * share of the keys.
+   */
+  static final int POINTS_PER_SHARD = 512;
+
+  private volatile HashRing<Shard> ring = new HashRing<>(POINTS_PER_SHARD);
+
+  /**
+   * @param queue queue of the new shard, which must exist
+   */
+  public synchronized void addShard(TracingConnection connection, String queue)
+      throws IOException {
+    if (ring.contains(queue)) {
+      throw new IllegalArgumentException("Shard already added: " + queue);
+    }
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    if (channel == null) {
+      throw new IOException("No channel available for shard " + queue);
+    }
+    ring = ring.with(queue, new Shard(queue, channel));
+  }
+
+  /**
+   * Stops publishing to the shard, its keys go to the other shards.
+   */
+  public synchronized boolean removeShard(String queue) {
+    Shard shard = ring.member(queue);
+    if (shard == null) {
+      return false;
+    }
+    ring = ring.without(queue);
+    shard.close();
+    return true;
+  }
+
+  public List<String> getShards() {
+    return ring.names();
+  }
+
+  /**
+   * @return queue the key's messages go to, or null if there are no shards
+   */
+  public String getShard(String key) {
+    return ring.owner(key);
+  }
+
+  public void publish(String key, AMQP.BasicProperties props, byte[] body) throws IOException {
+    HashRing<Shard> ring = this.ring;
+    String queue = ring.owner(key);
+    if (queue == null) {
+      throw new IOException("No shards to publish to");
+    }
+    ring.member(queue).publish(props, body);
+  }
+
+  @Override
+  public synchronized void close() {
+    for (String queue : ring.names()) {
+      ring.member(queue).close();
+    }
+    ring = new HashRing<>(POINTS_PER_SHARD);
+  }
+
+  private static final class Shard {
+
+    final String queue;
+    final TracingChannel channel;
+
+    Shard(String queue, TracingChannel channel) {
+      this.queue = queue;
+      this.channel = channel;
+    }
+
+    /**
+     * Channels must not be shared by concurrent publishers.
+     */
+    synchronized void publish(AMQP.BasicProperties props, byte[] body) throws IOException {
+      Span span = channel.buildSpan("", props);
+      SpanDecorator.onShard(span, queue);
+      channel.publish(span, "", queue, false, false, props, body);
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException | TimeoutException | ShutdownSignalException ignore) {
+        // closed already
+      }
+    }
+  }
+}
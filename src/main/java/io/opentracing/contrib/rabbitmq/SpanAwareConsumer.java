@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import java.io.IOException;
+
+/**
+ * Consumer that gets the "receive" span passed explicitly. {@link TracingConsumer} starts the span
+ * of such consumers without activating it, which saves a scope push and pop in the tracer's
+ * {@link io.opentracing.ScopeManager} per delivery. The span is finished when
+ * {@link #handleDelivery(String, Envelope, AMQP.BasicProperties, byte[], Span)} returns.
+ */
+public interface SpanAwareConsumer extends Consumer {
+
+  /**
+   * @param span "receive" span of the delivery, or null if the message carries no span context
+   */
+  void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      byte[] body, Span span) throws IOException;
+
+  @Override
+  default void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body) throws IOException {
+    handleDelivery(consumerTag, envelope, properties, body, null);
+  }
+}
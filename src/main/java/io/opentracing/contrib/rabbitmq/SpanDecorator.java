@@ -16,11 +16,58 @@ package io.opentracing.contrib.rabbitmq;
 
 import io.opentracing.Span;
 import io.opentracing.tag.Tags;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 class SpanDecorator {
 
   static final String COMPONENT_NAME = "java-rabbitmq";
 
+  static final String BLOCKED_TIME_TAG = "rabbitmq.blocked_us";
+
+  static final String THROTTLED_TIME_TAG = "rabbitmq.throttled_us";
+
+  static final String SLOW_HANDLER_TAG = "rabbitmq.slow_handler";
+
+  static final String COALESCED_TAG = "rabbitmq.coalesced";
+
+  static final String BATCH_SIZE_TAG = "rabbitmq.batch_size";
+
+  static final String BATCH_BYTES_TAG = "rabbitmq.batch_bytes";
+
+  static final String STREAM_CHUNKS_TAG = "rabbitmq.stream_chunks";
+
+  static final String STREAM_BYTES_TAG = "rabbitmq.stream_bytes";
+
+  static final String STREAM_SPILLED_TAG = "rabbitmq.stream_spilled";
+
+  static final String QUEUE_WAIT_TAG = "rabbitmq.queue_wait_us";
+
+  static final String HANDLER_MIN_TAG = "rabbitmq.handler_min_us";
+
+  static final String HANDLER_AVG_TAG = "rabbitmq.handler_avg_us";
+
+  static final String HANDLER_MAX_TAG = "rabbitmq.handler_max_us";
+
+  static final String SERIALIZE_TIME_TAG = "rabbitmq.serialize_us";
+
+  static final String DESERIALIZE_TIME_TAG = "rabbitmq.deserialize_us";
+
+  static final String SHARD_TAG = "rabbitmq.shard";
+
+  static final String NODE_TAG = "rabbitmq.node";
+
+  static final String NODE_CONNECT_TIME_TAG = "rabbitmq.node_connect_us";
+
+  static final String NODE_ROUND_TRIP_TAG = "rabbitmq.node_rtt_us";
+
+  static final String HEALTHY_NODES_TAG = "rabbitmq.nodes_healthy";
+
+  static final String DECLARED_TAG = "rabbitmq.declared";
+
+  static final String DECLARE_SKIPPED_TAG = "rabbitmq.declare_skipped";
+
   static void onRequest(String exchange, Span span) {
     Tags.COMPONENT.set(span, COMPONENT_NAME);
     Tags.MESSAGE_BUS_DESTINATION.set(span, exchange);
@@ -29,4 +76,106 @@ class SpanDecorator {
   static void onResponse(Span span) {
     Tags.COMPONENT.set(span, COMPONENT_NAME);
   }
+
+  static void onDeclare(Span span, int declared, int skipped) {
+    Tags.COMPONENT.set(span, COMPONENT_NAME);
+    span.setTag(DECLARED_TAG, declared);
+    span.setTag(DECLARE_SKIPPED_TAG, skipped);
+  }
+
+  static void onCommit(Span span, int batchSize) {
+    Tags.COMPONENT.set(span, COMPONENT_NAME);
+    span.setTag(BATCH_SIZE_TAG, batchSize);
+  }
+
+  static void onReceiveBatch(Span span, int count, long bytes) {
+    Tags.COMPONENT.set(span, COMPONENT_NAME);
+    span.setTag(BATCH_SIZE_TAG, count);
+    span.setTag(BATCH_BYTES_TAG, bytes);
+  }
+
+  static void onPack(Span span, int count, long bytes) {
+    span.setTag(BATCH_SIZE_TAG, count);
+    span.setTag(BATCH_BYTES_TAG, bytes);
+  }
+
+  static void onStream(Span span, int chunks, long bytes) {
+    span.setTag(STREAM_CHUNKS_TAG, chunks);
+    span.setTag(STREAM_BYTES_TAG, bytes);
+  }
+
+  static void onSpill(Span span, boolean spilled) {
+    span.setTag(STREAM_SPILLED_TAG, spilled);
+  }
+
+  static void onQueueWait(Span span, long nanos) {
+    if (nanos >= 0L) {
+      span.setTag(QUEUE_WAIT_TAG, nanos / 1000);
+    }
+  }
+
+  static void onHandlerTimes(Span span, long minMicros, long avgMicros, long maxMicros) {
+    span.setTag(HANDLER_MIN_TAG, minMicros);
+    span.setTag(HANDLER_AVG_TAG, avgMicros);
+    span.setTag(HANDLER_MAX_TAG, maxMicros);
+  }
+
+  static void onSerialize(Span span, long nanos) {
+    span.setTag(SERIALIZE_TIME_TAG, nanos / 1000);
+  }
+
+  static void onDeserialize(Span span, long nanos) {
+    span.setTag(DESERIALIZE_TIME_TAG, nanos / 1000);
+  }
+
+  static void onThrottle(Span span, long nanos) {
+    if (nanos > 0L) {
+      span.setTag(THROTTLED_TIME_TAG, nanos / 1000);
+    }
+  }
+
+  static void onSlowHandler(Span span, long elapsedNanos, StackTraceElement[] stack) {
+    span.setTag(SLOW_HANDLER_TAG, true);
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("event", "slow_handler");
+    fields.put("elapsed_us", elapsedNanos / 1000);
+    StringBuilder builder = new StringBuilder();
+    for (StackTraceElement element : stack) {
+      builder.append("\tat ").append(element).append('\n');
+    }
+    fields.put("stack", builder.toString());
+    span.log(fields);
+  }
+
+  static void onCoalesce(Span span, int replaced) {
+    span.setTag(COALESCED_TAG, replaced);
+  }
+
+  static void onShard(Span span, String queue) {
+    span.setTag(SHARD_TAG, queue);
+  }
+
+  static void onConnect(Span span, NodeStats node, int healthyNodes) {
+    Tags.COMPONENT.set(span, COMPONENT_NAME);
+    span.setTag(HEALTHY_NODES_TAG, healthyNodes);
+    if (node != null) {
+      span.setTag(NODE_TAG, node.getAddress().toString());
+      span.setTag(NODE_CONNECT_TIME_TAG, node.getConnectLatency(TimeUnit.MICROSECONDS));
+      span.setTag(NODE_ROUND_TRIP_TAG, node.getRoundTripLatency(TimeUnit.MICROSECONDS));
+    }
+  }
+
+  static void onError(Throwable throwable, Span span) {
+    Tags.ERROR.set(span, Boolean.TRUE);
+    span.log(errorLogs(throwable));
+  }
+
+  private static Map<String, Object> errorLogs(Throwable throwable) {
+    Map<String, Object> errorLogs = new HashMap<>(4);
+    errorLogs.put("event", Tags.ERROR.getKey());
+    errorLogs.put("error.kind", throwable.getClass().getName());
+    errorLogs.put("error.object", throwable);
+    errorLogs.put("message", throwable.getMessage());
+    return errorLogs;
+  }
 }
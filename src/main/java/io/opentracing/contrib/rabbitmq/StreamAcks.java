@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Holds the acks of stream chunks, see {@link StreamReassembler}, until the consumer settles the
+ * stream with the delivery tag of its last chunk.
+ *
+ * <p>Settling the last chunk settles the earlier chunks of its stream along, so that a stream is
+ * acked, or requeued, as a whole, one chunk at a time. Only a multiple ack or nack of the consumer
+ * settles them all at once, if no chunk of a partial stream comes before its tag; a single one is
+ * never widened, as the channel may hold unsettled deliveries of other consumers. Chunks of
+ * partial streams are left out of multiple acks and nacks of the consumer, and chunks of dropped
+ * streams are nacked without requeue. Tags not delivered to the stream consumer pass through.
+ */
+class StreamAcks {
+
+  private static final long[] NO_CHUNKS = new long[0];
+
+  private final TracingChannel channel;
+  // guarded by this: chunks of partial streams, and deliveries handed over to the stream consumer
+  // with the chunks they settle
+  private final TreeSet<Long> held = new TreeSet<>();
+  private final TreeMap<Long, long[]> handedOver = new TreeMap<>();
+
+  StreamAcks(TracingChannel channel) {
+    this.channel = channel;
+  }
+
+  synchronized void onHeld(long deliveryTag) {
+    held.add(deliveryTag);
+  }
+
+  /**
+   * @param chunks tags of the earlier chunks of a reassembled stream, or null for a message that
+   * is not chunked
+   */
+  synchronized void onHandedOver(long deliveryTag, long[] chunks) {
+    if (chunks == null) {
+      chunks = NO_CHUNKS;
+    }
+    for (long chunk : chunks) {
+      held.remove(chunk);
+    }
+    handedOver.put(deliveryTag, chunks);
+  }
+
+  /**
+   * Nacks chunks of a dropped stream without requeue. Failures are ignored, the tags are void once
+   * the channel is closed.
+   */
+  synchronized void drop(long... chunks) {
+    for (long chunk : chunks) {
+      held.remove(chunk);
+      try {
+        channel.basicNack(chunk, false, false);
+      } catch (IOException | RuntimeException ignore) {
+        // redelivered if the channel is still open
+      }
+    }
+  }
+
+  /**
+   * @return whether the tag was settled through the settler, otherwise it is not a delivery handed
+   * over to the stream consumer and left to the caller
+   */
+  synchronized boolean settle(long deliveryTag, boolean multiple, Settler settler)
+      throws IOException {
+    NavigableMap<Long, long[]> settled = multiple
+        ? handedOver.headMap(deliveryTag, true)
+        : handedOver.subMap(deliveryTag, true, deliveryTag, true);
+    if (settled.isEmpty()) {
+      return false;
+    }
+    if (multiple && held.headSet(deliveryTag).isEmpty()) {
+      settler.settle(deliveryTag, true);
+    } else {
+      for (long[] chunks : settled.values()) {
+        for (long chunk : chunks) {
+          settler.settle(chunk, false);
+        }
+      }
+      for (long tag : settled.keySet()) {
+        settler.settle(tag, false);
+      }
+    }
+    settled.clear();
+    return true;
+  }
+
+  /**
+   * Forgets all deliveries, their tags are void once the channel is closed or recovered.
+   */
+  synchronized void clear() {
+    held.clear();
+    handedOver.clear();
+  }
+
+  interface Settler {
+
+    void settle(long deliveryTag, boolean multiple) throws IOException;
+  }
+}
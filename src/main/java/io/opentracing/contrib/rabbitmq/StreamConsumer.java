@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Consumer of streams published in chunks, see
+ * {@link TracingChannel#basicConsume(String, boolean, StreamReassembler, StreamConsumer)}.
+ */
+public interface StreamConsumer {
+
+  /**
+   * @param envelope envelope of the last chunk, whose delivery tag acks the stream
+   * @param stream the reassembled payload, only readable until this method returns
+   * @param span "receive" span of the stream, or null if the message carries no span context
+   */
+  void handleStream(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      InputStream stream, Span span) throws IOException;
+}
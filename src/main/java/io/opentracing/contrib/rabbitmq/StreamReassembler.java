@@ -0,0 +1,379 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles streams published in chunks with
+ * {@link TracingChannel#publishStream(String, String, AMQP.BasicProperties, InputStream)}.
+ *
+ * <p>Chunks are kept in memory while all partial streams together take less than the heap limit,
+ * and a stream that would exceed it is spilled to a temporary file, so a stream of any size takes
+ * bounded heap. A stream is dropped, with its file, if a chunk is missing or out of order, if the
+ * publisher aborted it, or if no chunk arrived for the timeout. The chunks of a stream must all
+ * go to one consumer, so a queue of streams should have a single consumer.
+ *
+ * <p>A stream has a "receive" span from its first chunk until the {@link StreamConsumer} returns,
+ * tagged with the number of chunks and bytes, and whether it was spilled.
+ */
+public class StreamReassembler implements Closeable {
+
+  static final String STREAM_ID_HEADER = "x-stream-id";
+  static final String SEQUENCE_HEADER = "x-stream-seq";
+  static final String LAST_HEADER = "x-stream-last";
+  static final String ABORT_HEADER = "x-stream-abort";
+
+  private final long maxHeapBytes;
+  private final Path spillDirectory;
+  private final long timeoutNanos;
+  // guarded by this
+  private final Map<String, PartialStream> streams = new HashMap<>();
+  private long heapBytes;
+  private long completedCount;
+  private long droppedCount;
+  private long spilledCount;
+
+  /**
+   * @param maxHeapBytes heap taken by all partial streams together before they spill
+   * @param spillDirectory where streams are spilled to
+   * @param timeout how long a partial stream waits for its next chunk
+   */
+  public StreamReassembler(long maxHeapBytes, Path spillDirectory, long timeout, TimeUnit unit) {
+    this.maxHeapBytes = maxHeapBytes;
+    this.spillDirectory = spillDirectory;
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  public synchronized int getPartialCount() {
+    return streams.size();
+  }
+
+  public synchronized long getHeapBytes() {
+    return heapBytes;
+  }
+
+  public synchronized long getCompletedCount() {
+    return completedCount;
+  }
+
+  /**
+   * @return number of streams dropped as incomplete
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  public synchronized long getSpilledCount() {
+    return spilledCount;
+  }
+
+  /**
+   * @param acks holds the acks of kept chunks and nacks those of dropped streams, or null with
+   * auto ack
+   * @return the stream completed by the message, or the message itself if it is not a chunk, or
+   * null if the chunk was kept or dropped
+   */
+  Reassembled add(AMQP.BasicProperties props, byte[] body, Tracer tracer, StreamAcks acks,
+      long deliveryTag) throws IOException {
+    Map<String, Object> headers = props != null ? props.getHeaders() : null;
+    Object id = headers != null ? headers.get(STREAM_ID_HEADER) : null;
+    if (id == null) {
+      return new Reassembled(new ByteArrayInputStream(body), null, null, 0, null);
+    }
+    Object sequence = headers.get(SEQUENCE_HEADER);
+    int seq = sequence instanceof Number ? ((Number) sequence).intValue() : -1;
+    String streamId = id.toString();
+    synchronized (this) {
+      expire();
+      PartialStream stream = streams.get(streamId);
+      if (headers.get(ABORT_HEADER) != null) {
+        drop(stream, "aborted");
+        dropChunk(acks, deliveryTag);
+        return null;
+      }
+      if (seq == 0) {
+        // sent again from the start
+        drop(stream, "restarted");
+        stream = new PartialStream(streamId, TracingUtils.startChildSpan(props, tracer), acks);
+        streams.put(streamId, stream);
+      } else if (stream == null || seq != stream.nextSeq) {
+        if (stream == null) {
+          droppedCount++;
+        }
+        drop(stream, "gap");
+        dropChunk(acks, deliveryTag);
+        return null;
+      }
+      try {
+        append(stream, body);
+      } catch (IOException | RuntimeException e) {
+        if (stream.span != null) {
+          SpanDecorator.onError(e, stream.span);
+        }
+        drop(stream, "spill_failed");
+        dropChunk(acks, deliveryTag);
+        throw e;
+      }
+      if (headers.get(LAST_HEADER) == null) {
+        stream.hold(deliveryTag);
+        return null;
+      }
+      streams.remove(streamId);
+      completedCount++;
+      try {
+        return stream.complete();
+      } catch (IOException e) {
+        if (acks != null) {
+          acks.drop(stream.heldTags());
+          acks.drop(deliveryTag);
+        }
+        throw e;
+      }
+    }
+  }
+
+  private void append(PartialStream stream, byte[] body) throws IOException {
+    stream.nextSeq++;
+    stream.chunks++;
+    stream.bytes += body.length;
+    stream.lastChunkAt = System.nanoTime();
+    if (stream.memory != null && heapBytes + body.length > maxHeapBytes) {
+      spill(stream);
+    }
+    if (stream.memory != null) {
+      stream.memory.write(body);
+      heapBytes += body.length;
+    } else {
+      stream.fileOut.write(body);
+    }
+  }
+
+  private void spill(PartialStream stream) throws IOException {
+    stream.file = Files.createTempFile(spillDirectory, "rabbitmq-stream-", ".part");
+    stream.fileOut = new BufferedOutputStream(Files.newOutputStream(stream.file), 1 << 16);
+    stream.memory.writeTo(stream.fileOut);
+    heapBytes -= stream.memory.size();
+    stream.memory = null;
+    spilledCount++;
+  }
+
+  /**
+   * Drops partial streams that waited longer than the timeout for their next chunk.
+   */
+  synchronized void expire() {
+    long now = System.nanoTime();
+    for (Iterator<PartialStream> iterator = streams.values().iterator(); iterator.hasNext(); ) {
+      PartialStream stream = iterator.next();
+      if (now - stream.lastChunkAt > timeoutNanos) {
+        iterator.remove();
+        discard(stream, "timeout");
+      }
+    }
+  }
+
+  /**
+   * Drops all partial streams.
+   */
+  @Override
+  public synchronized void close() {
+    for (PartialStream stream : streams.values()) {
+      discard(stream, "closed");
+    }
+    streams.clear();
+  }
+
+  private void drop(PartialStream stream, String event) {
+    if (stream != null) {
+      streams.remove(stream.id);
+      discard(stream, event);
+    }
+  }
+
+  private static void dropChunk(StreamAcks acks, long deliveryTag) {
+    if (acks != null) {
+      acks.drop(deliveryTag);
+    }
+  }
+
+  private void discard(PartialStream stream, String event) {
+    droppedCount++;
+    if (stream.acks != null) {
+      stream.acks.drop(stream.heldTags());
+    }
+    if (stream.memory != null) {
+      heapBytes -= stream.memory.size();
+      stream.memory = null;
+    }
+    stream.deleteFile();
+    if (stream.span != null) {
+      Tags.ERROR.set(stream.span, true);
+      stream.span.log(event);
+      SpanDecorator.onStream(stream.span, stream.chunks, stream.bytes);
+      stream.span.finish();
+    }
+  }
+
+  private final class PartialStream {
+
+    final String id;
+    final Span span;
+    final StreamAcks acks;
+    // delivery tags of the chunks held, with acks
+    long[] tags;
+    int held;
+    int nextSeq;
+    int chunks;
+    long bytes;
+    long lastChunkAt = System.nanoTime();
+    HeapBuffer memory = new HeapBuffer();
+    Path file;
+    OutputStream fileOut;
+
+    PartialStream(String id, Span span, StreamAcks acks) {
+      this.id = id;
+      this.span = span;
+      this.acks = acks;
+      this.tags = acks != null ? new long[16] : null;
+    }
+
+    void hold(long deliveryTag) {
+      if (acks == null) {
+        return;
+      }
+      if (held == tags.length) {
+        tags = Arrays.copyOf(tags, held * 2);
+      }
+      tags[held++] = deliveryTag;
+      acks.onHeld(deliveryTag);
+    }
+
+    Reassembled complete() throws IOException {
+      if (span != null) {
+        SpanDecorator.onStream(span, chunks, bytes);
+        SpanDecorator.onSpill(span, file != null);
+      }
+      if (memory != null) {
+        // released once handled
+        return new Reassembled(memory.toInputStream(), span, null, memory.size(), heldTags());
+      }
+      try {
+        fileOut.close();
+        return new Reassembled(Files.newInputStream(file), span, file, 0, heldTags());
+      } catch (IOException e) {
+        deleteFile();
+        throw e;
+      }
+    }
+
+    long[] heldTags() {
+      return tags != null ? Arrays.copyOf(tags, held) : null;
+    }
+
+    void deleteFile() {
+      if (file == null) {
+        return;
+      }
+      try {
+        fileOut.close();
+      } catch (IOException ignore) {
+        // deleted anyway
+      }
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ignore) {
+        // left to the temp directory's cleanup
+      }
+    }
+  }
+
+  /**
+   * A complete stream, released with {@link #close()}.
+   */
+  final class Reassembled implements Closeable {
+
+    private final InputStream input;
+    private final Span span;
+    private final Path file;
+    private final long heap;
+    private final long[] chunkTags;
+
+    Reassembled(InputStream input, Span span, Path file, long heap, long[] chunkTags) {
+      this.input = input;
+      this.span = span;
+      this.file = file;
+      this.heap = heap;
+      this.chunkTags = chunkTags;
+    }
+
+    InputStream input() {
+      return input;
+    }
+
+    Span span() {
+      return span;
+    }
+
+    /**
+     * @return delivery tags of the chunks before the last, held with acks, or null
+     */
+    long[] chunkTags() {
+      return chunkTags;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        input.close();
+        if (file != null) {
+          Files.deleteIfExists(file);
+        }
+      } finally {
+        synchronized (StreamReassembler.this) {
+          heapBytes -= heap;
+        }
+        if (span != null) {
+          span.finish();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads back without copying the buffer.
+   */
+  private static final class HeapBuffer extends ByteArrayOutputStream {
+
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
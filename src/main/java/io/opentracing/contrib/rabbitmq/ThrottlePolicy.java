@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+/**
+ * What a publish does when a {@link RateLimiter} of its channel has no permit left.
+ */
+public enum ThrottlePolicy {
+  /**
+   * Wait for a permit up to the configured max wait, then fail the publish with an
+   * {@link java.io.IOException}.
+   */
+  BLOCK,
+
+  /**
+   * Fail the publish with an {@link java.io.IOException} right away.
+   */
+  FAIL_FAST
+}
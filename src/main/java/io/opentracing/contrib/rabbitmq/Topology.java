@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Exchanges, queues and bindings to be declared in one go with
+ * {@link TracingConnection#declare(Topology)}.
+ *
+ * <pre>{@code
+ * Topology topology = new Topology()
+ *     .exchange("orders", BuiltinExchangeType.TOPIC, true)
+ *     .queue("orders.created", true)
+ *     .bind("orders.created", "orders", "created");
+ * }</pre>
+ */
+public class Topology {
+
+  private final List<Declaration> declarations = new ArrayList<>();
+
+  public Topology exchange(String exchange, BuiltinExchangeType type, boolean durable) {
+    return exchange(exchange, type, durable, false, null);
+  }
+
+  public Topology exchange(String exchange, BuiltinExchangeType type, boolean durable,
+      boolean autoDelete, Map<String, Object> arguments) {
+    return exchange(exchange, type.getType(), durable, autoDelete, arguments);
+  }
+
+  public Topology exchange(String exchange, String type, boolean durable, boolean autoDelete,
+      Map<String, Object> arguments) {
+    declarations.add(new ExchangeDeclaration(requireName(exchange), type, durable, autoDelete,
+        arguments));
+    return this;
+  }
+
+  public Topology queue(String queue, boolean durable) {
+    return queue(queue, durable, false, false, null);
+  }
+
+  public Topology queue(String queue, boolean durable, boolean exclusive, boolean autoDelete,
+      Map<String, Object> arguments) {
+    declarations.add(new QueueDeclaration(requireName(queue), durable, exclusive, autoDelete,
+        arguments));
+    return this;
+  }
+
+  public Topology bind(String queue, String exchange, String routingKey) {
+    return bind(queue, exchange, routingKey, null);
+  }
+
+  public Topology bind(String queue, String exchange, String routingKey,
+      Map<String, Object> arguments) {
+    declarations.add(new Binding(requireName(queue), requireName(exchange),
+        routingKey != null ? routingKey : "", arguments));
+    return this;
+  }
+
+  List<Declaration> declarations() {
+    return declarations;
+  }
+
+  /**
+   * Server named queues need a round trip to learn the name, so they cannot be declared here.
+   */
+  private static String requireName(String name) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Name must not be empty");
+    }
+    return name;
+  }
+
+  private static Map<String, Object> copy(Map<String, Object> arguments) {
+    return arguments == null || arguments.isEmpty() ? Collections.<String, Object>emptyMap()
+        : Collections.unmodifiableMap(new HashMap<>(arguments));
+  }
+
+  /**
+   * Declarations are compared by value, so an identical one can be skipped once declared.
+   */
+  abstract static class Declaration {
+
+    abstract void declareNoWait(Channel channel) throws IOException;
+
+    /**
+     * @return name of the declared queue or exchange, or of the bound queue
+     */
+    abstract String name();
+
+    /**
+     * @return whether the broker may delete the entity on its own
+     */
+    boolean autoDelete() {
+      return false;
+    }
+
+    /**
+     * @return whether this declaration is gone once the given queue or exchange is deleted
+     */
+    abstract boolean dependsOn(String name);
+  }
+
+  static final class ExchangeDeclaration extends Declaration {
+
+    private final String exchange;
+    private final String type;
+    private final boolean durable;
+    private final boolean autoDelete;
+    private final Map<String, Object> arguments;
+
+    ExchangeDeclaration(String exchange, String type, boolean durable, boolean autoDelete,
+        Map<String, Object> arguments) {
+      this.exchange = exchange;
+      this.type = type;
+      this.durable = durable;
+      this.autoDelete = autoDelete;
+      this.arguments = copy(arguments);
+    }
+
+    @Override
+    String name() {
+      return exchange;
+    }
+
+    @Override
+    void declareNoWait(Channel channel) throws IOException {
+      channel.exchangeDeclareNoWait(exchange, type, durable, autoDelete, false, arguments);
+    }
+
+    @Override
+    boolean autoDelete() {
+      return autoDelete;
+    }
+
+    @Override
+    boolean dependsOn(String name) {
+      return exchange.equals(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ExchangeDeclaration)) {
+        return false;
+      }
+      ExchangeDeclaration that = (ExchangeDeclaration) o;
+      return durable == that.durable && autoDelete == that.autoDelete
+          && exchange.equals(that.exchange) && type.equals(that.type)
+          && arguments.equals(that.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(exchange, type, durable, autoDelete, arguments);
+    }
+  }
+
+  static final class QueueDeclaration extends Declaration {
+
+    private final String queue;
+    private final boolean durable;
+    private final boolean exclusive;
+    private final boolean autoDelete;
+    private final Map<String, Object> arguments;
+
+    QueueDeclaration(String queue, boolean durable, boolean exclusive, boolean autoDelete,
+        Map<String, Object> arguments) {
+      this.queue = queue;
+      this.durable = durable;
+      this.exclusive = exclusive;
+      this.autoDelete = autoDelete;
+      this.arguments = copy(arguments);
+    }
+
+    @Override
+    String name() {
+      return queue;
+    }
+
+    @Override
+    void declareNoWait(Channel channel) throws IOException {
+      channel.queueDeclareNoWait(queue, durable, exclusive, autoDelete, arguments);
+    }
+
+    @Override
+    boolean autoDelete() {
+      return autoDelete;
+    }
+
+    @Override
+    boolean dependsOn(String name) {
+      return queue.equals(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof QueueDeclaration)) {
+        return false;
+      }
+      QueueDeclaration that = (QueueDeclaration) o;
+      return durable == that.durable && exclusive == that.exclusive
+          && autoDelete == that.autoDelete && queue.equals(that.queue)
+          && arguments.equals(that.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(queue, durable, exclusive, autoDelete, arguments);
+    }
+  }
+
+  static final class Binding extends Declaration {
+
+    private final String queue;
+    private final String exchange;
+    private final String routingKey;
+    private final Map<String, Object> arguments;
+
+    Binding(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+      this.queue = queue;
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.arguments = copy(arguments);
+    }
+
+    @Override
+    String name() {
+      return queue;
+    }
+
+    @Override
+    void declareNoWait(Channel channel) throws IOException {
+      channel.queueBindNoWait(queue, exchange, routingKey, arguments);
+    }
+
+    @Override
+    boolean dependsOn(String name) {
+      return queue.equals(name) || exchange.equals(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Binding)) {
+        return false;
+      }
+      Binding that = (Binding) o;
+      return queue.equals(that.queue) && exchange.equals(that.exchange)
+          && routingKey.equals(that.routingKey) && arguments.equals(that.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(queue, exchange, routingKey, arguments);
+    }
+  }
+}
@@ -24,33 +24,507 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.ConsumerShutdownSignalCallback;
 import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.GetResponse;
 import com.rabbitmq.client.Method;
 import com.rabbitmq.client.ReturnCallback;
 import com.rabbitmq.client.ReturnListener;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
-import io.opentracing.Scope;
+import io.opentracing.References;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Format;
 import io.opentracing.tag.Tags;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class TracingChannel implements Channel {
 
+  /**
+   * Frame header and end marker around the payload of a body frame.
+   */
+  static final int FRAME_OVERHEAD = 8;
+  static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
   private final Channel channel;
   private final Tracer tracer;
+  private final TracingConnection connection;
+  private final PublishBuffer publishBuffer;
+  private volatile Deduplicator deduplicator;
+  private volatile DeliveryTagMap<Span> unackedSpans;
+  private volatile TrafficRecorder trafficRecorder;
+  private volatile ReceiveBatcher receiveBatcher;
+  private volatile HandlerWatchdog handlerWatchdog;
+  private volatile RateLimiter rateLimiter;
+  private volatile Map<String, RateLimiter> exchangeRateLimiters;
+  private volatile ThrottlePolicy throttlePolicy = ThrottlePolicy.BLOCK;
+  private volatile long maxThrottleNanos = Long.MAX_VALUE;
+  private volatile MessagePacker packer;
+  private volatile PackedAcks packedAcks;
+  private volatile StreamAcks streamAcks;
+  private volatile boolean confirmMode;
+  private volatile boolean txMode;
+  // completes once the last async publish is handed on, guarded by asyncLock when replaced
+  private final Object asyncLock = new Object();
+  private volatile CompletableFuture<Void> asyncTail = CompletableFuture.completedFuture(null);
 
   public TracingChannel(Channel channel, Tracer tracer) {
+    this(channel, tracer, null);
+  }
+
+  TracingChannel(Channel channel, Tracer tracer, TracingConnection connection) {
     this.channel = channel;
     this.tracer = tracer;
+    this.connection = connection;
+    this.publishBuffer = connection != null ? connection.newPublishBuffer(channel) : null;
+    if (publishBuffer != null) {
+      channel.addShutdownListener(cause -> connection.removePublishBuffer(publishBuffer));
+    }
+    if (FlightRecorderEvents.isAvailable()) {
+      channel.addConfirmListener(
+          (deliveryTag, multiple) -> FlightRecorderEvents.confirm(deliveryTag, multiple, true),
+          (deliveryTag, multiple) -> FlightRecorderEvents.confirm(deliveryTag, multiple, false));
+    }
+  }
+
+  /**
+   * Skips deliveries to consumers of this channel whose message id was seen before, acking them
+   * if needed. A message id is remembered once its delivery is acked.
+   */
+  public void enableDeduplication(DeduplicationCache cache) {
+    enableDeduplication(cache, null);
+  }
+
+  /**
+   * Like {@link #enableDeduplication(DeduplicationCache)}, but keyed by a header instead of the
+   * message id.
+   */
+  public void enableDeduplication(DeduplicationCache cache, String keyHeader) {
+    Deduplicator deduplicator = new Deduplicator(cache, keyHeader);
+    channel.addShutdownListener(cause -> deduplicator.clear());
+    this.deduplicator = deduplicator;
+  }
+
+  Deduplicator deduplicator() {
+    return deduplicator;
+  }
+
+  void ackDuplicate(long deliveryTag) throws IOException {
+    channel.basicAck(deliveryTag, false);
+  }
+
+  /**
+   * Records publishes and deliveries of this channel, or stops recording if null.
+   */
+  public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+    this.trafficRecorder = trafficRecorder;
+  }
+
+  /**
+   * Keeps the "receive" span of deliveries that need an ack open until they are acked, nacked or
+   * rejected on this channel, instead of finishing it once the consumer returns. Spans still open
+   * when the channel shuts down are finished then.
+   */
+  public void enableAckTracking() {
+    if (unackedSpans != null) {
+      return;
+    }
+    DeliveryTagMap<Span> spans = new DeliveryTagMap<>();
+    channel.addShutdownListener(cause -> spans.clear(span -> finishUnacked(span, "shutdown")));
+    this.unackedSpans = spans;
+  }
+
+  /**
+   * @return number of deliveries waiting for an ack, if ack tracking is enabled
+   */
+  public int getUnackedCount() {
+    DeliveryTagMap<Span> spans = this.unackedSpans;
+    return spans != null ? spans.size() : 0;
+  }
+
+  DeliveryTagMap<Span> unackedSpans() {
+    return unackedSpans;
+  }
+
+  /**
+   * Traces deliveries of this channel with one "receive-batch" span per batch instead of a
+   * "receive" span each. A batch ends after {@code maxDeliveries} deliveries or when its first
+   * delivery is older than the window. The span is tagged with the number and bytes of the
+   * deliveries and the min, average and max consumer time, and follows from the span contexts
+   * of at most {@code maxReferences} of them, sampled at random.
+   *
+   * <p>Consumers are called without an active span, a {@link SpanAwareConsumer} gets null, and
+   * ack tracking does not apply to batched deliveries.
+   */
+  public void enableReceiveBatching(int maxDeliveries, int maxReferences, long window,
+      TimeUnit unit) {
+    ReceiveBatcher batcher = new ReceiveBatcher(tracer, maxDeliveries, maxReferences,
+        unit.toNanos(window));
+    channel.addShutdownListener(cause -> batcher.flush());
+    if (connection != null) {
+      ScheduledFuture<?> task = connection.executor()
+          .scheduleWithFixedDelay(batcher::flushIfDue, window, window, unit);
+      channel.addShutdownListener(cause -> task.cancel(false));
+    }
+    this.receiveBatcher = batcher;
+  }
+
+  ReceiveBatcher receiveBatcher() {
+    return receiveBatcher;
+  }
+
+  /**
+   * Packs messages published on this channel to the same exchange and routing key, with the same
+   * delivery mode, priority and expiration, into one AMQP message with these properties, sent once
+   * it holds {@code maxBytes} or {@code maxMessages}, or once its first message waited for the
+   * linger time. Mandatory and immediate publishes are sent on their own. Each message keeps its
+   * own properties and send span, finished once its pack is sent.
+   *
+   * <p>Traced consumers unpack packed deliveries and hand the messages over one by one, each with
+   * its own "receive" span and the delivery tag of the pack. The pack is acked once all of its
+   * messages are acked, and nacked if any of them is nacked or rejected, which redelivers the
+   * whole pack with requeue. Ack tracking does not apply to packed deliveries.
+   *
+   * <p>Packing is not supported on a channel in confirm or tx mode, whose confirms and
+   * transactions would not cover the messages waiting in packs.
+   */
+  public synchronized void enablePacking(int maxBytes, int maxMessages, long linger,
+      TimeUnit unit) {
+    if (packer != null) {
+      throw new IllegalStateException("Packing is already enabled");
+    }
+    if (confirmMode || txMode) {
+      throw new IllegalStateException("Packing is not supported in confirm or tx mode");
+    }
+    MessagePacker packer = new MessagePacker(this, maxBytes, maxMessages, unit.toNanos(linger));
+    if (connection != null) {
+      ScheduledFuture<?> task = connection.executor()
+          .scheduleWithFixedDelay(packer::flushIfDue, linger, linger, unit);
+      channel.addShutdownListener(cause -> task.cancel(false));
+    }
+    channel.addShutdownListener(cause -> packer.discard("shutdown"));
+    this.packer = packer;
+  }
+
+  /**
+   * Sends the messages waiting in packs, if packing is enabled. Closing the channel does so too.
+   */
+  public void flushPacks() throws IOException {
+    MessagePacker packer = this.packer;
+    if (packer != null) {
+      packer.flush();
+    }
+  }
+
+  /**
+   * @return number of messages waiting in packs
+   */
+  public int getPackedPendingCount() {
+    MessagePacker packer = this.packer;
+    return packer != null ? packer.getPendingCount() : 0;
+  }
+
+  /**
+   * Counts the acks of a packed delivery's messages, to settle it once all are settled.
+   */
+  void onPackedDelivery(long deliveryTag, int count) {
+    PackedAcks acks = this.packedAcks;
+    if (acks == null) {
+      synchronized (this) {
+        acks = this.packedAcks;
+        if (acks == null) {
+          PackedAcks created = new PackedAcks(channel);
+          channel.addShutdownListener(cause -> created.clear());
+          this.packedAcks = acks = created;
+        }
+      }
+    }
+    acks.onDelivery(deliveryTag, count);
+  }
+
+  /**
+   * Holds the acks of stream chunks consumed on this channel, to settle them with their stream.
+   */
+  private StreamAcks streamAcks() {
+    StreamAcks acks = this.streamAcks;
+    if (acks == null) {
+      synchronized (this) {
+        acks = this.streamAcks;
+        if (acks == null) {
+          StreamAcks created = new StreamAcks(this);
+          channel.addShutdownListener(cause -> created.clear());
+          this.streamAcks = acks = created;
+        }
+      }
+    }
+    return acks;
+  }
+
+  /**
+   * Watches consumers of this channel for deliveries taking longer than the watchdog's threshold,
+   * or stops watching if null.
+   */
+  public void setHandlerWatchdog(HandlerWatchdog watchdog) {
+    this.handlerWatchdog = watchdog;
+  }
+
+  HandlerWatchdog handlerWatchdog() {
+    return handlerWatchdog;
+  }
+
+  /**
+   * Limits the rate of publishes on this channel, or lifts the limit if null.
+   */
+  public void setRateLimiter(RateLimiter limiter) {
+    this.rateLimiter = limiter;
+  }
+
+  /**
+   * Limits the rate of publishes to an exchange on this channel, on top of the channel's own
+   * limit, or lifts the limit if null. Sharing the limiter between channels limits the exchange
+   * across them.
+   */
+  public synchronized void setRateLimiter(String exchange, RateLimiter limiter) {
+    Map<String, RateLimiter> limiters = exchangeRateLimiters != null
+        ? new HashMap<>(exchangeRateLimiters) : new HashMap<>();
+    if (limiter != null) {
+      limiters.put(exchange, limiter);
+    } else {
+      limiters.remove(exchange);
+    }
+    exchangeRateLimiters = limiters.isEmpty() ? null : limiters;
+  }
+
+  /**
+   * @param maxWait how long a throttled publish waits at most, unbounded by default
+   */
+  public void setThrottlePolicy(ThrottlePolicy policy, long maxWait, TimeUnit unit) {
+    this.throttlePolicy = policy;
+    this.maxThrottleNanos = unit.toNanos(maxWait);
+  }
+
+  /**
+   * Publishes without waiting for the rate limiters: a throttled message is published on the
+   * connection's background thread once its permit is due. The throttle policy does not apply,
+   * but a message that would wait longer than the max wait is refused. Without a connection the
+   * caller waits.
+   *
+   * <p>Messages take the same path as {@link #basicPublish}, packing included, and keep their
+   * order: an async publish is handed on only after the ones before it, and a synchronous publish
+   * waits for async publishes still pending.
+   *
+   * @return completed once the message is handed to the client, or exceptionally if refused or
+   * failed
+   */
+  public CompletableFuture<Void> basicPublishAsync(String exchange, String routingKey,
+      AMQP.BasicProperties props, byte[] body) {
+    Span span = buildSpan(exchange, props);
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    long wait;
+    try {
+      wait = reserve(exchange, System.nanoTime());
+    } catch (IOException e) {
+      SpanDecorator.onError(e, span);
+      span.finish();
+      future.completeExceptionally(e);
+      return future;
+    }
+    Runnable publish = () -> {
+      SpanDecorator.onThrottle(span, wait);
+      try {
+        publishThrottled(span, exchange, routingKey, false, false, props, body);
+        future.complete(null);
+      } catch (IOException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    };
+    if (connection == null) {
+      try {
+        park(wait);
+      } catch (IOException e) {
+        SpanDecorator.onError(e, span);
+        span.finish();
+        future.completeExceptionally(e);
+        return future;
+      }
+      publish.run();
+      return future;
+    }
+
+    CompletableFuture<Void> previous;
+    synchronized (asyncLock) {
+      previous = asyncTail;
+      asyncTail = future;
+    }
+    if (wait == 0L && previous.isDone()) {
+      publish.run();
+      return future;
+    }
+    try {
+      connection.executor().schedule(() -> previous.whenComplete((ignored, e) -> publish.run()),
+          wait, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      IOException closed = new IOException("Connection is closing", e);
+      SpanDecorator.onError(closed, span);
+      span.finish();
+      future.completeExceptionally(closed);
+    }
+    return future;
+  }
+
+  /**
+   * Waits until async publishes still pending are handed on, so publishes keep their order, for at
+   * most the max wait of the throttle policy.
+   */
+  private void awaitAsyncPublishes() throws IOException {
+    CompletableFuture<Void> tail = asyncTail;
+    if (tail.isDone()) {
+      return;
+    }
+    long maxWait = maxThrottleNanos;
+    try {
+      if (maxWait == Long.MAX_VALUE) {
+        tail.get();
+      } else {
+        tail.get(maxWait, TimeUnit.NANOSECONDS);
+      }
+    } catch (ExecutionException ignore) {
+      // reported to the async caller
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWait)
+          + " ms waiting for async publishes", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for async publishes");
+    }
+  }
+
+  /**
+   * Takes a permit from the rate limiters of the channel and of the exchange, if any.
+   *
+   * @return how long to wait before publishing
+   */
+  private long reserve(String exchange, long now) throws IOException {
+    RateLimiter channelLimiter = this.rateLimiter;
+    Map<String, RateLimiter> exchangeLimiters = this.exchangeRateLimiters;
+    RateLimiter exchangeLimiter = exchangeLimiters != null ? exchangeLimiters.get(exchange) : null;
+    long wait = 0L;
+    if (channelLimiter != null) {
+      wait = channelLimiter.reserve(now);
+    }
+    if (exchangeLimiter != null) {
+      wait = Math.max(wait, exchangeLimiter.reserve(now));
+    }
+    if (wait > maxThrottleNanos) {
+      refund(channelLimiter, exchangeLimiter);
+      throw new IOException("Publish to '" + exchange + "' would wait "
+          + TimeUnit.NANOSECONDS.toMillis(wait) + " ms for the rate limit");
+    }
+    if (wait > 0L) {
+      if (channelLimiter != null) {
+        channelLimiter.onThrottled(wait);
+      }
+      if (exchangeLimiter != null && exchangeLimiter != channelLimiter) {
+        exchangeLimiter.onThrottled(wait);
+      }
+    }
+    return wait;
+  }
+
+  /**
+   * Applies the throttle policy before a publish.
+   *
+   * @return how long the publish waited
+   */
+  private long throttle(String exchange) throws IOException {
+    if (rateLimiter == null && exchangeRateLimiters == null) {
+      return 0L;
+    }
+    long now = System.nanoTime();
+    if (throttlePolicy == ThrottlePolicy.FAIL_FAST) {
+      RateLimiter channelLimiter = this.rateLimiter;
+      Map<String, RateLimiter> exchangeLimiters = this.exchangeRateLimiters;
+      RateLimiter exchangeLimiter =
+          exchangeLimiters != null ? exchangeLimiters.get(exchange) : null;
+      if (channelLimiter != null && !channelLimiter.tryAcquire(now)) {
+        throw new IOException("Publish rate limit of channel exceeded");
+      }
+      if (exchangeLimiter != null && !exchangeLimiter.tryAcquire(now)) {
+        refund(channelLimiter, null);
+        throw new IOException("Publish rate limit of exchange '" + exchange + "' exceeded");
+      }
+      return 0L;
+    }
+    long wait = reserve(exchange, now);
+    park(wait);
+    return wait;
+  }
+
+  private static void park(long nanos) throws IOException {
+    long deadline = System.nanoTime() + nanos;
+    for (long left = nanos; left > 0L; left = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(left);
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+    }
+  }
+
+  private static void refund(RateLimiter channelLimiter, RateLimiter exchangeLimiter) {
+    if (channelLimiter != null) {
+      channelLimiter.refund();
+    }
+    if (exchangeLimiter != null) {
+      exchangeLimiter.refund();
+    }
+  }
+
+  private void settle(long deliveryTag, boolean multiple, String event) {
+    FlightRecorderEvents.settle(event, deliveryTag, multiple);
+    DeliveryTagMap<Span> spans = this.unackedSpans;
+    if (spans == null) {
+      return;
+    }
+    if (multiple) {
+      spans.removeUpTo(deliveryTag, span -> finishUnacked(span, event));
+    } else {
+      spans.remove(deliveryTag, span -> finishUnacked(span, event));
+    }
+  }
+
+  /**
+   * Lets {@link TracingConnection#declare(Topology)} declare the entity again.
+   */
+  private void forgetDeclared(String name) {
+    if (connection != null) {
+      connection.forgetDeclared(name);
+    }
+  }
+
+  private static void finishUnacked(Span span, String event) {
+    if (span != null) {
+      span.log(event);
+      span.finish();
+    }
   }
 
   @Override
@@ -65,11 +539,13 @@ public class TracingChannel implements Channel {
 
   @Override
   public void close() throws IOException, TimeoutException {
+    flushPacks();
     channel.close();
   }
 
   @Override
   public void close(int closeCode, String closeMessage) throws IOException, TimeoutException {
+    flushPacks();
     channel.close(closeCode, closeMessage);
   }
 
@@ -164,10 +640,237 @@ public class TracingChannel implements Channel {
   @Override
   public void basicPublish(String exchange, String routingKey, boolean mandatory, boolean immediate,
       AMQP.BasicProperties props, byte[] body) throws IOException {
+    publish(buildSpan(exchange, props), exchange, routingKey, mandatory, immediate, props, body);
+  }
+
+  /**
+   * Publishes a value encoded by the codec, which gives the message its content type unless the
+   * properties have one. The time the codec took is tagged on the send span.
+   */
+  public <T> void basicPublish(String exchange, String routingKey, AMQP.BasicProperties props,
+      T value, Codec<T> codec) throws IOException {
+    AMQP.BasicProperties properties = props;
+    if (properties == null) {
+      properties = new AMQP.BasicProperties.Builder().contentType(codec.contentType()).build();
+    } else if (properties.getContentType() == null) {
+      properties = properties.builder().contentType(codec.contentType()).build();
+    }
+    Span span = buildSpan(exchange, properties);
+    long start = System.nanoTime();
+    byte[] body;
+    CodecBuffer buffer = CodecBuffer.forThread();
+    try {
+      codec.encode(value, buffer);
+      body = buffer.toByteArray();
+    } catch (IOException | RuntimeException e) {
+      SpanDecorator.onError(e, span);
+      span.finish();
+      throw e;
+    } finally {
+      buffer.release();
+    }
+    SpanDecorator.onSerialize(span, System.nanoTime() - start);
+    publish(span, exchange, routingKey, false, false, properties, body);
+  }
+
+  /**
+   * Publishes the stream in chunks that each fit a body frame of the connection, so neither side
+   * holds the whole payload. Each chunk is a message with the properties given, the stream's id,
+   * its sequence number, and the context of one "send" span covering the whole stream, tagged with
+   * the number of chunks and bytes. Chunks are throttled like other publishes but bypass the outbox,
+   * the publish buffer and packing.
+   *
+   * <p>If reading the stream or publishing fails, an abort marker is published so consumers drop
+   * the chunks they got instead of waiting for the rest. Traced consumers reassemble streams with
+   * {@link #basicConsume(String, boolean, StreamReassembler, StreamConsumer)}.
+   *
+   * @return number of bytes published
+   */
+  public long publishStream(String exchange, String routingKey, AMQP.BasicProperties props,
+      InputStream in) throws IOException {
+    Span span = buildSpan(exchange, props);
+    String streamId = UUID.randomUUID().toString();
+    int chunkSize = streamChunkSize();
+    int seq = 0;
+    long bytes = 0;
+    long throttled = 0;
+    try {
+      for (boolean last = false; !last; ) {
+        byte[] chunk = readChunk(in, chunkSize);
+        last = chunk.length < chunkSize;
+        throttled += throttle(exchange);
+        channel.basicPublish(exchange, routingKey, false, false,
+            chunkProperties(props, span, streamId, seq,
+                last ? StreamReassembler.LAST_HEADER : null), chunk);
+        seq++;
+        bytes += chunk.length;
+      }
+    } catch (IOException | RuntimeException e) {
+      SpanDecorator.onError(e, span);
+      if (seq > 0) {
+        try {
+          channel.basicPublish(exchange, routingKey, false, false,
+              chunkProperties(props, span, streamId, seq, StreamReassembler.ABORT_HEADER),
+              new byte[0]);
+        } catch (IOException | RuntimeException ignore) {
+          // consumers drop the stream after their timeout
+        }
+      }
+      throw e;
+    } finally {
+      SpanDecorator.onThrottle(span, throttled);
+      SpanDecorator.onStream(span, seq, bytes);
+      span.finish();
+    }
+    return bytes;
+  }
+
+  /**
+   * @see #publishStream(String, String, AMQP.BasicProperties, InputStream)
+   */
+  public long publishStream(String exchange, String routingKey, AMQP.BasicProperties props,
+      ReadableByteChannel in) throws IOException {
+    return publishStream(exchange, routingKey, props, Channels.newInputStream(in));
+  }
+
+  /**
+   * @return the largest chunk that fits a body frame, or a default if frames are unlimited
+   */
+  int streamChunkSize() {
+    Connection connection = channel.getConnection();
+    int frameMax = connection != null ? connection.getFrameMax() : 0;
+    return frameMax > FRAME_OVERHEAD ? frameMax - FRAME_OVERHEAD : DEFAULT_CHUNK_SIZE;
+  }
+
+  /**
+   * @return the next chunk, shorter than the chunk size only at the end of the stream
+   */
+  private static byte[] readChunk(InputStream in, int chunkSize) throws IOException {
+    byte[] chunk = new byte[chunkSize];
+    int length = 0;
+    while (length < chunkSize) {
+      int read = in.read(chunk, length, chunkSize - length);
+      if (read < 0) {
+        break;
+      }
+      length += read;
+    }
+    return length < chunkSize ? Arrays.copyOf(chunk, length) : chunk;
+  }
+
+  private AMQP.BasicProperties chunkProperties(AMQP.BasicProperties props, Span span,
+      String streamId, int seq, String flag) {
+    Map<String, Object> headers = props != null && props.getHeaders() != null
+        ? new HashMap<>(props.getHeaders()) : new HashMap<>();
+    headers.put(StreamReassembler.STREAM_ID_HEADER, streamId);
+    headers.put(StreamReassembler.SEQUENCE_HEADER, seq);
+    if (flag != null) {
+      headers.put(flag, true);
+    }
+    AMQP.BasicProperties.Builder builder =
+        props != null ? props.builder() : new AMQP.BasicProperties.Builder();
+    return inject(builder.headers(headers).build(), span);
+  }
+
+  /**
+   * Publishes with an already started send span and finishes it, possibly after the message has
+   * left the publish buffer on another thread. Waits for the rate limiters first, if any.
+   */
+  void publish(Span span, String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    try {
+      SpanDecorator.onThrottle(span, throttle(exchange));
+      awaitAsyncPublishes();
+    } catch (IOException e) {
+      SpanDecorator.onError(e, span);
+      span.finish();
+      throw e;
+    }
+    publishThrottled(span, exchange, routingKey, mandatory, immediate, props, body);
+  }
+
+  /**
+   * Hands a publish that passed the rate limiters to the packer, if any, or sends it.
+   */
+  private void publishThrottled(Span span, String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    MessagePacker packer = this.packer;
+    if (packer != null && !mandatory && !immediate) {
+      packer.add(span, exchange, routingKey, inject(props, span), body);
+      return;
+    }
+    send(span, exchange, routingKey, mandatory, immediate, props, body);
+  }
+
+  /**
+   * Rejects publishes whose outcome would be reported on this channel, as the outbox sends them on
+   * a channel of its own.
+   */
+  private void checkOutboxPublish(boolean mandatory, boolean immediate) {
+    if (mandatory || immediate) {
+      throw new IllegalStateException(
+          "Mandatory and immediate publishes are not supported with an outbox");
+    }
+    if (confirmMode || txMode) {
+      throw new IllegalStateException(
+          "Publishes on a channel in confirm or tx mode are not supported with an outbox");
+    }
+  }
 
-    try (Scope scope = buildSpan(exchange, props)) {
-      AMQP.BasicProperties properties = inject(props, scope.span());
+  void send(Span span, String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    Object event = FlightRecorderEvents.beginPublish();
+    try {
+      sendTraced(span, exchange, routingKey, mandatory, immediate, props, body);
+    } finally {
+      FlightRecorderEvents.commitPublish(event, exchange, routingKey, body, tracer, span);
+    }
+  }
+
+  private void sendTraced(Span span, String exchange, String routingKey, boolean mandatory,
+      boolean immediate, AMQP.BasicProperties props, byte[] body) throws IOException {
+    TrafficRecorder trafficRecorder = this.trafficRecorder;
+    if (trafficRecorder != null) {
+      trafficRecorder.recordPublish(exchange, routingKey, props, body);
+    }
+    AMQP.BasicProperties properties = inject(props, span);
+
+    Outbox outbox = connection != null ? connection.outbox() : null;
+    if (outbox != null) {
+      try {
+        checkOutboxPublish(mandatory, immediate);
+        outbox.publish(exchange, routingKey, mandatory, immediate, properties, body);
+      } catch (IOException | RuntimeException e) {
+        SpanDecorator.onError(e, span);
+        throw e;
+      } finally {
+        span.finish();
+      }
+      return;
+    }
+
+    if (publishBuffer != null) {
+      try {
+        if (publishBuffer.offer(span, exchange, routingKey, mandatory, immediate, properties,
+            body)) {
+          return;
+        }
+      } catch (IOException e) {
+        SpanDecorator.onError(e, span);
+        span.finish();
+        throw e;
+      }
+    }
+
+    long blockedAt = connection != null && connection.isBlocked() ? System.nanoTime() : 0L;
+    try {
       channel.basicPublish(exchange, routingKey, mandatory, immediate, properties, body);
+    } finally {
+      if (blockedAt != 0L) {
+        span.setTag(SpanDecorator.BLOCKED_TIME_TAG,
+            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - blockedAt));
+      }
+      span.finish();
     }
   }
 
@@ -239,16 +942,19 @@ public class TracingChannel implements Channel {
   @Override
   public AMQP.Exchange.DeleteOk exchangeDelete(String exchange, boolean ifUnused)
       throws IOException {
+    forgetDeclared(exchange);
     return channel.exchangeDelete(exchange, ifUnused);
   }
 
   @Override
   public void exchangeDeleteNoWait(String exchange, boolean ifUnused) throws IOException {
+    forgetDeclared(exchange);
     channel.exchangeDeleteNoWait(exchange, ifUnused);
   }
 
   @Override
   public AMQP.Exchange.DeleteOk exchangeDelete(String exchange) throws IOException {
+    forgetDeclared(exchange);
     return channel.exchangeDelete(exchange);
   }
 
@@ -312,18 +1018,21 @@ public class TracingChannel implements Channel {
 
   @Override
   public AMQP.Queue.DeleteOk queueDelete(String queue) throws IOException {
+    forgetDeclared(queue);
     return channel.queueDelete(queue);
   }
 
   @Override
   public AMQP.Queue.DeleteOk queueDelete(String queue, boolean ifUnused, boolean ifEmpty)
       throws IOException {
+    forgetDeclared(queue);
     return channel.queueDelete(queue, ifUnused, ifEmpty);
   }
 
   @Override
   public void queueDeleteNoWait(String queue, boolean ifUnused, boolean ifEmpty)
       throws IOException {
+    forgetDeclared(queue);
     channel.queueDeleteNoWait(queue, ifUnused, ifEmpty);
   }
 
@@ -348,12 +1057,14 @@ public class TracingChannel implements Channel {
   @Override
   public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey)
       throws IOException {
+    forgetDeclared(queue);
     return channel.queueUnbind(queue, exchange, routingKey);
   }
 
   @Override
   public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey,
       Map<String, Object> arguments) throws IOException {
+    forgetDeclared(queue);
     return channel.queueUnbind(queue, exchange, routingKey, arguments);
   }
 
@@ -364,24 +1075,104 @@ public class TracingChannel implements Channel {
 
   @Override
   public GetResponse basicGet(String queue, boolean autoAck) throws IOException {
-    GetResponse response = channel.basicGet(queue, autoAck);
-    TracingUtils.buildAndFinishChildSpan(response.getProps(), tracer);
+    Object event = FlightRecorderEvents.beginGet();
+    GetResponse response = null;
+    try {
+      response = channel.basicGet(queue, autoAck);
+    } finally {
+      FlightRecorderEvents.commitGet(event, queue, response, tracer);
+    }
+    if (response == null) {
+      return null;
+    }
+    onDelivery(queue, response.getEnvelope(), response.getProps(), response.getBody());
+    ReceiveBatcher batcher = this.receiveBatcher;
+    if (batcher != null) {
+      batcher.record(response.getProps(), response.getBody(), -1);
+      return response;
+    }
+    DeliveryTagMap<Span> spans = this.unackedSpans;
+    if (!autoAck && spans != null) {
+      spans.put(response.getEnvelope().getDeliveryTag(),
+          TracingUtils.startChildSpan(response.getProps(), tracer));
+    } else {
+      TracingUtils.buildAndFinishChildSpan(response.getProps(), tracer);
+    }
     return response;
   }
 
   @Override
   public void basicAck(long deliveryTag, boolean multiple) throws IOException {
-    channel.basicAck(deliveryTag, multiple);
+    StreamAcks streamAcks = this.streamAcks;
+    if (streamAcks == null || !streamAcks.settle(deliveryTag, multiple, this::ack)) {
+      ack(deliveryTag, multiple);
+    }
   }
 
   @Override
   public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
-    channel.basicNack(deliveryTag, multiple, requeue);
+    StreamAcks streamAcks = this.streamAcks;
+    if (streamAcks == null || !streamAcks.settle(deliveryTag, multiple,
+        (tag, settleMultiple) -> nack(tag, settleMultiple, requeue))) {
+      nack(deliveryTag, multiple, requeue);
+    }
   }
 
   @Override
   public void basicReject(long deliveryTag, boolean requeue) throws IOException {
-    channel.basicReject(deliveryTag, requeue);
+    StreamAcks streamAcks = this.streamAcks;
+    if (streamAcks == null || !streamAcks.settle(deliveryTag, false,
+        (tag, multiple) -> {
+          if (multiple) {
+            nack(tag, true, requeue);
+          } else {
+            reject(tag, requeue);
+          }
+        })) {
+      reject(deliveryTag, requeue);
+    }
+  }
+
+  private void ack(long deliveryTag, boolean multiple) throws IOException {
+    PackedAcks packedAcks = this.packedAcks;
+    if (packedAcks != null) {
+      packedAcks.ack(deliveryTag, multiple);
+    } else {
+      channel.basicAck(deliveryTag, multiple);
+    }
+    Deduplicator deduplicator = this.deduplicator;
+    if (deduplicator != null) {
+      deduplicator.onAck(deliveryTag, multiple);
+    }
+    settle(deliveryTag, multiple, "ack");
+  }
+
+  private void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+    PackedAcks packedAcks = this.packedAcks;
+    if (packedAcks != null) {
+      packedAcks.nack(deliveryTag, multiple, requeue);
+    } else {
+      channel.basicNack(deliveryTag, multiple, requeue);
+    }
+    Deduplicator deduplicator = this.deduplicator;
+    if (deduplicator != null) {
+      deduplicator.onNack(deliveryTag, multiple);
+    }
+    settle(deliveryTag, multiple, "nack");
+  }
+
+  private void reject(long deliveryTag, boolean requeue) throws IOException {
+    PackedAcks packedAcks = this.packedAcks;
+    if (packedAcks != null) {
+      packedAcks.reject(deliveryTag, requeue);
+    } else {
+      channel.basicReject(deliveryTag, requeue);
+    }
+    Deduplicator deduplicator = this.deduplicator;
+    if (deduplicator != null) {
+      deduplicator.onNack(deliveryTag, false);
+    }
+    settle(deliveryTag, false, "reject");
   }
 
   @Override
@@ -390,22 +1181,55 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public String basicConsume(String s, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
       CancelCallback cancelCallback) throws IOException {
-    return channel.basicConsume(s, deliverCallback, cancelCallback);
+    return basicConsume(queue, false, "", false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, null));
   }
 
   @Override
-  public String basicConsume(String s, DeliverCallback deliverCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, deliverCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, false, "", false, false, null,
+        new CallbackConsumer(deliverCallback, null, shutdownSignalCallback));
   }
 
   @Override
-  public String basicConsume(String s, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, DeliverCallback deliverCallback,
       CancelCallback cancelCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, deliverCallback, cancelCallback, consumerShutdownSignalCallback);
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, false, "", false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
+  }
+
+  /**
+   * Consumes values decoded by the codec. The time the codec took is tagged on the receive span.
+   */
+  public <T> String basicConsume(String queue, boolean autoAck, Codec<T> codec,
+      TypedConsumer<T> consumer) throws IOException {
+    return basicConsume(queue, autoAck,
+        new DecodingConsumer<>(this, codec, consumer, autoAck));
+  }
+
+  /**
+   * Consumes streams published with
+   * {@link #publishStream(String, String, AMQP.BasicProperties, InputStream)}, reassembled by the
+   * reassembler. Without auto ack, the acks of the chunks are held until the consumer settles the
+   * stream with the delivery tag of the last one, which settles all of its chunks: one by one, or
+   * with the consumer's own multiple ack or nack when no chunk of a partial stream comes before it.
+   * A requeued stream is therefore redelivered as a whole. Chunks of streams dropped as incomplete
+   * are nacked without requeue, to be dead-lettered if the queue has a dead letter exchange.
+   * Messages that are not chunked are handed over as a stream of their body.
+   */
+  public String basicConsume(String queue, boolean autoAck, StreamReassembler reassembler,
+      StreamConsumer consumer) throws IOException {
+    if (connection != null) {
+      ScheduledFuture<?> task = connection.executor()
+          .scheduleWithFixedDelay(reassembler::expire, 1, 1, TimeUnit.SECONDS);
+      channel.addShutdownListener(cause -> task.cancel(false));
+    }
+    return basicConsume(queue, autoAck, new ReassemblingConsumer(this, tracer,
+        autoAck ? null : streamAcks(), reassembler, consumer));
   }
 
   @Override
@@ -414,23 +1238,25 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public String basicConsume(String s, boolean b, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
       CancelCallback cancelCallback) throws IOException {
-    return channel.basicConsume(s, b, deliverCallback, cancelCallback);
+    return basicConsume(queue, autoAck, "", false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, null));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, DeliverCallback deliverCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, b, deliverCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, null,
+        new CallbackConsumer(deliverCallback, null, shutdownSignalCallback));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
       CancelCallback cancelCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel
-        .basicConsume(s, b, deliverCallback, cancelCallback, consumerShutdownSignalCallback);
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
   }
 
   @Override
@@ -440,26 +1266,26 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public String basicConsume(String s, boolean b,
-      Map<String, Object> map, DeliverCallback deliverCallback,
-      CancelCallback cancelCallback) throws IOException {
-    return channel.basicConsume(s, b, map, deliverCallback, cancelCallback);
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments,
+        new CallbackConsumer(deliverCallback, cancelCallback, null));
   }
 
   @Override
-  public String basicConsume(String s, boolean b,
-      Map<String, Object> map, DeliverCallback deliverCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, b, map, deliverCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments,
+        new CallbackConsumer(deliverCallback, null, shutdownSignalCallback));
   }
 
   @Override
-  public String basicConsume(String s, boolean b,
-      Map<String, Object> map, DeliverCallback deliverCallback,
-      CancelCallback cancelCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel
-        .basicConsume(s, b, map, deliverCallback, cancelCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, "", false, false, arguments,
+        new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
   }
 
   @Override
@@ -469,57 +1295,68 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1,
-      DeliverCallback deliverCallback,
-      CancelCallback cancelCallback) throws IOException {
-    return channel.basicConsume(s, b, s1, deliverCallback, cancelCallback);
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, null));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1,
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
       DeliverCallback deliverCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, b, s1, deliverCallback, consumerShutdownSignalCallback);
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null,
+        new CallbackConsumer(deliverCallback, null, shutdownSignalCallback));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1,
-      DeliverCallback deliverCallback,
-      CancelCallback cancelCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel
-        .basicConsume(s, b, s1, deliverCallback, cancelCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, boolean autoAck, String consumerTag,
+      DeliverCallback deliverCallback, CancelCallback cancelCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, false, false, null,
+        new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
   }
 
   @Override
   public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal,
       boolean exclusive, Map<String, Object> arguments, Consumer callback) throws IOException {
     return channel.basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
-        new TracingConsumer(callback, tracer));
+        new TracingConsumer(callback, tracer, this, queue, autoAck));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1, boolean b1, boolean b2,
-      Map<String, Object> map, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal,
+      boolean exclusive, Map<String, Object> arguments, DeliverCallback deliverCallback,
       CancelCallback cancelCallback) throws IOException {
-    return channel.basicConsume(s, b, s1, b1, b2, map, deliverCallback, cancelCallback);
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+        new CallbackConsumer(deliverCallback, cancelCallback, null));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1, boolean b1, boolean b2,
-      Map<String, Object> map, DeliverCallback deliverCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel
-        .basicConsume(s, b, s1, b1, b2, map, deliverCallback, consumerShutdownSignalCallback);
+  public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal,
+      boolean exclusive, Map<String, Object> arguments, DeliverCallback deliverCallback,
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+        new CallbackConsumer(deliverCallback, null, shutdownSignalCallback));
   }
 
   @Override
-  public String basicConsume(String s, boolean b, String s1, boolean b1, boolean b2,
-      Map<String, Object> map, DeliverCallback deliverCallback,
+  public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal,
+      boolean exclusive, Map<String, Object> arguments, DeliverCallback deliverCallback,
       CancelCallback cancelCallback,
-      ConsumerShutdownSignalCallback consumerShutdownSignalCallback) throws IOException {
-    return channel.basicConsume(s, b, s1, b1, b2, map, deliverCallback, cancelCallback,
-        consumerShutdownSignalCallback);
+      ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+    return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+        new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
+  }
+
+  /**
+   * Like {@link #basicConsume(String, boolean, Consumer)}, notifying the listener about the
+   * consumer.
+   */
+  String basicConsume(String queue, boolean autoAck, Consumer callback,
+      TracingConsumer.Listener listener) throws IOException {
+    return channel.basicConsume(queue, autoAck,
+        new TracingConsumer(callback, tracer, this, queue, autoAck, listener));
   }
 
   @Override
@@ -538,8 +1375,11 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public AMQP.Tx.SelectOk txSelect() throws IOException {
-    return channel.txSelect();
+  public synchronized AMQP.Tx.SelectOk txSelect() throws IOException {
+    checkNotPacking();
+    AMQP.Tx.SelectOk selectOk = channel.txSelect();
+    txMode = true;
+    return selectOk;
   }
 
   @Override
@@ -553,8 +1393,17 @@ public class TracingChannel implements Channel {
   }
 
   @Override
-  public AMQP.Confirm.SelectOk confirmSelect() throws IOException {
-    return channel.confirmSelect();
+  public synchronized AMQP.Confirm.SelectOk confirmSelect() throws IOException {
+    checkNotPacking();
+    AMQP.Confirm.SelectOk selectOk = channel.confirmSelect();
+    confirmMode = true;
+    return selectOk;
+  }
+
+  private void checkNotPacking() {
+    if (packer != null) {
+      throw new IllegalStateException("Confirm and tx mode are not supported with packing");
+    }
   }
 
   @Override
@@ -595,12 +1444,31 @@ public class TracingChannel implements Channel {
 
   @Override
   public long messageCount(String queue) throws IOException {
-    return channel.messageCount(queue);
+    QueueStats stats = sampledStats(queue);
+    return stats != null ? stats.getMessageCount() : channel.messageCount(queue);
   }
 
   @Override
   public long consumerCount(String queue) throws IOException {
-    return channel.consumerCount(queue);
+    QueueStats stats = sampledStats(queue);
+    return stats != null ? stats.getConsumerCount() : channel.consumerCount(queue);
+  }
+
+  private QueueStats sampledStats(String queue) {
+    QueueSampler sampler = connection != null ? connection.queueSampler() : null;
+    return sampler != null ? sampler.freshStats(queue) : null;
+  }
+
+  void onDelivery(String queue, Envelope envelope, AMQP.BasicProperties props, byte[] body) {
+    QueueSampler sampler = connection != null ? connection.queueSampler() : null;
+    if (sampler != null) {
+      sampler.onDelivery(queue);
+    }
+    TrafficRecorder trafficRecorder = this.trafficRecorder;
+    if (trafficRecorder != null) {
+      trafficRecorder.recordDelivery(envelope.getExchange(), envelope.getRoutingKey(), props,
+          body);
+    }
   }
 
   @Override
@@ -634,11 +1502,39 @@ public class TracingChannel implements Channel {
     return channel.isOpen();
   }
 
-  private Scope buildSpan(String exchange, AMQP.BasicProperties props) {
+  Span buildSpan(String exchange, AMQP.BasicProperties props) {
+    return buildSpan(exchange, parentContext(props), Collections.emptyList());
+  }
+
+  /**
+   * Starts a "send" span as a child of the parent, if any, that follows from the other contexts.
+   */
+  Span buildSpan(String exchange, SpanContext parent, Iterable<SpanContext> followsFrom) {
     Tracer.SpanBuilder spanBuilder = tracer.buildSpan("send")
         .ignoreActiveSpan()
         .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_PRODUCER);
 
+    if (parent != null) {
+      spanBuilder.asChildOf(parent);
+    }
+    for (SpanContext context : followsFrom) {
+      spanBuilder.addReference(References.FOLLOWS_FROM, context);
+    }
+
+    Span span = spanBuilder.start();
+    SpanDecorator.onRequest(exchange, span);
+
+    return span;
+  }
+
+  /**
+   * @return span context injected into the properties, or else that of the active span
+   */
+  SpanContext parentContext(AMQP.BasicProperties props) {
+    return parentContext(tracer, props);
+  }
+
+  static SpanContext parentContext(Tracer tracer, AMQP.BasicProperties props) {
     SpanContext spanContext = null;
 
     if (props != null && props.getHeaders() != null) {
@@ -653,18 +1549,10 @@ public class TracingChannel implements Channel {
         spanContext = parentSpan.context();
       }
     }
-
-    if (spanContext != null) {
-      spanBuilder.asChildOf(spanContext);
-    }
-
-    Scope scope = spanBuilder.startActive(true);
-    SpanDecorator.onRequest(exchange, scope.span());
-
-    return scope;
+    return spanContext;
   }
 
-  private AMQP.BasicProperties inject(AMQP.BasicProperties properties, Span span) {
+  AMQP.BasicProperties inject(AMQP.BasicProperties properties, Span span) {
 
     // Headers of AMQP.BasicProperties is unmodifiableMap therefore we build new AMQP.BasicProperties
     // with injected span context into headers
@@ -18,14 +18,30 @@ import com.rabbitmq.client.BlockedListener;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ExceptionHandler;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.UnblockedCallback;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.opentracing.Span;
 import io.opentracing.Tracer;
 
 public class TracingConnection implements Connection {
@@ -34,9 +50,458 @@ public class TracingConnection implements Connection {
 
   private final Tracer tracer;
 
+  private volatile boolean blocked;
+  private volatile String blockedReason;
+  private volatile long blockedSince;
+  private final AtomicLong blockedCount = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+
+  private volatile int publishBufferCapacity;
+  private volatile OverflowPolicy overflowPolicy;
+  private volatile long publishBufferTimeoutNanos;
+  private final List<PublishBuffer> publishBuffers = new CopyOnWriteArrayList<>();
+  private final AtomicLong bufferedPublishes = new AtomicLong();
+  private final AtomicLong droppedPublishes = new AtomicLong();
+  private final AtomicLong rejectedPublishes = new AtomicLong();
+
+  private volatile Outbox outbox;
+
+  private volatile QueueSampler queueSampler;
+
+  private volatile RoundTripProbe roundTripProbe;
+
+  private final Set<Topology.Declaration> declared = ConcurrentHashMap.newKeySet();
+
+  private ScheduledExecutorService executor;
+  private ExecutorService drainExecutor;
+  private boolean executorShutdown;
+
+  private final BlockedListener blockedListener = new BlockedListener() {
+    @Override
+    public void handleBlocked(String reason) {
+      onBlocked(reason);
+    }
+
+    @Override
+    public void handleUnblocked() {
+      onUnblocked();
+    }
+  };
+
+  private final InstrumentedExecutorService consumerExecutor;
+
   public TracingConnection(Connection connection, Tracer tracer) {
+    this(connection, tracer, null);
+  }
+
+  TracingConnection(Connection connection, Tracer tracer,
+      InstrumentedExecutorService consumerExecutor) {
     this.connection = connection;
     this.tracer = tracer;
+    this.consumerExecutor = consumerExecutor;
+    connection.addBlockedListener(blockedListener);
+    if (connection instanceof Recoverable) {
+      ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          // the broker may have lost non durable entities
+          declared.clear();
+          RoundTripProbe probe = roundTripProbe;
+          if (probe != null) {
+            probe.onEvent(ConnectionEvent.Type.RECOVERED, null);
+          }
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+        }
+      });
+    }
+  }
+
+  /**
+   * Declares all exchanges, queues and bindings of the topology, skipping those this method
+   * already declared on this connection. Declarations are sent without waiting for each reply,
+   * followed by a single round trip that fails if any of them failed.
+   *
+   * <p>Entities deleted through a channel of this connection are declared again, as is everything
+   * after the connection recovered. Auto-delete entities and their bindings are never skipped.
+   */
+  public void declare(Topology topology) throws IOException {
+    List<Topology.Declaration> pending = new ArrayList<>();
+    Set<Topology.Declaration> transientDeclarations = new HashSet<>();
+    int skipped = 0;
+    for (Topology.Declaration declaration : topology.declarations()) {
+      if (declared.contains(declaration)) {
+        skipped++;
+      } else if (!pending.contains(declaration)) {
+        pending.add(declaration);
+      }
+    }
+    for (Topology.Declaration declaration : pending) {
+      if (declaration.autoDelete()) {
+        for (Topology.Declaration other : pending) {
+          if (other == declaration || other.dependsOn(declaration.name())) {
+            transientDeclarations.add(other);
+          }
+        }
+      }
+    }
+
+    Span span = tracer.buildSpan("declare").start();
+    SpanDecorator.onDeclare(span, pending.size(), skipped);
+    try {
+      if (!pending.isEmpty()) {
+        declareNoWait(pending);
+        for (Topology.Declaration declaration : pending) {
+          if (!transientDeclarations.contains(declaration)) {
+            declared.add(declaration);
+          }
+        }
+      }
+    } catch (IOException e) {
+      SpanDecorator.onError(e, span);
+      throw e;
+    } finally {
+      span.finish();
+    }
+  }
+
+  private void declareNoWait(List<Topology.Declaration> declarations) throws IOException {
+    Channel channel = connection.createChannel();
+    if (channel == null) {
+      throw new IOException("No channel available to declare topology");
+    }
+    try {
+      for (Topology.Declaration declaration : declarations) {
+        declaration.declareNoWait(channel);
+      }
+      // the broker answers only after all declarations before, or closes the channel instead if
+      // one of them failed
+      channel.basicQos(0);
+    } catch (ShutdownSignalException e) {
+      throw new IOException("Failed to declare topology", e);
+    } finally {
+      channel.abort();
+    }
+  }
+
+  /**
+   * Called when a queue or exchange was deleted, so that it is declared again next time.
+   */
+  void forgetDeclared(String name) {
+    declared.removeIf(declaration -> declaration.dependsOn(name));
+  }
+
+  /**
+   * Buffers publishes of channels created after this call while the broker keeps the connection
+   * blocked, instead of blocking the publishing thread. Buffered messages are sent in order once
+   * the connection is unblocked.
+   *
+   * <p>A buffered message gets its publish sequence number only once it is sent, so
+   * {@link Channel#waitForConfirms()} on a channel in confirm mode does not wait for the messages
+   * still buffered, and {@link Channel#getNextPublishSeqNo()} does not count them.
+   *
+   * @param capacity max number of buffered messages per channel
+   * @param overflowPolicy what to do when the buffer of a channel is full
+   * @param timeout how long {@link OverflowPolicy#BLOCK} waits for room
+   */
+  public void enablePublishBuffering(int capacity, OverflowPolicy overflowPolicy, long timeout,
+      TimeUnit unit) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.overflowPolicy = overflowPolicy;
+    this.publishBufferTimeoutNanos = unit.toNanos(timeout);
+    this.publishBufferCapacity = capacity;
+  }
+
+  /**
+   * Routes publishes of all channels of this connection through a durable {@link Outbox}
+   * journaled in the given directory. Messages left over by a previous run are sent first.
+   *
+   * <p>The outbox sends on a confirm channel of its own, so a publish returns once it is
+   * journaled and its send span finishes then, not when the broker has it. Returns, publisher
+   * confirms and transactions of the publishing channel cannot apply; mandatory or immediate
+   * publishes and publishes on a channel in confirm or tx mode fail with an
+   * {@link IllegalStateException}.
+   */
+  public Outbox enableOutbox(Path directory) throws IOException {
+    return enableOutbox(directory, OutboxJournal.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param segmentSize size of journal segment files in bytes, limits the size of a message
+   */
+  public synchronized Outbox enableOutbox(Path directory, int segmentSize) throws IOException {
+    if (outbox != null) {
+      throw new IllegalStateException("Outbox is already enabled");
+    }
+    Outbox outbox = new Outbox(connection, this, directory, segmentSize);
+    if (connection instanceof Recoverable) {
+      ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          outbox.replay();
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+        }
+      });
+    }
+    this.outbox = outbox;
+    return outbox;
+  }
+
+  Outbox outbox() {
+    return outbox;
+  }
+
+  /**
+   * Starts sampling queues registered with the returned {@link QueueSampler} at the given
+   * interval, on a channel of its own.
+   */
+  public synchronized QueueSampler enableQueueSampling(long interval, TimeUnit unit) {
+    if (queueSampler != null) {
+      throw new IllegalStateException("Queue sampling is already enabled");
+    }
+    queueSampler = new QueueSampler(connection, interval, unit);
+    return queueSampler;
+  }
+
+  QueueSampler queueSampler() {
+    return queueSampler;
+  }
+
+  /**
+   * @return the queue sampler, enabled with the given interval if it was not yet
+   */
+  synchronized QueueSampler queueSampler(long interval, TimeUnit unit) {
+    return queueSampler != null ? queueSampler : enableQueueSampling(interval, unit);
+  }
+
+  /**
+   * Starts measuring the broker round trip at the given interval, on a channel of its own, and
+   * recording the connection's events next to it.
+   */
+  public synchronized RoundTripProbe enableRoundTripProbe(long interval, TimeUnit unit) {
+    if (roundTripProbe != null) {
+      throw new IllegalStateException("Round trip probe is already enabled");
+    }
+    RoundTripProbe probe = new RoundTripProbe(connection, interval, unit);
+    connection.addShutdownListener(cause -> probe.onEvent(ConnectionEvent.Type.SHUTDOWN,
+        String.valueOf(cause.getCause() != null ? cause.getCause() : cause.getReason())));
+    roundTripProbe = probe;
+    return probe;
+  }
+
+  /**
+   * @return the round trip probe, or null if it is not enabled
+   */
+  public RoundTripProbe getRoundTripProbe() {
+    return roundTripProbe;
+  }
+
+  /**
+   * @return the instrumented executor consumers of this connection are dispatched on, or null if
+   * the connection was not given one by a {@link TracingConnectionFactory}
+   */
+  public InstrumentedExecutorService getConsumerExecutor() {
+    return consumerExecutor;
+  }
+
+  Tracer tracer() {
+    return tracer;
+  }
+
+  Connection delegate() {
+    return connection;
+  }
+
+  public boolean isBlocked() {
+    return blocked;
+  }
+
+  /**
+   * @return reason given by the broker for the current block, or null if not blocked
+   */
+  public String getBlockedReason() {
+    return blocked ? blockedReason : null;
+  }
+
+  /**
+   * @return how many times the broker has blocked this connection
+   */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  /**
+   * @return total time this connection has spent blocked, including the current block
+   */
+  public long getBlockedTime(TimeUnit unit) {
+    long nanos = blockedNanos.get();
+    if (blocked) {
+      nanos += System.nanoTime() - blockedSince;
+    }
+    return unit.convert(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return number of messages currently waiting in publish buffers of this connection
+   */
+  public long getBufferedPublishCount() {
+    return bufferedPublishes.get();
+  }
+
+  public long getDroppedPublishCount() {
+    return droppedPublishes.get();
+  }
+
+  public long getRejectedPublishCount() {
+    return rejectedPublishes.get();
+  }
+
+  PublishBuffer newPublishBuffer(Channel channel) {
+    int capacity = publishBufferCapacity;
+    if (capacity <= 0) {
+      return null;
+    }
+    PublishBuffer buffer = new PublishBuffer(channel, this, capacity, overflowPolicy,
+        publishBufferTimeoutNanos);
+    publishBuffers.add(buffer);
+    return buffer;
+  }
+
+  void removePublishBuffer(PublishBuffer buffer) {
+    if (publishBuffers.remove(buffer)) {
+      buffer.failAll("channel closed");
+    }
+  }
+
+  void onPublishBuffered() {
+    bufferedPublishes.incrementAndGet();
+  }
+
+  void onPublishDrained() {
+    bufferedPublishes.decrementAndGet();
+  }
+
+  void onPublishDropped() {
+    bufferedPublishes.decrementAndGet();
+    droppedPublishes.incrementAndGet();
+  }
+
+  void onPublishRejected() {
+    rejectedPublishes.incrementAndGet();
+  }
+
+  private synchronized void onBlocked(String reason) {
+    if (blocked) {
+      return;
+    }
+    blockedReason = reason;
+    blockedSince = System.nanoTime();
+    blockedCount.incrementAndGet();
+    blocked = true;
+    RoundTripProbe probe = roundTripProbe;
+    if (probe != null) {
+      probe.onEvent(ConnectionEvent.Type.BLOCKED, reason);
+    }
+  }
+
+  private synchronized void onUnblocked() {
+    if (!blocked) {
+      return;
+    }
+    blockedNanos.addAndGet(System.nanoTime() - blockedSince);
+    blocked = false;
+    RoundTripProbe probe = roundTripProbe;
+    if (probe != null) {
+      probe.onEvent(ConnectionEvent.Type.UNBLOCKED, null);
+    }
+    Outbox outbox = this.outbox;
+    if (outbox != null) {
+      outbox.replay();
+    }
+    for (PublishBuffer buffer : publishBuffers) {
+      // drain off the connection thread, the broker may block us again at any time
+      buffer.scheduleDrain();
+    }
+  }
+
+  /**
+   * @throws RejectedExecutionException once the connection is closed
+   */
+  synchronized ScheduledExecutorService executor() {
+    if (executorShutdown) {
+      throw new RejectedExecutionException("Connection is closed");
+    }
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(
+          new DaemonThreadFactory("rabbitmq-tracing-" + connection));
+    }
+    return executor;
+  }
+
+  /**
+   * Thread the publish buffers drain on, apart from {@link #executor()} whose tasks may publish,
+   * and wait for room in a buffer, themselves.
+   *
+   * @throws RejectedExecutionException once the connection is closed
+   */
+  synchronized ExecutorService drainExecutor() {
+    if (executorShutdown) {
+      throw new RejectedExecutionException("Connection is closed");
+    }
+    if (drainExecutor == null) {
+      drainExecutor = Executors.newSingleThreadExecutor(
+          new DaemonThreadFactory("rabbitmq-publish-drain-" + connection));
+    }
+    return drainExecutor;
+  }
+
+  private void shutdownExecutor() {
+    ScheduledExecutorService executor;
+    ExecutorService drainExecutor;
+    Outbox outbox;
+    QueueSampler queueSampler;
+    RoundTripProbe roundTripProbe;
+    synchronized (this) {
+      executor = this.executor;
+      this.executor = null;
+      drainExecutor = this.drainExecutor;
+      this.drainExecutor = null;
+      executorShutdown = true;
+      outbox = this.outbox;
+      this.outbox = null;
+      queueSampler = this.queueSampler;
+      this.queueSampler = null;
+      roundTripProbe = this.roundTripProbe;
+    }
+    if (roundTripProbe != null) {
+      roundTripProbe.close();
+    }
+    if (queueSampler != null) {
+      queueSampler.close();
+    }
+    if (outbox != null) {
+      try {
+        outbox.close();
+      } catch (IOException ignore) {
+        // unconfirmed messages stay in the journal
+      }
+    }
+    for (PublishBuffer buffer : publishBuffers) {
+      removePublishBuffer(buffer);
+    }
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (drainExecutor != null) {
+      drainExecutor.shutdown();
+    }
   }
 
   @Override
@@ -81,52 +546,72 @@ public class TracingConnection implements Connection {
 
   @Override
   public Channel createChannel() throws IOException {
-    return new TracingChannel(connection.createChannel(), tracer);
+    return new TracingChannel(connection.createChannel(), tracer, this);
   }
 
   @Override
   public Channel createChannel(int channelNumber) throws IOException {
-    return new TracingChannel(connection.createChannel(channelNumber), tracer);
+    return new TracingChannel(connection.createChannel(channelNumber), tracer, this);
   }
 
   @Override
   public void close() throws IOException {
-    connection.close();
+    try {
+      connection.close();
+    } finally {
+      shutdownExecutor();
+    }
   }
 
   @Override
   public void close(int closeCode, String closeMessage) throws IOException {
-    connection.close(closeCode, closeMessage);
+    try {
+      connection.close(closeCode, closeMessage);
+    } finally {
+      shutdownExecutor();
+    }
   }
 
   @Override
   public void close(int timeout) throws IOException {
-    connection.close(timeout);
+    try {
+      connection.close(timeout);
+    } finally {
+      shutdownExecutor();
+    }
   }
 
   @Override
   public void close(int closeCode, String closeMessage, int timeout) throws IOException {
-    connection.close(closeCode, closeMessage, timeout);
+    try {
+      connection.close(closeCode, closeMessage, timeout);
+    } finally {
+      shutdownExecutor();
+    }
   }
 
   @Override
   public void abort() {
     connection.abort();
+    shutdownExecutor();
   }
 
   @Override
   public void abort(int closeCode, String closeMessage) {
     connection.abort(closeCode, closeMessage);
+    shutdownExecutor();
   }
 
   @Override
   public void abort(int timeout) {
     connection.abort(timeout);
+    shutdownExecutor();
   }
 
   @Override
   public void abort(int closeCode, String closeMessage, int timeout) {
     connection.abort(closeCode, closeMessage, timeout);
+    shutdownExecutor();
   }
 
   @Override
@@ -147,6 +632,8 @@ public class TracingConnection implements Connection {
   @Override
   public void clearBlockedListeners() {
     connection.clearBlockedListeners();
+    // blocked tracking stays
+    connection.addBlockedListener(blockedListener);
   }
 
   @Override
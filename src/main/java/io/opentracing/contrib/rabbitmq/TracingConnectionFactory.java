@@ -16,7 +16,9 @@ package io.opentracing.contrib.rabbitmq;
 import com.rabbitmq.client.AddressResolver;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import io.opentracing.Span;
 import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
 
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
@@ -25,20 +27,78 @@ import java.util.concurrent.TimeoutException;
 public class TracingConnectionFactory extends ConnectionFactory {
 
   private final Tracer tracer;
+  private volatile InstrumentedExecutorService sharedExecutor;
 
   public TracingConnectionFactory(Tracer tracer) {
     this.tracer = tracer;
   }
 
+  /**
+   * Dispatches consumers of new connections on the executor, wrapped in an
+   * {@link InstrumentedExecutorService}. Executors given to {@code newConnection} are wrapped as
+   * well, the client's own default executor is not.
+   */
+  @Override
+  public void setSharedExecutor(ExecutorService executor) {
+    InstrumentedExecutorService instrumented = instrument(executor);
+    super.setSharedExecutor(instrumented);
+    this.sharedExecutor = instrumented;
+  }
+
+  /**
+   * @return the instrumented shared executor, or null if none is set
+   */
+  public InstrumentedExecutorService getSharedExecutor() {
+    return sharedExecutor;
+  }
+
   @Override
   public Connection newConnection(
       ExecutorService executor,
       AddressResolver addressResolver,
       String clientProvidedName
   ) throws IOException, TimeoutException {
+    InstrumentedExecutorService instrumented = instrument(executor);
+    if (addressResolver instanceof LatencyAwareAddressResolver) {
+      return newConnection(instrumented, (LatencyAwareAddressResolver) addressResolver,
+          clientProvidedName);
+    }
     return new TracingConnection(
-        super.newConnection(executor, addressResolver, clientProvidedName),
-        tracer
+        super.newConnection(instrumented, addressResolver, clientProvidedName),
+        tracer,
+        instrumented != null ? instrumented : sharedExecutor
     );
   }
+
+  private static InstrumentedExecutorService instrument(ExecutorService executor) {
+    if (executor == null || executor instanceof InstrumentedExecutorService) {
+      return (InstrumentedExecutorService) executor;
+    }
+    return new InstrumentedExecutorService(executor);
+  }
+
+  /**
+   * Traces the connect as a "connect" span tagged with the chosen node and its probe results.
+   */
+  private Connection newConnection(InstrumentedExecutorService executor,
+      LatencyAwareAddressResolver resolver, String clientProvidedName)
+      throws IOException, TimeoutException {
+    Span span = tracer.buildSpan("connect")
+        .ignoreActiveSpan()
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+        .start();
+    try {
+      Connection connection = super.newConnection(executor, resolver, clientProvidedName);
+      NodeStats node = resolver.onConnected(connection);
+      SpanDecorator.onConnect(span, node, resolver.getHealthyCount());
+      return new TracingConnection(connection, tracer,
+          executor != null ? executor : sharedExecutor);
+    } catch (IOException | TimeoutException | RuntimeException e) {
+      resolver.onConnectFailed(e);
+      SpanDecorator.onError(e, span);
+      throw e;
+    } finally {
+      span.finish();
+    }
+  }
 }
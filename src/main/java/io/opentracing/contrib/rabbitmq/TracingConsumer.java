@@ -18,6 +18,7 @@ import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.opentracing.Scope;
+import io.opentracing.Span;
 import io.opentracing.Tracer;
 import java.io.IOException;
 
@@ -25,11 +26,32 @@ import java.io.IOException;
 public class TracingConsumer implements Consumer {
 
   private final Consumer consumer;
+  private final SpanAwareConsumer spanAwareConsumer;
   private final Tracer tracer;
+  private final TracingChannel channel;
+  private final String queue;
+  private final boolean autoAck;
+  private final Listener listener;
 
   public TracingConsumer(Consumer consumer, Tracer tracer) {
+    this(consumer, tracer, null, null, false);
+  }
+
+  TracingConsumer(Consumer consumer, Tracer tracer, TracingChannel channel, String queue,
+      boolean autoAck) {
+    this(consumer, tracer, channel, queue, autoAck, null);
+  }
+
+  TracingConsumer(Consumer consumer, Tracer tracer, TracingChannel channel, String queue,
+      boolean autoAck, Listener listener) {
     this.consumer = consumer;
+    this.spanAwareConsumer =
+        consumer instanceof SpanAwareConsumer ? (SpanAwareConsumer) consumer : null;
     this.tracer = tracer;
+    this.channel = channel;
+    this.queue = queue;
+    this.autoAck = autoAck;
+    this.listener = listener;
   }
 
   @Override
@@ -40,6 +62,9 @@ public class TracingConsumer implements Consumer {
   @Override
   public void handleCancelOk(String consumerTag) {
     consumer.handleCancelOk(consumerTag);
+    if (listener != null) {
+      listener.onCancelOk();
+    }
 
   }
 
@@ -62,7 +87,126 @@ public class TracingConsumer implements Consumer {
   @Override
   public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
       byte[] body) throws IOException {
-    Scope child = TracingUtils.buildChildSpan(properties, tracer);
+    Object event = FlightRecorderEvents.beginDelivery();
+    try {
+      handle(consumerTag, envelope, properties, body);
+    } finally {
+      FlightRecorderEvents.commitDelivery(event, queue, envelope, properties, body, tracer);
+    }
+  }
+
+  private void handle(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      byte[] body) throws IOException {
+    if (channel != null) {
+      channel.onDelivery(queue, envelope, properties, body);
+    }
+
+    Deduplicator deduplicator = channel != null ? channel.deduplicator() : null;
+    if (deduplicator != null) {
+      long fingerprint = deduplicator.fingerprint(properties);
+      if (fingerprint != 0L) {
+        if (deduplicator.isDuplicate(fingerprint)) {
+          if (!autoAck) {
+            channel.ackDuplicate(envelope.getDeliveryTag());
+          }
+          return;
+        }
+        deduplicator.onDelivery(envelope.getDeliveryTag(), fingerprint, autoAck);
+      }
+    }
+
+    int packed = MessagePacker.count(properties);
+    if (packed > 0) {
+      // the pack is settled once all of its messages are
+      if (!autoAck && channel != null) {
+        channel.onPackedDelivery(envelope.getDeliveryTag(), packed);
+      }
+      MessagePacker.unpack(body, packed,
+          (props, message) -> dispatch(consumerTag, envelope, props, message, false));
+      return;
+    }
+    dispatch(consumerTag, envelope, properties, body, true);
+  }
+
+  /**
+   * @param trackAck whether ack tracking applies, it does not to messages of a pack
+   */
+  private void dispatch(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      byte[] body, boolean trackAck) throws IOException {
+    HandlerWatchdog watchdog = channel != null ? channel.handlerWatchdog() : null;
+    HandlerWatchdog.Watch watch = watchdog != null ? watchdog.enter() : null;
+    if (listener == null && watch == null) {
+      deliver(consumerTag, envelope, properties, body, null, trackAck);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      deliver(consumerTag, envelope, properties, body, watch, trackAck);
+    } finally {
+      if (watch != null) {
+        watchdog.exit(watch);
+      }
+      if (listener != null) {
+        listener.onHandled(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * @param watch the watchdog's record of the delivery, to be given its span
+   */
+  private void deliver(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      byte[] body, HandlerWatchdog.Watch watch, boolean trackAck) throws IOException {
+    ReceiveBatcher batcher = channel != null ? channel.receiveBatcher() : null;
+    if (batcher != null) {
+      long start = System.nanoTime();
+      try {
+        if (spanAwareConsumer != null) {
+          spanAwareConsumer.handleDelivery(consumerTag, envelope, properties, body, null);
+        } else {
+          consumer.handleDelivery(consumerTag, envelope, properties, body);
+        }
+      } finally {
+        batcher.record(properties, body, System.nanoTime() - start);
+      }
+      return;
+    }
+
+    // with ack tracking the span is finished by the ack, possibly on another thread
+    DeliveryTagMap<Span> unackedSpans =
+        channel != null && !autoAck && trackAck ? channel.unackedSpans() : null;
+
+    if (spanAwareConsumer != null) {
+      Span span = TracingUtils.startChildSpan(properties, tracer);
+      if (span != null) {
+        SpanDecorator.onQueueWait(span, InstrumentedExecutorService.takeQueueWait());
+      }
+      if (watch != null) {
+        watch.setSpan(span);
+      }
+      if (unackedSpans != null) {
+        unackedSpans.put(envelope.getDeliveryTag(), span);
+      }
+      try {
+        spanAwareConsumer.handleDelivery(consumerTag, envelope, properties, body, span);
+      } finally {
+        if (span != null && unackedSpans == null) {
+          span.finish();
+        }
+      }
+      return;
+    }
+
+    Scope child = TracingUtils.buildChildSpan(properties, tracer, unackedSpans == null);
+    if (child != null) {
+      SpanDecorator.onQueueWait(child.span(), InstrumentedExecutorService.takeQueueWait());
+    }
+    if (watch != null && child != null) {
+      watch.setSpan(child.span());
+    }
+    if (unackedSpans != null) {
+      unackedSpans.put(envelope.getDeliveryTag(), child != null ? child.span() : null);
+    }
 
     try {
       consumer.handleDelivery(consumerTag, envelope, properties, body);
@@ -72,4 +216,17 @@ public class TracingConsumer implements Consumer {
       }
     }
   }
+
+  /**
+   * Notified by a {@link TracingConsumer} about the deliveries it handled.
+   */
+  interface Listener {
+
+    /**
+     * @param nanos time the consumer took for a delivery, including its span
+     */
+    void onHandled(long nanos);
+
+    void onCancelOk();
+  }
 }
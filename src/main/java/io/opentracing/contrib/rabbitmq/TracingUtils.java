@@ -25,10 +25,13 @@ import io.opentracing.tag.Tags;
 public class TracingUtils {
 
   public static SpanContext extract(AMQP.BasicProperties props, Tracer tracer) {
-    SpanContext spanContext = tracer
-        .extract(Format.Builtin.TEXT_MAP, new HeadersMapExtractAdapter(props.getHeaders()));
-    if (spanContext != null) {
-      return spanContext;
+    // without headers there is nothing to extract, skip the adapter and the tracer
+    if (props.getHeaders() != null) {
+      SpanContext spanContext = tracer
+          .extract(Format.Builtin.TEXT_MAP, new HeadersMapExtractAdapter(props.getHeaders()));
+      if (spanContext != null) {
+        return spanContext;
+      }
     }
 
     Span span = tracer.activeSpan();
@@ -46,19 +49,44 @@ public class TracingUtils {
   }
 
   static Scope buildChildSpan(AMQP.BasicProperties props, Tracer tracer) {
+    return buildChildSpan(props, tracer, true);
+  }
+
+  static Scope buildChildSpan(AMQP.BasicProperties props, Tracer tracer,
+      boolean finishSpanOnClose) {
     SpanContext context = TracingUtils.extract(props, tracer);
     if (context != null) {
-      Tracer.SpanBuilder spanBuilder = tracer.buildSpan("receive")
-          .ignoreActiveSpan()
-          .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CONSUMER);
-
-      spanBuilder.addReference(References.FOLLOWS_FROM, context);
-
-      Scope scope = spanBuilder.startActive(true);
+      Scope scope = childSpanBuilder(context, tracer).startActive(finishSpanOnClose);
       SpanDecorator.onResponse(scope.span());
       return scope;
     }
 
     return null;
   }
+
+  /**
+   * Starts the "receive" span without activating it and without looking at the active span, so
+   * the {@link io.opentracing.ScopeManager} is not involved at all.
+   */
+  static Span startChildSpan(AMQP.BasicProperties props, Tracer tracer) {
+    if (props.getHeaders() == null) {
+      return null;
+    }
+    SpanContext context = tracer
+        .extract(Format.Builtin.TEXT_MAP, new HeadersMapExtractAdapter(props.getHeaders()));
+    if (context != null) {
+      Span span = childSpanBuilder(context, tracer).start();
+      SpanDecorator.onResponse(span);
+      return span;
+    }
+
+    return null;
+  }
+
+  private static Tracer.SpanBuilder childSpanBuilder(SpanContext context, Tracer tracer) {
+    return tracer.buildSpan("receive")
+        .ignoreActiveSpan()
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CONSUMER)
+        .addReference(References.FOLLOWS_FROM, context);
+  }
 }
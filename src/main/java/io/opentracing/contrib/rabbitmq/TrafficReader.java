@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the records of a {@link TrafficRecorder} file in order.
+ */
+public class TrafficReader implements Closeable {
+
+  private final DataInputStream in;
+  private final boolean bodiesRecorded;
+  private final long startTime;
+  private long timestampMicros;
+
+  private TrafficReader(DataInputStream in, boolean bodiesRecorded, long startTime) {
+    this.in = in;
+    this.bodiesRecorded = bodiesRecorded;
+    this.startTime = startTime;
+  }
+
+  public static TrafficReader open(Path file) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != TrafficRecorder.MAGIC) {
+        throw new IOException("Not a traffic recording: " + file);
+      }
+      int version = in.readUnsignedByte();
+      if (version != TrafficRecorder.VERSION) {
+        throw new IOException("Unsupported traffic recording version " + version + ": " + file);
+      }
+      boolean bodiesRecorded = in.readBoolean();
+      long startTime = in.readLong();
+      return new TrafficReader(in, bodiesRecorded, startTime);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  public boolean isBodiesRecorded() {
+    return bodiesRecorded;
+  }
+
+  /**
+   * @return when the recording started, in milliseconds since the epoch
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * @return the next record, or null at the end of the recording
+   */
+  public TrafficRecord next() throws IOException {
+    int type = in.read();
+    if (type < 0) {
+      return null;
+    }
+    try {
+      long timestamp = timestampMicros + readVarLong(in);
+      String exchange = in.readUTF();
+      String routingKey = in.readUTF();
+      int headerCount = (int) readVarLong(in);
+      Map<String, Object> headers = null;
+      if (headerCount > 0) {
+        headers = new HashMap<>(headerCount * 2);
+        for (int i = 0; i < headerCount; i++) {
+          String name = in.readUTF();
+          headers.put(name, readShape());
+        }
+      }
+      int bodySize = (int) readVarLong(in);
+      byte[] body = new byte[bodySize];
+      if (bodiesRecorded) {
+        in.readFully(body);
+      }
+      timestampMicros = timestamp;
+      return new TrafficRecord(type == TrafficRecorder.PUBLISH, timestamp, exchange, routingKey,
+          headers, bodySize, body);
+    } catch (EOFException e) {
+      // the recorder stopped in the middle of a record
+      return null;
+    }
+  }
+
+  /**
+   * @return a value of the recorded type and size
+   */
+  private Object readShape() throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case TrafficRecorder.STRING:
+        char[] chars = new char[(int) readVarLong(in)];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+      case TrafficRecorder.INTEGER:
+        return 0;
+      case TrafficRecorder.LONG:
+        return 0L;
+      case TrafficRecorder.BOOLEAN:
+        return Boolean.FALSE;
+      case TrafficRecorder.DOUBLE:
+        return 0.0;
+      case TrafficRecorder.BYTES:
+        return new byte[(int) readVarLong(in)];
+      case TrafficRecorder.TABLE:
+        readVarLong(in);
+        return Collections.emptyMap();
+      case TrafficRecorder.ARRAY:
+        readVarLong(in);
+        return new ArrayList<>();
+      default:
+        return "";
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length number");
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import java.util.Map;
+
+/**
+ * A publish or delivery read back from a {@link TrafficRecorder} file.
+ */
+public final class TrafficRecord {
+
+  private final boolean publish;
+  private final long timestampMicros;
+  private final String exchange;
+  private final String routingKey;
+  private final Map<String, Object> headers;
+  private final int bodySize;
+  private final byte[] body;
+
+  TrafficRecord(boolean publish, long timestampMicros, String exchange, String routingKey,
+      Map<String, Object> headers, int bodySize, byte[] body) {
+    this.publish = publish;
+    this.timestampMicros = timestampMicros;
+    this.exchange = exchange;
+    this.routingKey = routingKey;
+    this.headers = headers;
+    this.bodySize = bodySize;
+    this.body = body;
+  }
+
+  /**
+   * @return true for a publish, false for a delivery
+   */
+  public boolean isPublish() {
+    return publish;
+  }
+
+  /**
+   * @return microseconds since the recording started
+   */
+  public long getTimestampMicros() {
+    return timestampMicros;
+  }
+
+  public String getExchange() {
+    return exchange;
+  }
+
+  public String getRoutingKey() {
+    return routingKey;
+  }
+
+  /**
+   * @return headers with made up values of the recorded type and size, or null if the message had
+   * none
+   */
+  public Map<String, Object> getHeaders() {
+    return headers;
+  }
+
+  public int getBodySize() {
+    return bodySize;
+  }
+
+  /**
+   * @return the recorded body, or zeros of the recorded size if bodies were not recorded
+   */
+  public byte[] getBody() {
+    return body;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.LongString;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the shape of traffic of the channels it is set on with
+ * {@link TracingChannel#setTrafficRecorder(TrafficRecorder)}, to be replayed with
+ * {@link TrafficReplayer}.
+ *
+ * <p>For every publish and delivery it appends the time, exchange, routing key, header names with
+ * the type and size of their values, the body size, and optionally the body, to a binary file.
+ * Header values are not recorded. Numbers are written as variable length integers and times as
+ * microseconds since the previous record, so a record without body takes some 20 bytes plus names.
+ */
+public class TrafficRecorder implements Closeable, Flushable {
+
+  static final int MAGIC = 0x524d5154;
+  static final int VERSION = 1;
+
+  static final byte PUBLISH = 1;
+  static final byte DELIVERY = 2;
+
+  static final byte STRING = 'S';
+  static final byte INTEGER = 'I';
+  static final byte LONG = 'L';
+  static final byte BOOLEAN = 'T';
+  static final byte DOUBLE = 'D';
+  static final byte BYTES = 'B';
+  static final byte TABLE = 'F';
+  static final byte ARRAY = 'A';
+  static final byte OTHER = 'O';
+
+  private final DataOutputStream out;
+  private final boolean recordBodies;
+  private long lastNanos = System.nanoTime();
+  private boolean closed;
+
+  private TrafficRecorder(DataOutputStream out, boolean recordBodies) {
+    this.out = out;
+    this.recordBodies = recordBodies;
+  }
+
+  /**
+   * @param recordBodies whether to record message bodies, or only their size
+   */
+  public static TrafficRecorder open(Path file, boolean recordBodies) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(file, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeBoolean(recordBodies);
+    out.writeLong(System.currentTimeMillis());
+    return new TrafficRecorder(out, recordBodies);
+  }
+
+  void recordPublish(String exchange, String routingKey, AMQP.BasicProperties props,
+      byte[] body) {
+    record(PUBLISH, exchange, routingKey, props, body);
+  }
+
+  void recordDelivery(String exchange, String routingKey, AMQP.BasicProperties props,
+      byte[] body) {
+    record(DELIVERY, exchange, routingKey, props, body);
+  }
+
+  /**
+   * Recording must not fail the traffic, a record that cannot be written is dropped.
+   */
+  private synchronized void record(byte type, String exchange, String routingKey,
+      AMQP.BasicProperties props, byte[] body) {
+    if (closed) {
+      return;
+    }
+    long now = System.nanoTime();
+    try {
+      out.writeByte(type);
+      writeVarLong(out, (now - lastNanos) / 1000);
+      out.writeUTF(exchange);
+      out.writeUTF(routingKey);
+      Map<String, Object> headers = props != null ? props.getHeaders() : null;
+      if (headers == null) {
+        writeVarLong(out, 0);
+      } else {
+        writeVarLong(out, headers.size());
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+          out.writeUTF(header.getKey());
+          writeShape(header.getValue());
+        }
+      }
+      int bodySize = body != null ? body.length : 0;
+      writeVarLong(out, bodySize);
+      if (recordBodies && bodySize > 0) {
+        out.write(body);
+      }
+      lastNanos = now;
+    } catch (IOException e) {
+      closed = true;
+    }
+  }
+
+  private void writeShape(Object value) throws IOException {
+    if (value instanceof String || value instanceof LongString) {
+      out.writeByte(STRING);
+      writeVarLong(out, value instanceof String ? ((String) value).length()
+          : ((LongString) value).length());
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      out.writeByte(INTEGER);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+    } else if (value instanceof Double || value instanceof Float) {
+      out.writeByte(DOUBLE);
+    } else if (value instanceof byte[]) {
+      out.writeByte(BYTES);
+      writeVarLong(out, ((byte[]) value).length);
+    } else if (value instanceof Map) {
+      out.writeByte(TABLE);
+      writeVarLong(out, ((Map<?, ?>) value).size());
+    } else if (value instanceof List) {
+      out.writeByte(ARRAY);
+      writeVarLong(out, ((List<?>) value).size());
+    } else {
+      out.writeByte(OTHER);
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (!closed) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    out.close();
+  }
+
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
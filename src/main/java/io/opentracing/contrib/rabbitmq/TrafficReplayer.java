@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the recorded publishes of a {@link TrafficRecorder} file again through a
+ * {@link TracingChannel}, keeping their timing. Recorded deliveries are only counted, they are what
+ * the broker made of the publishes.
+ */
+public class TrafficReplayer {
+
+  private final TracingChannel channel;
+  private final double speed;
+  private long publishCount;
+  private long deliveryCount;
+
+  /**
+   * @param speed 1 for the recorded pace, 2 for twice as fast, 0 for as fast as possible
+   */
+  public TrafficReplayer(TracingChannel channel, double speed) {
+    if (speed < 0) {
+      throw new IllegalArgumentException("speed must not be negative: " + speed);
+    }
+    this.channel = channel;
+    this.speed = speed;
+  }
+
+  public void replay(Path file) throws IOException, InterruptedException {
+    try (TrafficReader reader = TrafficReader.open(file)) {
+      long start = System.nanoTime();
+      TrafficRecord record;
+      while ((record = reader.next()) != null) {
+        if (!record.isPublish()) {
+          deliveryCount++;
+          continue;
+        }
+        if (speed > 0) {
+          long due = start + (long) (record.getTimestampMicros() * 1000 / speed);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        }
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+            .headers(record.getHeaders())
+            .build();
+        channel.basicPublish(record.getExchange(), record.getRoutingKey(), props,
+            record.getBody());
+        publishCount++;
+      }
+    }
+  }
+
+  public long getPublishCount() {
+    return publishCount;
+  }
+
+  /**
+   * @return deliveries found in the recording
+   */
+  public long getDeliveryCount() {
+    return deliveryCount;
+  }
+}
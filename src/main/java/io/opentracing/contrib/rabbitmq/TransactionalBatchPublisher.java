@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.opentracing.References;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes messages in transactions of several messages each, on a channel of its own. Either all
+ * messages of a transaction reach their queues or none does.
+ *
+ * <p>A transaction is committed once it holds as many messages as the current batch size, or once
+ * its first message waited for the linger time. The batch size grows by one after every commit
+ * that took no longer than the target latency and is halved after every slower one, so it settles
+ * at the largest batch the broker commits in time.
+ *
+ * <p>Each commit is traced as a "commit" span that follows from the send spans of its messages.
+ * Send spans are children of the span active when the message was handed over, and finish once
+ * the transaction is settled, tagged as errors if it was rolled back.
+ */
+public class TransactionalBatchPublisher implements Closeable {
+
+  private final TracingConnection connection;
+  private final Tracer tracer;
+  private final int maxBatchSize;
+  private final long lingerNanos;
+  private final long targetLatencyNanos;
+  private final BlockingQueue<PendingPublish> queue = new LinkedBlockingQueue<>();
+  private final Thread sender;
+  private volatile boolean closed;
+  private volatile int batchSize = 1;
+  private volatile long commitLatencyNanos;
+
+  // only touched by the sender thread
+  private TracingChannel channel;
+  private Channel delegate;
+
+  /**
+   * @param maxBatchSize max number of messages per transaction
+   * @param linger how long a message waits at most for others to share its transaction
+   * @param targetLatency commit latency above which the batch size is reduced
+   */
+  public TransactionalBatchPublisher(TracingConnection connection, int maxBatchSize, long linger,
+      long targetLatency, TimeUnit unit) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+    }
+    this.connection = connection;
+    this.tracer = connection.tracer();
+    this.maxBatchSize = maxBatchSize;
+    this.lingerNanos = unit.toNanos(linger);
+    this.targetLatencyNanos = unit.toNanos(targetLatency);
+    this.sender = new DaemonThreadFactory("rabbitmq-tx-publisher-" + connection)
+        .newThread(this::run);
+    sender.start();
+  }
+
+  /**
+   * @return completed once the transaction holding the message is committed, or exceptionally if
+   * it was rolled back
+   */
+  public CompletableFuture<Void> publish(String exchange, String routingKey,
+      AMQP.BasicProperties props, byte[] body) {
+    if (closed) {
+      throw new IllegalStateException("Publisher is closed");
+    }
+    PendingPublish pending = new PendingPublish(exchange, routingKey, props, body,
+        TracingChannel.parentContext(tracer, props));
+    queue.add(pending);
+    return pending.future;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return how long the last commit took
+   */
+  public long getCommitLatency(TimeUnit unit) {
+    return unit.convert(commitLatencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Commits messages still waiting and closes the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      sender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // raced with close()
+    for (PendingPublish pending; (pending = queue.poll()) != null; ) {
+      pending.future.completeExceptionally(new IllegalStateException("Publisher is closed"));
+    }
+    if (channel != null && channel.isOpen()) {
+      try {
+        channel.close();
+      } catch (TimeoutException | ShutdownSignalException e) {
+        throw new IOException("Failed to close transactional channel", e);
+      }
+    }
+  }
+
+  private void run() {
+    List<PendingPublish> batch = new ArrayList<>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        PendingPublish first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = first.enqueuedAt + lingerNanos;
+        int size = batchSize;
+        while (batch.size() < size) {
+          long wait = deadline - System.nanoTime();
+          PendingPublish next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // only close() ends the sender
+      }
+      if (!batch.isEmpty()) {
+        commit(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private void commit(List<PendingPublish> batch) {
+    Tracer.SpanBuilder spanBuilder = tracer.buildSpan("commit").ignoreActiveSpan();
+    List<Span> sendSpans = new ArrayList<>(batch.size());
+    try {
+      TracingChannel channel = channel();
+      for (PendingPublish pending : batch) {
+        Span span = channel.buildSpan(pending.exchange, pending.parent, Collections.emptyList());
+        sendSpans.add(span);
+        spanBuilder.addReference(References.FOLLOWS_FROM, span.context());
+        // straight to the delegate, the send span stays open until the commit
+        delegate.basicPublish(pending.exchange, pending.routingKey,
+            channel.inject(pending.props, span), pending.body);
+      }
+      Span span = spanBuilder.start();
+      SpanDecorator.onCommit(span, batch.size());
+      long start = System.nanoTime();
+      try {
+        channel.txCommit();
+      } catch (IOException | ShutdownSignalException e) {
+        SpanDecorator.onError(e, span);
+        throw e;
+      } finally {
+        span.finish();
+      }
+      adapt(batch.size(), System.nanoTime() - start);
+      sendSpans.forEach(Span::finish);
+      for (PendingPublish pending : batch) {
+        pending.future.complete(null);
+      }
+    } catch (IOException | RuntimeException e) {
+      rollback();
+      for (Span span : sendSpans) {
+        SpanDecorator.onError(e, span);
+        span.finish();
+      }
+      for (PendingPublish pending : batch) {
+        pending.future.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Additive increase, multiplicative decrease of the batch size.
+   */
+  private void adapt(int committed, long latencyNanos) {
+    commitLatencyNanos = latencyNanos;
+    if (latencyNanos > targetLatencyNanos) {
+      batchSize = Math.max(1, batchSize / 2);
+    } else if (committed >= batchSize) {
+      // only a full batch says something about a larger one
+      batchSize = Math.min(maxBatchSize, batchSize + 1);
+    }
+  }
+
+  private void rollback() {
+    if (channel == null || !channel.isOpen()) {
+      // the broker discards an open transaction together with its channel
+      channel = null;
+      return;
+    }
+    try {
+      channel.txRollback();
+    } catch (IOException | ShutdownSignalException e) {
+      channel = null;
+    }
+  }
+
+  private TracingChannel channel() throws IOException {
+    if (channel == null || !channel.isOpen()) {
+      Channel delegate = connection.delegate().createChannel();
+      if (delegate == null) {
+        throw new IOException("No channel available for transactions");
+      }
+      // not a channel of the connection, publishes must not take the outbox or buffer
+      channel = new TracingChannel(delegate, tracer);
+      channel.txSelect();
+      this.delegate = delegate;
+    }
+    return channel;
+  }
+
+  private static final class PendingPublish {
+
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+    final SpanContext parent;
+    final long enqueuedAt = System.nanoTime();
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    PendingPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+        SpanContext parent) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+      this.parent = parent;
+    }
+  }
+}
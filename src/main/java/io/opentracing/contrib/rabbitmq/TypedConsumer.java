@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import java.io.IOException;
+
+/**
+ * Consumer of decoded messages, see
+ * {@link TracingChannel#basicConsume(String, boolean, Codec, TypedConsumer)}.
+ */
+public interface TypedConsumer<T> {
+
+  /**
+   * @param span "receive" span of the delivery, or null if the message carries no span context
+   */
+  void handleMessage(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+      T message, Span span) throws IOException;
+
+  /**
+   * Called instead of {@link #handleMessage} for a delivery of another content type or one the
+   * codec failed on. Unless consuming with auto ack, the delivery is already rejected without
+   * requeue, so it goes to the dead letter exchange of the queue, if any. Does nothing by default.
+   *
+   * @param cause why the delivery could not be decoded
+   */
+  default void handleDecodeFailure(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Exception cause) throws IOException {
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMap;
+import java.util.Iterator;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java 11 version of the Flight Recorder events, in the multi-release jar. While an event type is
+ * disabled, its begin method returns null after a check the JIT reduces to a flag read, so the
+ * traced operation pays next to nothing.
+ *
+ * <p>The trace context of an event is what the tracer injects into message headers, formatted as
+ * {@code key=value} pairs: for publishes that of the send span, for deliveries and gets that of
+ * the producer, read back from the headers of the message.
+ */
+final class FlightRecorderEvents {
+
+  private FlightRecorderEvents() {
+  }
+
+  static boolean isAvailable() {
+    return true;
+  }
+
+  static Object beginPublish() {
+    PublishEvent event = new PublishEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  static void commitPublish(Object event, String exchange, String routingKey, byte[] body,
+      Tracer tracer, Span span) {
+    if (event == null) {
+      return;
+    }
+    PublishEvent publish = (PublishEvent) event;
+    publish.end();
+    if (publish.shouldCommit()) {
+      publish.exchange = exchange;
+      publish.routingKey = routingKey;
+      publish.bodySize = body != null ? body.length : 0;
+      publish.traceContext = span != null ? format(tracer, span.context()) : null;
+      publish.commit();
+    }
+  }
+
+  static Object beginDelivery() {
+    DeliveryEvent event = new DeliveryEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  static void commitDelivery(Object event, String queue, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body, Tracer tracer) {
+    if (event == null) {
+      return;
+    }
+    DeliveryEvent delivery = (DeliveryEvent) event;
+    delivery.end();
+    if (delivery.shouldCommit()) {
+      delivery.queue = queue;
+      delivery.exchange = envelope.getExchange();
+      delivery.routingKey = envelope.getRoutingKey();
+      delivery.deliveryTag = envelope.getDeliveryTag();
+      delivery.redelivered = envelope.isRedeliver();
+      delivery.bodySize = body != null ? body.length : 0;
+      delivery.traceContext = format(tracer, properties);
+      delivery.commit();
+    }
+  }
+
+  static Object beginGet() {
+    GetEvent event = new GetEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  static void commitGet(Object event, String queue, GetResponse response, Tracer tracer) {
+    if (event == null) {
+      return;
+    }
+    GetEvent get = (GetEvent) event;
+    get.end();
+    if (get.shouldCommit()) {
+      get.queue = queue;
+      get.empty = response == null;
+      if (response != null) {
+        get.exchange = response.getEnvelope().getExchange();
+        get.routingKey = response.getEnvelope().getRoutingKey();
+        get.deliveryTag = response.getEnvelope().getDeliveryTag();
+        get.bodySize = response.getBody() != null ? response.getBody().length : 0;
+        get.traceContext = format(tracer, response.getProps());
+      }
+      get.commit();
+    }
+  }
+
+  static void settle(String method, long deliveryTag, boolean multiple) {
+    SettleEvent event = new SettleEvent();
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.deliveryTag = deliveryTag;
+      event.multiple = multiple;
+      event.commit();
+    }
+  }
+
+  static void confirm(long deliveryTag, boolean multiple, boolean ack) {
+    ConfirmEvent event = new ConfirmEvent();
+    if (event.shouldCommit()) {
+      event.deliveryTag = deliveryTag;
+      event.multiple = multiple;
+      event.ack = ack;
+      event.commit();
+    }
+  }
+
+  private static String format(Tracer tracer, AMQP.BasicProperties properties) {
+    if (properties == null || properties.getHeaders() == null) {
+      return null;
+    }
+    SpanContext context = tracer.extract(Format.Builtin.TEXT_MAP,
+        new HeadersMapExtractAdapter(properties.getHeaders()));
+    return context != null ? format(tracer, context) : null;
+  }
+
+  private static String format(Tracer tracer, SpanContext context) {
+    StringBuilder builder = new StringBuilder();
+    tracer.inject(context, Format.Builtin.TEXT_MAP, new TextMap() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        throw new UnsupportedOperationException("Inject only");
+      }
+
+      @Override
+      public void put(String key, String value) {
+        if (builder.length() > 0) {
+          builder.append(',');
+        }
+        builder.append(key).append('=').append(value);
+      }
+    });
+    return builder.length() > 0 ? builder.toString() : null;
+  }
+
+  @Name("io.opentracing.contrib.rabbitmq.Publish")
+  @Label("RabbitMQ Publish")
+  @Description("Message published on a traced channel")
+  @Category({"RabbitMQ"})
+  @StackTrace(false)
+  static final class PublishEvent extends Event {
+
+    @Label("Exchange")
+    String exchange;
+
+    @Label("Routing Key")
+    String routingKey;
+
+    @Label("Body Size")
+    @DataAmount
+    int bodySize;
+
+    @Label("Trace Context")
+    String traceContext;
+  }
+
+  @Name("io.opentracing.contrib.rabbitmq.Delivery")
+  @Label("RabbitMQ Delivery")
+  @Description("Delivery handled by a traced consumer, including the consumer's own time")
+  @Category({"RabbitMQ"})
+  @StackTrace(false)
+  static final class DeliveryEvent extends Event {
+
+    @Label("Queue")
+    String queue;
+
+    @Label("Exchange")
+    String exchange;
+
+    @Label("Routing Key")
+    String routingKey;
+
+    @Label("Delivery Tag")
+    long deliveryTag;
+
+    @Label("Redelivered")
+    boolean redelivered;
+
+    @Label("Body Size")
+    @DataAmount
+    int bodySize;
+
+    @Label("Trace Context")
+    String traceContext;
+  }
+
+  @Name("io.opentracing.contrib.rabbitmq.Get")
+  @Label("RabbitMQ Get")
+  @Description("Synchronous basic.get on a traced channel")
+  @Category({"RabbitMQ"})
+  @StackTrace(false)
+  static final class GetEvent extends Event {
+
+    @Label("Queue")
+    String queue;
+
+    @Label("Empty")
+    boolean empty;
+
+    @Label("Exchange")
+    String exchange;
+
+    @Label("Routing Key")
+    String routingKey;
+
+    @Label("Delivery Tag")
+    long deliveryTag;
+
+    @Label("Body Size")
+    @DataAmount
+    int bodySize;
+
+    @Label("Trace Context")
+    String traceContext;
+  }
+
+  @Name("io.opentracing.contrib.rabbitmq.Settle")
+  @Label("RabbitMQ Ack")
+  @Description("Ack, nack or reject of deliveries on a traced channel")
+  @Category({"RabbitMQ"})
+  @StackTrace(false)
+  static final class SettleEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Delivery Tag")
+    long deliveryTag;
+
+    @Label("Multiple")
+    boolean multiple;
+  }
+
+  @Name("io.opentracing.contrib.rabbitmq.Confirm")
+  @Label("RabbitMQ Confirm")
+  @Description("Publisher confirm received on a traced channel")
+  @Category({"RabbitMQ"})
+  @StackTrace(false)
+  static final class ConfirmEvent extends Event {
+
+    @Label("Delivery Tag")
+    long deliveryTag;
+
+    @Label("Multiple")
+    boolean multiple;
+
+    @Label("Ack")
+    boolean ack;
+  }
+}
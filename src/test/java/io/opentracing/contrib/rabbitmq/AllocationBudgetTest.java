@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.propagation.Format;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the bytes allocated per publish, delivery and get against the budgets in
+ * allocation-budgets.properties. Only the wrapper is measured: the same call on the bare stub
+ * channel is subtracted. Each figure is the lowest of several batches, after warm up, so that
+ * the JIT has done its work and a stray TLAB refill does not count.
+ */
+public class AllocationBudgetTest {
+
+  private static final int BATCH = 2_000;
+  private static final int WARMUP_BATCHES = 50;
+  private static final int MEASURED_BATCHES = 20;
+
+  private static final byte[] BODY = new byte[64];
+  private static final Envelope ENVELOPE = new Envelope(1L, false, "exchange", "key");
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static Properties budgets;
+
+  private final List<String> failures = new ArrayList<>();
+
+  @BeforeClass
+  public static void init() throws IOException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threads = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    budgets = new Properties();
+    try (InputStream in = AllocationBudgetTest.class
+        .getResourceAsStream("/allocation-budgets.properties")) {
+      budgets.load(in);
+    }
+  }
+
+  @Test
+  public void publish() throws IOException {
+    for (Config config : Config.values()) {
+      AMQP.BasicProperties props = config.props(false);
+      Channel stub = stubChannel(null);
+      TracingChannel channel = new TracingChannel(stub, config.tracer());
+      check("publish", config, () -> channel.basicPublish("exchange", "key", props, BODY),
+          () -> stub.basicPublish("exchange", "key", props, BODY));
+    }
+    assertWithinBudgets();
+  }
+
+  @Test
+  public void delivery() throws IOException {
+    for (Config config : Config.values()) {
+      AMQP.BasicProperties props = config.props(true);
+      DefaultConsumer consumer = new DefaultConsumer(null);
+      TracingConsumer tracingConsumer = new TracingConsumer(consumer, config.tracer());
+      check("delivery", config,
+          () -> tracingConsumer.handleDelivery("tag", ENVELOPE, props, BODY),
+          () -> consumer.handleDelivery("tag", ENVELOPE, props, BODY));
+    }
+    assertWithinBudgets();
+  }
+
+  @Test
+  public void deliveryCallback() throws IOException {
+    for (Config config : Config.values()) {
+      AMQP.BasicProperties props = config.props(true);
+      CallbackConsumer consumer = new CallbackConsumer((consumerTag, delivery) -> {
+      }, null, null);
+      TracingConsumer tracingConsumer = new TracingConsumer(consumer, config.tracer());
+      check("delivery-callback", config,
+          () -> tracingConsumer.handleDelivery("tag", ENVELOPE, props, BODY),
+          () -> consumer.handleDelivery("tag", ENVELOPE, props, BODY));
+    }
+    assertWithinBudgets();
+  }
+
+  @Test
+  public void get() throws IOException {
+    for (Config config : Config.values()) {
+      GetResponse response = new GetResponse(ENVELOPE, config.props(true), BODY, 0);
+      Channel stub = stubChannel(response);
+      TracingChannel channel = new TracingChannel(stub, config.tracer());
+      check("get", config, () -> channel.basicGet("queue", true),
+          () -> stub.basicGet("queue", true));
+    }
+    assertWithinBudgets();
+  }
+
+  private void check(String path, Config config, Operation traced, Operation bare)
+      throws IOException {
+    long measured = Math.max(0, bytesPerOp(traced, config) - bytesPerOp(bare, config));
+    String key = path + "." + config.key;
+    String budget = budgets.getProperty(key);
+    if (budget == null) {
+      failures.add(key + ": no budget, measured " + measured);
+    } else if (measured > Long.parseLong(budget.trim())) {
+      failures.add(key + ": " + measured + " bytes per operation, budget " + budget.trim());
+    }
+  }
+
+  private void assertWithinBudgets() {
+    if (!failures.isEmpty()) {
+      fail("Allocation budgets exceeded:\n" + String.join("\n", failures));
+    }
+  }
+
+  private static long bytesPerOp(Operation operation, Config config) throws IOException {
+    long threadId = Thread.currentThread().getId();
+    long best = Long.MAX_VALUE;
+    for (int batch = 0; batch < WARMUP_BATCHES + MEASURED_BATCHES; batch++) {
+      // finished spans pile up in the mock tracer, drop them outside the measurement
+      config.reset();
+      long before = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < BATCH; i++) {
+        operation.run();
+      }
+      long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+      if (batch >= WARMUP_BATCHES) {
+        best = Math.min(best, allocated);
+      }
+    }
+    assertTrue(best >= 0);
+    return best / BATCH;
+  }
+
+  private static Channel stubChannel(GetResponse response) {
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[]{Channel.class},
+        (proxy, method, args) -> method.getName().equals("basicGet") ? response : null);
+  }
+
+  private interface Operation {
+
+    void run() throws IOException;
+  }
+
+  /**
+   * Message shape and tracer. The mock tracer records every span, like a sampling tracer; the
+   * noop tracer stands in for an unsampled trace.
+   */
+  private enum Config {
+    NO_HEADERS_SAMPLED("no-headers.sampled", false, true),
+    NO_HEADERS_UNSAMPLED("no-headers.unsampled", false, false),
+    HEADERS_SAMPLED("headers.sampled", true, true),
+    HEADERS_UNSAMPLED("headers.unsampled", true, false);
+
+    final String key;
+    final boolean headers;
+    final MockTracer mockTracer;
+
+    Config(String key, boolean headers, boolean sampled) {
+      this.key = key;
+      this.headers = headers;
+      this.mockTracer = sampled ? new MockTracer(new ThreadLocalScopeManager(),
+          MockTracer.Propagator.TEXT_MAP) : null;
+    }
+
+    Tracer tracer() {
+      return mockTracer != null ? mockTracer : NoopTracerFactory.create();
+    }
+
+    void reset() {
+      if (mockTracer != null) {
+        mockTracer.reset();
+      }
+    }
+
+    /**
+     * @param delivered whether the message comes from the broker, then the headers carry a span
+     * context, and properties without headers are empty instead of null
+     */
+    AMQP.BasicProperties props(boolean delivered) {
+      if (!headers) {
+        return delivered ? new AMQP.BasicProperties() : null;
+      }
+      Map<String, Object> map = new HashMap<>();
+      map.put("app-id", "allocation-test");
+      map.put("attempt", 1);
+      if (delivered) {
+        MockTracer source = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+        source.inject(source.buildSpan("send").start().context(), Format.Builtin.TEXT_MAP,
+            new HeadersMapInjectAdapter(map));
+      }
+      return new AMQP.BasicProperties.Builder().headers(map).build();
+    }
+  }
+}
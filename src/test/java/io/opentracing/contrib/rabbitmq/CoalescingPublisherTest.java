@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.rabbitmq.client.Channel;
+import io.opentracing.References;
+import io.opentracing.Scope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class CoalescingPublisherTest {
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Test
+  public void publishesLatestPerKey() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingChannel channel = (TracingChannel) new TracingConnection(connection, mockTracer)
+        .createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    CoalescingPublisher publisher = new CoalescingPublisher(channel, 1, TimeUnit.HOURS);
+
+    for (int i = 0; i < 3; i++) {
+      Scope scope = mockTracer.buildSpan("update").startActive(true);
+      publisher.publish("EURUSD", "", queue, null, new byte[]{(byte) i});
+      scope.close();
+    }
+    publisher.publish("GBPUSD", "", queue, null, new byte[]{9});
+    assertEquals(2, publisher.getPendingCount());
+    publisher.flush();
+
+    assertEquals(0, publisher.getPendingCount());
+    assertEquals(2, publisher.getPublishedCount());
+    assertEquals(2, publisher.getCoalescedCount());
+    Channel plain = connection.createChannel();
+    assertArrayEquals(new byte[]{2}, plain.basicGet(queue, true).getBody());
+    assertArrayEquals(new byte[]{9}, plain.basicGet(queue, true).getBody());
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(5, spans.size());
+    MockSpan latest = spans.get(3);
+    assertEquals("send", latest.operationName());
+    assertEquals(spans.get(2).context().spanId(), latest.parentId());
+    assertEquals(2, latest.tags().get(SpanDecorator.COALESCED_TAG));
+    List<MockSpan.Reference> references = latest.references();
+    assertEquals(3, references.size());
+    assertEquals(References.FOLLOWS_FROM, references.get(1).getReferenceType());
+    assertEquals(spans.get(0).context().spanId(), references.get(1).getContext().spanId());
+    assertEquals(spans.get(1).context().spanId(), references.get(2).getContext().spanId());
+    assertNull(spans.get(4).tags().get(SpanDecorator.COALESCED_TAG));
+
+    publisher.close();
+    connection.close();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class CodecTest {
+
+  private static final Codec<String> UTF8 = new Codec<String>() {
+    @Override
+    public String contentType() {
+      return "text/plain";
+    }
+
+    @Override
+    public void encode(String value, CodecBuffer buffer) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      buffer.write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public String decode(byte[] body) throws IOException {
+      return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(body)).toString();
+    }
+  };
+
+  @Test
+  public void publishAndConsumeTyped() throws Exception {
+    MockTracer tracer = new MockTracer(new ThreadLocalScopeManager(),
+        MockTracer.Propagator.TEXT_MAP);
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(), tracer);
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+
+    BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    channel.basicConsume(queue, true, UTF8, new TypedConsumer<String>() {
+      @Override
+      public void handleMessage(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, String message, Span span) {
+        assertEquals("text/plain", properties.getContentType());
+        assertNotNull(span);
+        received.add(message);
+      }
+    });
+    channel.basicPublish("", queue, null, "hello", UTF8);
+
+    assertEquals("hello", received.poll(10, TimeUnit.SECONDS));
+    // the receive span is finished once the consumer returned
+    for (int i = 0; i < 100 && tracer.finishedSpans().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    connection.close();
+    for (MockSpan span : tracer.finishedSpans()) {
+      String tag = span.operationName().equals("send") ? SpanDecorator.SERIALIZE_TIME_TAG
+          : SpanDecorator.DESERIALIZE_TIME_TAG;
+      assertTrue(span.tags().get(tag) instanceof Long);
+    }
+    assertEquals(2, tracer.finishedSpans().size());
+  }
+
+  @Test
+  public void rejectsUndecodable() throws Exception {
+    MockTracer tracer = new MockTracer(new ThreadLocalScopeManager(),
+        MockTracer.Propagator.TEXT_MAP);
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(), tracer);
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+
+    BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    BlockingQueue<Exception> failures = new LinkedBlockingQueue<>();
+    channel.basicConsume(queue, false, UTF8, new TypedConsumer<String>() {
+      @Override
+      public void handleMessage(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, String message, Span span) throws IOException {
+        received.add(message);
+        channel.basicAck(envelope.getDeliveryTag(), false);
+      }
+
+      @Override
+      public void handleDecodeFailure(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body, Exception cause) {
+        failures.add(cause);
+      }
+    });
+    channel.basicPublish("", queue, null, new byte[]{(byte) 0xff});
+    channel.basicPublish("", queue,
+        new AMQP.BasicProperties.Builder().contentType("application/json").build(),
+        "{}".getBytes(StandardCharsets.UTF_8));
+    channel.basicPublish("", queue, null, "hello", UTF8);
+
+    assertTrue(failures.poll(10, TimeUnit.SECONDS) instanceof CharacterCodingException);
+    assertTrue(failures.poll(10, TimeUnit.SECONDS).getMessage().contains("application/json"));
+    // the channel survives and rejected deliveries are not redelivered
+    assertEquals("hello", received.poll(10, TimeUnit.SECONDS));
+    assertTrue(channel.isOpen());
+    assertEquals(0, channel.messageCount(queue));
+    assertEquals(0, channel.getUnackedCount());
+    connection.close();
+
+    long errors = tracer.finishedSpans().stream()
+        .filter(span -> span.operationName().equals("receive"))
+        .filter(span -> Boolean.TRUE.equals(span.tags().get("error")))
+        .count();
+    assertEquals(2, errors);
+  }
+
+  @Test
+  public void bufferGrows() {
+    CodecBuffer buffer = CodecBuffer.forThread();
+    byte[] chunk = new byte[700];
+    buffer.write(chunk, 0, chunk.length);
+    buffer.write(chunk, 0, chunk.length);
+    buffer.write(1);
+    assertEquals(1401, buffer.size());
+    assertEquals(1401, buffer.toByteArray().length);
+    assertEquals(0, CodecBuffer.forThread().size());
+  }
+}
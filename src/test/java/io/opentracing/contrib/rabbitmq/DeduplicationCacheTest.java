@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DeduplicationCacheTest {
+
+  @Test
+  public void remembersKeys() {
+    DeduplicationCache cache = new DeduplicationCache(1000, 1, TimeUnit.HOURS);
+    assertFalse(cache.contains("a"));
+    cache.add("a");
+    assertTrue(cache.contains("a"));
+    assertFalse(cache.contains("b"));
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+  }
+
+  @Test
+  public void boundedBySize() {
+    DeduplicationCache cache = new DeduplicationCache(1000, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 100_000; i++) {
+      cache.add("message-" + i);
+    }
+    assertTrue(cache.size() <= 1000);
+    assertTrue(cache.getMemoryBytes() <= 1000 * 32);
+    // the most recent keys are still there
+    assertTrue(cache.contains("message-99999"));
+  }
+
+  @Test
+  public void expiresKeys() throws Exception {
+    DeduplicationCache cache = new DeduplicationCache(1000, 50, TimeUnit.MILLISECONDS);
+    cache.add("a");
+    TimeUnit.MILLISECONDS.sleep(120);
+    assertFalse(cache.contains("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void rememberKeyOnlyOnceAcked() {
+    DeduplicationCache cache = new DeduplicationCache(1000, 1, TimeUnit.HOURS);
+    Deduplicator deduplicator = new Deduplicator(cache, "key");
+    long first = deduplicator.fingerprint(props("first"));
+    long second = deduplicator.fingerprint(props("second"));
+    assertEquals(0L, deduplicator.fingerprint(new AMQP.BasicProperties()));
+
+    deduplicator.onDelivery(1, first, false);
+    deduplicator.onDelivery(2, second, false);
+    assertFalse(deduplicator.isDuplicate(first));
+
+    deduplicator.onNack(1, false);
+    deduplicator.onAck(2, true);
+    assertFalse(deduplicator.isDuplicate(first));
+    assertTrue(deduplicator.isDuplicate(second));
+  }
+
+  private static AMQP.BasicProperties props(String key) {
+    return new AMQP.BasicProperties.Builder()
+        .headers(Collections.<String, Object>singletonMap("key", key))
+        .build();
+  }
+}
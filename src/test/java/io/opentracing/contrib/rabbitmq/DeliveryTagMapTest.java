@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class DeliveryTagMapTest {
+
+  @Test
+  public void removesSingleTags() {
+    DeliveryTagMap<String> map = new DeliveryTagMap<>(4);
+    List<String> removed = new ArrayList<>();
+    for (long tag = 1; tag <= 10; tag++) {
+      map.put(tag, "m" + tag);
+    }
+    // tags 5 to 10 did not fit the ring
+    assertEquals(10, map.size());
+
+    assertTrue(map.remove(9, removed::add));
+    assertTrue(map.remove(2, removed::add));
+    assertFalse(map.remove(2, removed::add));
+    assertFalse(map.remove(11, removed::add));
+    assertEquals(Arrays.asList("m9", "m2"), removed);
+    assertEquals(8, map.size());
+  }
+
+  @Test
+  public void removesUpToTag() {
+    DeliveryTagMap<String> map = new DeliveryTagMap<>(4);
+    List<String> removed = new ArrayList<>();
+    for (long tag = 1; tag <= 10; tag++) {
+      map.put(tag, "m" + tag);
+    }
+
+    map.removeUpTo(3, removed::add);
+    assertEquals(Arrays.asList("m1", "m2", "m3"), removed);
+    assertEquals(7, map.size());
+
+    removed.clear();
+    map.put(11, "m11");
+    map.removeUpTo(7, removed::add);
+    assertEquals(4, removed.size());
+    assertEquals(4, map.size());
+
+    removed.clear();
+    map.removeUpTo(0, removed::add);
+    assertEquals(4, removed.size());
+    assertEquals(0, map.size());
+  }
+
+  @Test
+  public void allowsNullValues() {
+    DeliveryTagMap<String> map = new DeliveryTagMap<>(2);
+    map.put(1, null);
+    map.put(3, null);
+    List<String> removed = new ArrayList<>();
+    assertTrue(map.remove(3, removed::add));
+    map.clear(removed::add);
+    assertEquals(Arrays.asList(null, null), removed);
+    assertEquals(0, map.size());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static io.opentracing.contrib.rabbitmq.ElasticConsumerGroup.desiredConsumers;
+import static org.junit.Assert.assertEquals;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.mock.MockTracer;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ElasticConsumerGroupTest {
+
+  @Test
+  public void sizesByLittlesLaw() {
+    // 100 msg/s at 50 ms each keeps 5 consumers busy, plus 20% headroom
+    assertEquals(6, desiredConsumers(100, 0.05, 0, 60, 1));
+    // working off 6000 messages within a minute takes another 5
+    assertEquals(11, desiredConsumers(100, 0.05, 6000, 60, 1));
+    assertEquals(0, desiredConsumers(0, 0.05, 0, 60, 4));
+  }
+
+  @Test
+  public void probesWithoutMeasurements() {
+    assertEquals(3, desiredConsumers(0, Double.NaN, 10, 60, 2));
+    assertEquals(2, desiredConsumers(0, Double.NaN, 0, 60, 2));
+  }
+
+  @Test
+  public void addsAndRemovesConsumers() throws Exception {
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(),
+        new MockTracer());
+    Channel publisher = connection.createChannel();
+    publisher.queueDeclare("work", false, false, false, null);
+    List<Channel> channels = new CopyOnWriteArrayList<>();
+    ElasticConsumerGroup group = new ElasticConsumerGroup(connection, "work", channel -> {
+      channels.add(channel);
+      return new DefaultConsumer(channel) {
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope,
+            AMQP.BasicProperties properties, byte[] body) throws IOException {
+          try {
+            TimeUnit.MILLISECONDS.sleep(15);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          getChannel().basicAck(envelope.getDeliveryTag(), false);
+        }
+      };
+    }, 1, 3);
+    group.setScaleDownIntervals(1);
+    group.start(50, TimeUnit.MILLISECONDS);
+    assertEquals(1, group.getConsumerCount());
+
+    // about 200 msg/s at 15 ms each needs three consumers
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (group.getConsumerCount() < 3 && System.nanoTime() < deadline) {
+      publisher.basicPublish("", "work", null, new byte[0]);
+      TimeUnit.MILLISECONDS.sleep(5);
+    }
+    assertEquals(3, group.getConsumerCount());
+    assertEquals(3, channels.size());
+
+    // without load the group shrinks back to its minimum and closes the removed channels
+    deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while ((group.getConsumerCount() > 1 || openChannels(channels) > 1)
+        && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertEquals(1, group.getConsumerCount());
+    assertEquals(1, openChannels(channels));
+
+    group.close();
+    connection.close();
+  }
+
+  private static long openChannels(List<Channel> channels) {
+    return channels.stream().filter(Channel::isOpen).count();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Span;
+import io.opentracing.mock.MockTracer;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the Java 11 {@link FlightRecorderEvents} from the multi-release output against the Java 8
+ * stub, so that a signature drift between the two fails the build instead of the first publish on
+ * a Java 11 runtime.
+ */
+public class FlightRecorderEventsTest {
+
+  private static final String EVENTS = FlightRecorderEvents.class.getName();
+
+  private static final String[] EVENT_NAMES = {"Publish", "Delivery", "Get", "Settle", "Confirm"};
+
+  private final MockTracer mockTracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void matchesStubSignatures() throws Exception {
+    Class<?> events = loadJava11Events();
+    assertEquals(signatures(FlightRecorderEvents.class), signatures(events));
+  }
+
+  @Test
+  public void recordsEvents() throws Exception {
+    Class<?> events = loadJava11Events();
+    Class<?> recordingType = Class.forName("jdk.jfr.Recording");
+    Object recording = recordingType.getConstructor().newInstance();
+    for (String name : EVENT_NAMES) {
+      recordingType.getMethod("enable", String.class)
+          .invoke(recording, "io.opentracing.contrib.rabbitmq." + name);
+    }
+    recordingType.getMethod("start").invoke(recording);
+
+    assertEquals(true, invoke(events, "isAvailable"));
+    Span span = mockTracer.buildSpan("send").start();
+    invoke(events, "commitPublish", invoke(events, "beginPublish"), "orders", "created",
+        "body".getBytes(), mockTracer, span);
+    invoke(events, "commitDelivery", invoke(events, "beginDelivery"), "queue",
+        new Envelope(1, false, "orders", "created"), new AMQP.BasicProperties(),
+        "body".getBytes(), mockTracer);
+    invoke(events, "commitGet", invoke(events, "beginGet"), "queue", null, mockTracer);
+    invoke(events, "settle", "basicAck", 1L, false);
+    invoke(events, "confirm", 1L, false, true);
+
+    recordingType.getMethod("stop").invoke(recording);
+    Path file = folder.getRoot().toPath().resolve("rabbitmq.jfr");
+    recordingType.getMethod("dump", Path.class).invoke(recording, file);
+    recordingType.getMethod("close").invoke(recording);
+
+    Set<String> recorded = new HashSet<>();
+    List<?> read = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+        .getMethod("readAllEvents", Path.class).invoke(null, file);
+    for (Object event : read) {
+      Object type = event.getClass().getMethod("getEventType").invoke(event);
+      recorded.add((String) type.getClass().getMethod("getName").invoke(type));
+    }
+    for (String name : EVENT_NAMES) {
+      assertTrue(name, recorded.contains("io.opentracing.contrib.rabbitmq." + name));
+    }
+  }
+
+  private static Set<String> signatures(Class<?> type) {
+    Set<String> signatures = new HashSet<>();
+    for (Method method : type.getDeclaredMethods()) {
+      if (!Modifier.isPrivate(method.getModifiers()) && !method.isSynthetic()) {
+        signatures.add((Modifier.isStatic(method.getModifiers()) ? "static " : "")
+            + method.getReturnType().getName() + " " + method.getName()
+            + Arrays.toString(method.getParameterTypes()));
+      }
+    }
+    return signatures;
+  }
+
+  private static Object invoke(Class<?> type, String name, Object... args) throws Exception {
+    for (Method method : type.getDeclaredMethods()) {
+      if (method.getName().equals(name)) {
+        method.setAccessible(true);
+        return method.invoke(null, args);
+      }
+    }
+    throw new NoSuchMethodException(name);
+  }
+
+  /**
+   * Loads {@link FlightRecorderEvents} and its nested classes from {@code META-INF/versions/11},
+   * everything else from the regular class path, as a multi-release jar would on Java 11+.
+   */
+  private static Class<?> loadJava11Events() throws Exception {
+    Assume.assumeTrue("Java 11+ required", hasFlightRecorder());
+    URL root = FlightRecorderEvents.class.getProtectionDomain().getCodeSource().getLocation();
+    URL versioned = new URL(root, "META-INF/versions/11/");
+    Assume.assumeTrue("multi-release output missing",
+        "file".equals(versioned.getProtocol()) && new File(versioned.toURI()).isDirectory());
+    ClassLoader loader = new URLClassLoader(new URL[] {versioned},
+        FlightRecorderEvents.class.getClassLoader()) {
+      @Override
+      protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(EVENTS)) {
+          return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+          Class<?> loaded = findLoadedClass(name);
+          if (loaded == null) {
+            loaded = findClass(name);
+          }
+          if (resolve) {
+            resolveClass(loaded);
+          }
+          return loaded;
+        }
+      }
+    };
+    return Class.forName(EVENTS, true, loader);
+  }
+
+  private static boolean hasFlightRecorder() {
+    try {
+      Class.forName("jdk.jfr.Recording");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+}
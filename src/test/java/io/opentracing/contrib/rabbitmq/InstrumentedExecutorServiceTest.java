@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class InstrumentedExecutorServiceTest {
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Test
+  public void tagsQueueWait() throws Exception {
+    InstrumentedExecutorService executor = new InstrumentedExecutorService(
+        Executors.newSingleThreadExecutor());
+    MockSpan parent = mockTracer.buildSpan("parent").startManual();
+    AMQP.BasicProperties props = TracingConsumerTest.propsWithContext(parent);
+    parent.finish();
+    TracingConsumer consumer = new TracingConsumer(new DefaultConsumer(null), mockTracer);
+
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    // a task of two deliveries, as the client dispatches them
+    Future<?> deliveries = executor.submit(() -> {
+      consumer.handleDelivery("tag", new Envelope(1, false, "", ""), props, new byte[0]);
+      consumer.handleDelivery("tag", new Envelope(2, false, "", ""), props, new byte[0]);
+      return null;
+    });
+    Thread.sleep(50);
+    assertEquals(1, executor.getQueueDepth());
+    assertEquals(1, executor.getActiveCount());
+    release.countDown();
+    deliveries.get(10, TimeUnit.SECONDS);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    consumer.handleDelivery("tag", new Envelope(3, false, "", ""), props, new byte[0]);
+
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(2, executor.getCompletedCount());
+    assertEquals(2, executor.getQueueWait().getCount());
+    assertTrue(executor.getQueueWait().getMax(TimeUnit.MILLISECONDS) >= 20);
+    assertTrue(executor.getRunTime().getMax(TimeUnit.MILLISECONDS) >= 20);
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(4, spans.size());
+    assertTrue((Long) spans.get(1).tags().get(SpanDecorator.QUEUE_WAIT_TAG) >= 20_000);
+    assertEquals(0L, spans.get(2).tags().get(SpanDecorator.QUEUE_WAIT_TAG));
+    // not dispatched on the executor
+    assertNull(spans.get(3).tags().get(SpanDecorator.QUEUE_WAIT_TAG));
+  }
+
+  @Test
+  public void factoryWrapsExecutors() {
+    TracingConnectionFactory factory = new TracingConnectionFactory(mockTracer);
+    factory.setSharedExecutor(Executors.newSingleThreadExecutor());
+    InstrumentedExecutorService shared = factory.getSharedExecutor();
+    factory.setSharedExecutor(shared);
+    assertEquals(shared, factory.getSharedExecutor());
+    shared.shutdownNow();
+  }
+}
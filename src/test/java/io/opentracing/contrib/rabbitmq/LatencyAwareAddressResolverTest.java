@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Address;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class LatencyAwareAddressResolverTest {
+
+  private final List<FakeNode> fakeNodes = new ArrayList<>();
+
+  @After
+  public void after() throws IOException {
+    for (FakeNode node : fakeNodes) {
+      node.close();
+    }
+  }
+
+  @Test
+  public void picksFastestAndEjectsDead() throws Exception {
+    Address fast = start(0);
+    Address slow = start(200);
+    Address dead = deadAddress();
+    LatencyAwareAddressResolver resolver = new LatencyAwareAddressResolver(
+        Arrays.asList(slow, dead, fast));
+    assertEquals(3, resolver.getAddresses().size());
+
+    resolver.probeAll();
+    resolver.probeAll();
+    assertEquals(Collections.singletonList(fast), resolver.getAddresses());
+
+    List<NodeStats> stats = resolver.getNodeStats();
+    assertTrue(stats.get(0).getRoundTripLatency(TimeUnit.MILLISECONDS) >= 150);
+    assertFalse(stats.get(1).isHealthy());
+    assertEquals(2, stats.get(1).getConsecutiveFailures());
+    assertTrue(stats.get(2).isHealthy());
+    assertEquals(2, resolver.getHealthyCount());
+  }
+
+  @Test
+  public void spreadsOverEquallyFastNodes() throws Exception {
+    LatencyAwareAddressResolver resolver = new LatencyAwareAddressResolver(
+        Arrays.asList(start(0), start(0)));
+    resolver.setTolerance(1000);
+    resolver.probeAll();
+
+    Set<Address> picked = new HashSet<>();
+    for (int i = 0; i < 4; i++) {
+      picked.addAll(resolver.getAddresses());
+    }
+    assertEquals(2, picked.size());
+  }
+
+  private Address start(long delayMillis) throws IOException {
+    FakeNode node = new FakeNode(delayMillis);
+    fakeNodes.add(node);
+    return new Address(InetAddress.getLoopbackAddress().getHostAddress(), node.port());
+  }
+
+  private static Address deadAddress() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return new Address(InetAddress.getLoopbackAddress().getHostAddress(),
+          socket.getLocalPort());
+    }
+  }
+
+  /**
+   * Answers the protocol header with a byte after a delay, like a slow broker would with
+   * Connection.Start.
+   */
+  private static final class FakeNode extends Thread {
+
+    private final ServerSocket server;
+    private final long delayMillis;
+
+    FakeNode(long delayMillis) throws IOException {
+      this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      this.delayMillis = delayMillis;
+      setDaemon(true);
+      start();
+    }
+
+    int port() {
+      return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      while (!server.isClosed()) {
+        try (Socket socket = server.accept()) {
+          InputStream in = socket.getInputStream();
+          for (int i = 0; i < 8; i++) {
+            in.read();
+          }
+          Thread.sleep(delayMillis);
+          socket.getOutputStream().write(1);
+        } catch (IOException | InterruptedException e) {
+          // next probe
+        }
+      }
+    }
+
+    void close() throws IOException {
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LoopbackConnectionTest {
+
+  @Test
+  public void routes() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    Channel channel = connection.createChannel();
+    channel.exchangeDeclare("topic", "topic");
+    channel.exchangeDeclare("fanout", "fanout");
+    String orders = channel.queueDeclare().getQueue();
+    String all = channel.queueDeclare().getQueue();
+    channel.queueBind(orders, "topic", "orders.*.created");
+    channel.queueBind(all, "topic", "#");
+    channel.queueBind(all, "fanout", "");
+
+    channel.basicPublish("topic", "orders.eu.created", null, new byte[1]);
+    channel.basicPublish("topic", "orders.eu.shipped", null, new byte[1]);
+    channel.basicPublish("fanout", "ignored", null, new byte[1]);
+    channel.basicPublish("", orders, null, new byte[1]);
+
+    assertEquals(2, channel.messageCount(orders));
+    assertEquals(3, channel.messageCount(all));
+    connection.close();
+  }
+
+  @Test
+  public void requeuesUnacked() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    channel.basicPublish("", queue, null, new byte[1]);
+
+    GetResponse response = channel.basicGet(queue, false);
+    assertFalse(response.getEnvelope().isRedeliver());
+    assertNull(channel.basicGet(queue, false));
+    channel.basicNack(response.getEnvelope().getDeliveryTag(), false, true);
+
+    response = channel.basicGet(queue, false);
+    assertTrue(response.getEnvelope().isRedeliver());
+    channel.basicAck(response.getEnvelope().getDeliveryTag(), false);
+    channel.close();
+    assertEquals(0, connection.createChannel().messageCount(queue));
+    connection.close();
+  }
+
+  @Test
+  public void failsChannelOnSettledDeliveryTag() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    channel.basicPublish("", queue, null, new byte[1]);
+    long deliveryTag = channel.basicGet(queue, false).getEnvelope().getDeliveryTag();
+    channel.basicAck(deliveryTag, false);
+
+    try {
+      channel.basicAck(deliveryTag, false);
+      fail();
+    } catch (IOException e) {
+      ShutdownSignalException cause = (ShutdownSignalException) e.getCause();
+      assertEquals(AMQP.PRECONDITION_FAILED,
+          ((AMQP.Channel.Close) cause.getReason()).getReplyCode());
+    }
+    assertFalse(channel.isOpen());
+
+    channel = connection.createChannel();
+    try {
+      channel.basicNack(42, true, true);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertFalse(channel.isOpen());
+    connection.close();
+  }
+
+  @Test
+  public void tracesThroughTracingConnection() throws Exception {
+    MockTracer tracer = new MockTracer(new ThreadLocalScopeManager(),
+        MockTracer.Propagator.TEXT_MAP);
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(), tracer);
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    channel.enableAckTracking();
+    String queue = channel.queueDeclare().getQueue();
+
+    CountDownLatch delivered = new CountDownLatch(1);
+    channel.basicConsume(queue, false, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) throws IOException {
+        getChannel().basicAck(envelope.getDeliveryTag(), false);
+        delivered.countDown();
+      }
+    });
+    channel.basicPublish("", queue, null, "hello".getBytes());
+
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    List<MockSpan> spans = tracer.finishedSpans();
+    assertEquals(2, spans.size());
+    // the consumer may be done before the publish returns
+    MockSpan send = spans.get(0).operationName().equals("send") ? spans.get(0) : spans.get(1);
+    MockSpan receive = send == spans.get(0) ? spans.get(1) : spans.get(0);
+    assertEquals("receive", receive.operationName());
+    assertEquals(send.context().traceId(), receive.context().traceId());
+    assertEquals(0, channel.getUnackedCount());
+    connection.close();
+  }
+
+  @Test
+  public void confirmsAndTransactions() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    channel.confirmSelect();
+    assertEquals(1, channel.getNextPublishSeqNo());
+    channel.basicPublish("", queue, null, new byte[1]);
+    assertTrue(channel.waitForConfirms());
+    assertEquals(2, channel.getNextPublishSeqNo());
+
+    Channel tx = connection.createChannel();
+    tx.txSelect();
+    tx.basicPublish("", queue, null, new byte[1]);
+    tx.txRollback();
+    tx.basicPublish("", queue, null, new byte[1]);
+    assertEquals(1, tx.messageCount(queue));
+    tx.txCommit();
+    assertEquals(2, tx.messageCount(queue));
+    assertNotNull(tx.basicGet(queue, true));
+    connection.close();
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.AMQP;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxJournalTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recoversRecordsAfterCrash() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    OutboxJournal journal = OutboxJournal.open(directory, SEGMENT_SIZE);
+    for (int i = 1; i <= 100; i++) {
+      assertEquals(i, journal.append(payload(i), 0, payload(i).length));
+    }
+    crash(journal);
+
+    OutboxJournal recovered = OutboxJournal.open(directory, SEGMENT_SIZE);
+    assertEquals(100, recovered.lastSequence());
+    assertRecords(recovered.cursor(1), 1, 100);
+
+    // new records continue the sequence
+    assertEquals(101, recovered.append(payload(101), 0, payload(101).length));
+    assertRecords(recovered.cursor(90), 90, 101);
+    recovered.close();
+  }
+
+  @Test
+  public void ignoresTornRecord() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    OutboxJournal journal = OutboxJournal.open(directory, SEGMENT_SIZE);
+    for (int i = 1; i <= 3; i++) {
+      journal.append(payload(i), 0, payload(i).length);
+    }
+    crash(journal);
+
+    // simulate a crash in the middle of writing the fourth record: payload and checksum are
+    // there, but the sequence is only half written
+    File segment = segments(directory)[0];
+    int end = 8 + 3 * (16 + payload(1).length);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(end);
+      raf.writeInt(payload(4).length);
+      raf.writeInt(42);
+      raf.writeInt(0);
+      raf.write(payload(4));
+    }
+
+    OutboxJournal recovered = OutboxJournal.open(directory, SEGMENT_SIZE);
+    assertEquals(3, recovered.lastSequence());
+    assertEquals(4, recovered.append(payload(5), 0, payload(5).length));
+
+    OutboxJournal.Cursor cursor = recovered.cursor(1);
+    for (int i = 1; i <= 3; i++) {
+      assertArrayEquals(payload(i), cursor.next().payload);
+    }
+    OutboxJournal.Record last = cursor.next();
+    assertEquals(4, last.sequence);
+    assertArrayEquals(payload(5), last.payload);
+    assertNull(cursor.next());
+    recovered.close();
+  }
+
+  @Test
+  public void checkpointDeletesConfirmedSegments() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    OutboxJournal journal = OutboxJournal.open(directory, SEGMENT_SIZE);
+    byte[] big = new byte[1000];
+    for (int i = 1; i <= 20; i++) {
+      journal.append(big, 0, big.length);
+    }
+    assertEquals(5, segments(directory).length);
+
+    // four records per segment
+    journal.checkpoint(12);
+    assertEquals(2, segments(directory).length);
+    assertEquals(13, journal.cursor(13).next().sequence);
+    crash(journal);
+
+    OutboxJournal recovered = OutboxJournal.open(directory, SEGMENT_SIZE);
+    assertEquals(12, recovered.checkpoint());
+    assertEquals(20, recovered.lastSequence());
+    OutboxJournal.Cursor cursor = recovered.cursor(recovered.checkpoint() + 1);
+    for (int i = 13; i <= 20; i++) {
+      assertEquals(i, cursor.next().sequence);
+    }
+    assertNull(cursor.next());
+
+    recovered.checkpoint(20);
+    assertEquals(1, segments(directory).length);
+    recovered.close();
+  }
+
+  @Test
+  public void rejectsUnknownFormatVersion() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    OutboxJournal journal = OutboxJournal.open(directory, SEGMENT_SIZE);
+    journal.append(payload(1), 0, payload(1).length);
+    journal.close();
+
+    try (RandomAccessFile raf = new RandomAccessFile(segments(directory)[0], "rw")) {
+      raf.writeByte(2);
+    }
+    try {
+      OutboxJournal.open(directory, SEGMENT_SIZE);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("format 2"));
+    }
+    // the failed open must not keep the directory locked
+    try (RandomAccessFile raf = new RandomAccessFile(segments(directory)[0], "rw")) {
+      raf.writeByte(1);
+    }
+    OutboxJournal.open(directory, SEGMENT_SIZE).close();
+  }
+
+  @Test
+  public void cursorFollowsAppends() throws Exception {
+    OutboxJournal journal = OutboxJournal.open(folder.getRoot().toPath(), SEGMENT_SIZE);
+    OutboxJournal.Cursor cursor = journal.cursor(1);
+    assertNull(cursor.next());
+
+    byte[] big = new byte[1500];
+    for (int i = 1; i <= 10; i++) {
+      journal.append(big, 0, big.length);
+      assertEquals(i, cursor.next().sequence);
+      assertNull(cursor.next());
+    }
+    journal.close();
+  }
+
+  @Test
+  public void propertiesRoundTrip() throws Exception {
+    Map<String, Object> headers = new HashMap<>();
+    headers.put("traceid", "123");
+    headers.put("count", 7);
+    headers.put("size", 7L);
+    headers.put("flag", true);
+    headers.put("price", new BigDecimal("1.50"));
+    headers.put("raw", new byte[] {1, 2});
+    headers.put("nested", Collections.<String, Object>singletonMap("list", Arrays.asList(1, "a")));
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+        .contentType("text/plain")
+        .deliveryMode(2)
+        .messageId("id")
+        .timestamp(new Date(1000L))
+        .headers(headers)
+        .build();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    PropertiesCodec.write(props, out);
+    PropertiesCodec.write(null, out);
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    AMQP.BasicProperties read = PropertiesCodec.read(in);
+    assertEquals("text/plain", read.getContentType());
+    assertEquals(Integer.valueOf(2), read.getDeliveryMode());
+    assertEquals("id", read.getMessageId());
+    assertEquals(new Date(1000L), read.getTimestamp());
+    assertNull(read.getPriority());
+    Map<String, Object> readHeaders = read.getHeaders();
+    assertEquals("123", readHeaders.get("traceid").toString());
+    assertEquals(7, readHeaders.get("count"));
+    assertEquals(7L, readHeaders.get("size"));
+    assertEquals(true, readHeaders.get("flag"));
+    assertEquals(new BigDecimal("1.50"), readHeaders.get("price"));
+    assertArrayEquals(new byte[] {1, 2}, (byte[]) readHeaders.get("raw"));
+    assertEquals(Collections.singletonMap("list", Arrays.asList(1, "a")),
+        readHeaders.get("nested"));
+    assertNull(PropertiesCodec.read(in));
+    assertFalse(in.available() > 0);
+  }
+
+  private static void assertRecords(OutboxJournal.Cursor cursor, int from, int to) {
+    for (int i = from; i <= to; i++) {
+      OutboxJournal.Record record = cursor.next();
+      assertEquals(i, record.sequence);
+      assertArrayEquals(payload(i), record.payload);
+    }
+    assertNull(cursor.next());
+  }
+
+  private static byte[] payload(int i) {
+    return String.format("message-%05d", i).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Drops the journal without closing it, like a killed process would. Only the file lock has to
+   * go, the OS would release it together with the process.
+   */
+  private static void crash(OutboxJournal journal) throws Exception {
+    Field lockChannel = OutboxJournal.class.getDeclaredField("lockChannel");
+    lockChannel.setAccessible(true);
+    ((FileChannel) lockChannel.get(journal)).close();
+  }
+
+  private static File[] segments(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.toString().endsWith(".journal"))
+          .sorted()
+          .map(Path::toFile)
+          .toArray(File[]::new);
+    }
+  }
+}
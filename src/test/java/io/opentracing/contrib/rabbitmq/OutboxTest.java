@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxTest {
+
+  private static final String QUEUE = "outbox";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+  private final LoopbackBroker broker = new LoopbackBroker();
+  private Path directory;
+
+  @Before
+  public void before() {
+    directory = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void sendsAndCheckpointsConfirmed() throws Exception {
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(broker),
+        mockTracer);
+    Outbox outbox = connection.enableOutbox(directory);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare(QUEUE, false, false, false, null);
+
+    for (int i = 0; i < 3; i++) {
+      channel.basicPublish("", QUEUE, null, new byte[]{(byte) i});
+    }
+
+    await(() -> outbox.getConfirmedSequence() == 3);
+    assertEquals(3, outbox.getLastSequence());
+    assertEquals(0, outbox.getPendingCount());
+    assertEquals(3, mockTracer.finishedSpans().size());
+    assertEquals(3, channel.messageCount(QUEUE));
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, channel.basicGet(QUEUE, true).getBody()[0]);
+    }
+    connection.close();
+  }
+
+  @Test
+  public void checkpointsOnlyConfirmedAndResendsNacked() throws Exception {
+    ManualConfirmConnection loopback = new ManualConfirmConnection(broker);
+    TracingConnection connection = new TracingConnection(loopback, mockTracer);
+    Outbox outbox = connection.enableOutbox(directory);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare(QUEUE, false, false, false, null);
+
+    for (int i = 0; i < 3; i++) {
+      channel.basicPublish("", QUEUE, null, new byte[]{(byte) i});
+    }
+    await(() -> messageCount(channel) == 3);
+    assertEquals(0, outbox.getConfirmedSequence());
+    assertEquals(3, outbox.getPendingCount());
+
+    ConfirmCallback firstAck = loopback.ackCallback;
+    firstAck.handle(2, true);
+    assertEquals(2, outbox.getConfirmedSequence());
+    assertEquals(1, outbox.getPendingCount());
+
+    // the outbox starts over on a new channel from the first unconfirmed record
+    loopback.nackCallback.handle(3, false);
+    await(() -> messageCount(channel) == 4);
+    assertTrue(loopback.ackCallback != firstAck);
+    for (int body : new int[]{0, 1, 2, 2}) {
+      assertEquals(body, channel.basicGet(QUEUE, true).getBody()[0]);
+    }
+    assertEquals(1, outbox.getPendingCount());
+
+    // late confirms of the discarded channel are ignored
+    firstAck.handle(3, false);
+    assertEquals(2, outbox.getConfirmedSequence());
+
+    loopback.ackCallback.handle(1, false);
+    assertEquals(3, outbox.getConfirmedSequence());
+    assertEquals(0, outbox.getPendingCount());
+    connection.close();
+  }
+
+  @Test
+  public void resendsUnconfirmedAfterRestart() throws Exception {
+    TracingConnection connection = new TracingConnection(new ManualConfirmConnection(broker),
+        mockTracer);
+    connection.enableOutbox(directory);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    channel.basicPublish("", QUEUE, null, new byte[]{1});
+    channel.basicPublish("", QUEUE, null, new byte[]{2});
+    await(() -> messageCount(channel) == 2);
+    connection.close();
+
+    TracingConnection restarted = new TracingConnection(new LoopbackConnection(broker),
+        mockTracer);
+    Outbox outbox = restarted.enableOutbox(directory);
+    assertEquals(2, outbox.getLastSequence());
+    await(() -> outbox.getPendingCount() == 0);
+    Channel consumer = restarted.createChannel();
+    assertEquals(4, consumer.messageCount(QUEUE));
+    restarted.close();
+  }
+
+  @Test
+  public void holdsRecordsWhileBlocked() throws Exception {
+    LoopbackConnection loopback = new LoopbackConnection(broker);
+    TracingConnection connection = new TracingConnection(loopback, mockTracer);
+    Outbox outbox = connection.enableOutbox(directory);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare(QUEUE, false, false, false, null);
+
+    loopback.block("low on memory");
+    channel.basicPublish("", QUEUE, null, new byte[0]);
+    assertEquals(1, outbox.getPendingCount());
+    assertEquals(0, channel.messageCount(QUEUE));
+
+    loopback.unblock();
+    await(() -> outbox.getPendingCount() == 0);
+    assertEquals(1, channel.messageCount(QUEUE));
+    connection.close();
+  }
+
+  @Test
+  public void rejectsMandatoryPublish() throws Exception {
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(broker),
+        mockTracer);
+    Outbox outbox = connection.enableOutbox(directory);
+    Channel channel = connection.createChannel();
+    try {
+      channel.basicPublish("", QUEUE, true, null, new byte[0]);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(0, outbox.getLastSequence());
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    assertEquals(Boolean.TRUE, spans.get(0).tags().get("error"));
+    connection.close();
+  }
+
+  @Test
+  public void rejectsConfirmAndTxChannels() throws Exception {
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(broker),
+        mockTracer);
+    Outbox outbox = connection.enableOutbox(directory);
+    Channel confirmChannel = connection.createChannel();
+    confirmChannel.confirmSelect();
+    Channel txChannel = connection.createChannel();
+    txChannel.txSelect();
+    for (Channel channel : new Channel[]{confirmChannel, txChannel}) {
+      try {
+        channel.basicPublish("", QUEUE, null, new byte[0]);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+    assertEquals(0, outbox.getLastSequence());
+    connection.close();
+  }
+
+  private static long messageCount(Channel channel) {
+    try {
+      return channel.messageCount(QUEUE);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    for (long start = System.nanoTime(); !condition.getAsBoolean()
+        && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10); ) {
+      Thread.sleep(5);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
+  /**
+   * Hands the confirm callbacks of the outbox channel to the test instead of confirming every
+   * message as it is published.
+   */
+  private static class ManualConfirmConnection extends LoopbackConnection {
+
+    volatile ConfirmCallback ackCallback;
+    volatile ConfirmCallback nackCallback;
+
+    ManualConfirmConnection(LoopbackBroker broker) {
+      super(broker);
+    }
+
+    @Override
+    public Channel createChannel() {
+      Channel channel = super.createChannel();
+      return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+          new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+            if (method.getName().equals("addConfirmListener") && args.length == 2) {
+              ackCallback = (ConfirmCallback) args[0];
+              nackCallback = (ConfirmCallback) args[1];
+              return null;
+            }
+            try {
+              return method.invoke(channel, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          });
+    }
+  }
+}
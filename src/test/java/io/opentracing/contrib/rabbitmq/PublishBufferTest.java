@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.Channel;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishBufferTest {
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+  private LoopbackConnection loopback;
+  private TracingConnection connection;
+
+  @Before
+  public void before() {
+    loopback = new LoopbackConnection();
+    connection = new TracingConnection(loopback, mockTracer);
+  }
+
+  @After
+  public void after() throws IOException {
+    if (connection.isOpen()) {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void tagsBlockedTimeWithoutBuffering() throws Exception {
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    assertTrue(connection.isBlocked());
+    assertEquals("low on memory", connection.getBlockedReason());
+
+    channel.basicPublish("", queue, null, new byte[0]);
+    loopback.unblock();
+
+    assertFalse(connection.isBlocked());
+    assertEquals(1, connection.getBlockedCount());
+    assertEquals(1, channel.messageCount(queue));
+    assertNotNull(mockTracer.finishedSpans().get(0).tags().get(SpanDecorator.BLOCKED_TIME_TAG));
+  }
+
+  @Test
+  public void buffersWhileBlockedAndDrainsOnUnblock() throws Exception {
+    connection.enablePublishBuffering(10, OverflowPolicy.REJECT, 1, TimeUnit.SECONDS);
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    for (int i = 0; i < 3; i++) {
+      channel.basicPublish("", queue, null, new byte[]{(byte) i});
+    }
+    assertEquals(3, connection.getBufferedPublishCount());
+    assertEquals(0, channel.messageCount(queue));
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    loopback.unblock();
+    awaitMessages(channel, queue, 3);
+    assertEquals(0, connection.getBufferedPublishCount());
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(new byte[]{(byte) i}, channel.basicGet(queue, true).getBody());
+    }
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertTrue(spans.stream().filter(span -> span.operationName().equals("send"))
+        .allMatch(span -> span.tags().containsKey(SpanDecorator.BLOCKED_TIME_TAG)));
+  }
+
+  @Test
+  public void rejectsWhenFull() throws Exception {
+    connection.enablePublishBuffering(2, OverflowPolicy.REJECT, 1, TimeUnit.SECONDS);
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    channel.basicPublish("", queue, null, new byte[]{0});
+    channel.basicPublish("", queue, null, new byte[]{1});
+    try {
+      channel.basicPublish("", queue, null, new byte[]{2});
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(1, connection.getRejectedPublishCount());
+    assertEquals(true, mockTracer.finishedSpans().get(0).tags().get("error"));
+
+    loopback.unblock();
+    awaitMessages(channel, queue, 2);
+  }
+
+  @Test
+  public void dropsOldestWhenFull() throws Exception {
+    connection.enablePublishBuffering(2, OverflowPolicy.DROP_OLDEST, 1, TimeUnit.SECONDS);
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    for (int i = 0; i < 3; i++) {
+      channel.basicPublish("", queue, null, new byte[]{(byte) i});
+    }
+    assertEquals(1, connection.getDroppedPublishCount());
+    assertEquals(2, connection.getBufferedPublishCount());
+    MockSpan dropped = mockTracer.finishedSpans().get(0);
+    assertEquals(true, dropped.tags().get("error"));
+
+    loopback.unblock();
+    awaitMessages(channel, queue, 2);
+    assertArrayEquals(new byte[]{1}, channel.basicGet(queue, true).getBody());
+    assertArrayEquals(new byte[]{2}, channel.basicGet(queue, true).getBody());
+  }
+
+  @Test
+  public void blocksUntilRoomOrTimeout() throws Exception {
+    connection.enablePublishBuffering(1, OverflowPolicy.BLOCK, 50, TimeUnit.MILLISECONDS);
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    channel.basicPublish("", queue, null, new byte[]{0});
+    long start = System.nanoTime();
+    try {
+      channel.basicPublish("", queue, null, new byte[]{1});
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, connection.getRejectedPublishCount());
+
+    // room is made by the drain once unblocked
+    Thread unblocker = new Thread(() -> {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException ignore) {
+      }
+      loopback.unblock();
+    });
+    connection.enablePublishBuffering(1, OverflowPolicy.BLOCK, 10, TimeUnit.SECONDS);
+    Channel waiting = connection.createChannel();
+    waiting.basicPublish("", queue, null, new byte[]{2});
+    unblocker.start();
+    waiting.basicPublish("", queue, null, new byte[]{3});
+    unblocker.join();
+    awaitMessages(channel, queue, 3);
+  }
+
+  @Test
+  public void drainsWhileBackgroundPublishWaitsForRoom() throws Exception {
+    connection.enablePublishBuffering(1, OverflowPolicy.BLOCK, 10, TimeUnit.SECONDS);
+    Channel channel = connection.createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    loopback.block("low on memory");
+    channel.basicPublish("", queue, null, new byte[]{0});
+
+    // like a timed pack flush or a throttled async publish, waits for room on the executor thread
+    Future<?> background = connection.executor().submit(() -> {
+      channel.basicPublish("", queue, null, new byte[]{1});
+      return null;
+    });
+    Thread.sleep(20);
+    long start = System.nanoTime();
+    loopback.unblock();
+    background.get(10, TimeUnit.SECONDS);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    awaitMessages(channel, queue, 2);
+    assertEquals(0, connection.getRejectedPublishCount());
+  }
+
+  @Test
+  public void failsBufferedPublishesOnceClosing() throws Exception {
+    Channel channel = loopback.createChannel();
+    PublishBuffer buffer = new PublishBuffer(channel, connection, 2, OverflowPolicy.BLOCK,
+        TimeUnit.SECONDS.toNanos(1));
+    loopback.block("low on memory");
+    assertTrue(buffer.offer(mockTracer.buildSpan("send").start(), "", "queue", false, false,
+        null, new byte[0]));
+    connection.close();
+    loopback.unblock();
+    assertFalse(connection.isBlocked());
+
+    try {
+      buffer.offer(mockTracer.buildSpan("send").start(), "", "queue", false, false, null,
+          new byte[0]);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(0, buffer.size());
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    assertEquals(true, spans.get(0).tags().get("error"));
+    // nothing is left stuck in the buffer, the next publish goes out directly
+    assertFalse(buffer.offer(mockTracer.buildSpan("send").start(), "", "queue", false, false,
+        null, new byte[0]));
+  }
+
+  @Test
+  public void clearingBlockedListenersKeepsTracking() {
+    connection.clearBlockedListeners();
+    loopback.block("low on memory");
+    assertTrue(connection.isBlocked());
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void executorRefusedAfterClose() throws IOException {
+    connection.executor();
+    connection.close();
+    connection.executor();
+  }
+
+  private static void awaitMessages(Channel channel, String queue, long count) throws Exception {
+    for (long start = System.nanoTime(); channel.messageCount(queue) < count
+        && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10); ) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, channel.messageCount(queue));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class QueueSamplerTest {
+
+  @Test
+  public void backsOffMissingQueue() throws Exception {
+    AtomicInteger channels = new AtomicInteger();
+    LoopbackConnection connection = new LoopbackConnection() {
+      @Override
+      public Channel createChannel(int channelNumber) {
+        channels.incrementAndGet();
+        return super.createChannel(channelNumber);
+      }
+    };
+    Channel channel = connection.createChannel();
+    channel.queueDeclare("sampled", false, false, false, null);
+    channel.basicPublish("", "sampled", null, new byte[0]);
+    channels.set(0);
+
+    QueueSampler sampler = new QueueSampler(connection, 5, TimeUnit.MILLISECONDS);
+    sampler.register("sampled");
+    sampler.register("missing");
+    TimeUnit.MILLISECONDS.sleep(500);
+
+    QueueStats stats = sampler.getStats("sampled");
+    assertNotNull(stats);
+    assertEquals(1, stats.getMessageCount());
+    assertNull(sampler.getStats("missing"));
+    // a channel for every interval without the backoff
+    assertTrue(channels.get() < 20);
+
+    channel.queueDeclare("missing", false, false, false, null);
+    for (int tries = 200; tries > 0 && sampler.getStats("missing") == null; tries--) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertNotNull(sampler.getStats("missing"));
+
+    sampler.close();
+    connection.close();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.Channel;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Test
+  public void burstThenRate() {
+    RateLimiter limiter = new RateLimiter(1000, 3);
+    long now = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.reserve(now));
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1), limiter.reserve(now));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(2), limiter.reserve(now));
+
+    limiter.refund();
+    limiter.refund();
+    assertTrue(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(1)));
+    // a quiet period refills the burst, but not beyond
+    now += TimeUnit.SECONDS.toNanos(1);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire(now));
+    }
+    assertTrue(!limiter.tryAcquire(now));
+  }
+
+  @Test
+  public void failFast() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingChannel channel = (TracingChannel) new TracingConnection(connection, mockTracer)
+        .createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    channel.setRateLimiter("", new RateLimiter(1, 2));
+    channel.setThrottlePolicy(ThrottlePolicy.FAIL_FAST, 0, TimeUnit.SECONDS);
+
+    channel.basicPublish("", queue, null, new byte[1]);
+    channel.basicPublish("", queue, null, new byte[1]);
+    try {
+      channel.basicPublish("", queue, null, new byte[1]);
+      fail();
+    } catch (IOException expected) {
+      // over the burst
+    }
+    channel.exchangeDeclare("other", "fanout");
+    channel.basicPublish("other", queue, null, new byte[1]);
+
+    assertEquals(2, channel.messageCount(queue));
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(4, spans.size());
+    assertEquals(Boolean.TRUE, spans.get(2).tags().get("error"));
+    connection.close();
+  }
+
+  @Test
+  public void blockAndFuture() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingChannel channel = (TracingChannel) new TracingConnection(connection, mockTracer)
+        .createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    RateLimiter limiter = new RateLimiter(10, 1);
+    channel.setRateLimiter(limiter);
+
+    channel.basicPublish("", queue, null, new byte[1]);
+    channel.basicPublish("", queue, null, new byte[1]);
+    CompletableFuture<Void> future = channel.basicPublishAsync("", queue, null, new byte[1]);
+    assertTrue(!future.isDone());
+    future.get(5, TimeUnit.SECONDS);
+
+    assertEquals(3, channel.messageCount(queue));
+    assertEquals(2, limiter.getThrottledCount());
+    assertTrue(limiter.getThrottledTime(TimeUnit.MILLISECONDS) >= 100);
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(3, spans.size());
+    assertNull(spans.get(0).tags().get(SpanDecorator.THROTTLED_TIME_TAG));
+    assertNotNull(spans.get(1).tags().get(SpanDecorator.THROTTLED_TIME_TAG));
+    assertNotNull(spans.get(2).tags().get(SpanDecorator.THROTTLED_TIME_TAG));
+
+    channel.setRateLimiter(new RateLimiter(1, 1));
+    channel.setThrottlePolicy(ThrottlePolicy.BLOCK, 1, TimeUnit.MILLISECONDS);
+    channel.basicPublish("", queue, null, new byte[1]);
+    try {
+      channel.basicPublish("", queue, null, new byte[1]);
+      fail();
+    } catch (IOException expected) {
+      // would wait longer than allowed
+    }
+    connection.close();
+  }
+
+  @Test
+  public void asyncKeepsOrderAndPacks() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingChannel channel = (TracingChannel) new TracingConnection(connection, mockTracer)
+        .createChannel();
+    String queue = channel.queueDeclare().getQueue();
+    channel.exchangeDeclare("other", "fanout");
+    channel.queueBind(queue, "other", "");
+    channel.setRateLimiter("", new RateLimiter(10, 1));
+
+    channel.basicPublish("", queue, null, new byte[]{1});
+    CompletableFuture<Void> future = channel.basicPublishAsync("", queue, null, new byte[]{2});
+    assertTrue(!future.isDone());
+    // not rate limited, but published after the pending async publish
+    channel.basicPublish("other", "", null, new byte[]{3});
+    assertTrue(future.isDone());
+    for (int i = 1; i <= 3; i++) {
+      assertEquals(i, channel.basicGet(queue, true).getBody()[0]);
+    }
+
+    channel.enablePacking(1 << 16, 10, 1, TimeUnit.HOURS);
+    channel.basicPublishAsync("other", "", null, new byte[]{4}).get(5, TimeUnit.SECONDS);
+    assertEquals(1, channel.getPackedPendingCount());
+    channel.flushPacks();
+    assertEquals(1, channel.messageCount(queue));
+    connection.close();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ShardingTest {
+
+  @Test
+  public void addingShardMovesOnlyItsKeys() {
+    HashRing<String> ring = new HashRing<>(ShardedPublisher.POINTS_PER_SHARD);
+    for (int shard = 0; shard < 4; shard++) {
+      ring = ring.with("shard-" + shard, "shard-" + shard);
+    }
+    int keys = 20_000;
+    Map<String, Integer> counts = new HashMap<>();
+    String[] before = new String[keys];
+    for (int key = 0; key < keys; key++) {
+      before[key] = ring.owner("key-" + key);
+      counts.merge(before[key], 1, Integer::sum);
+    }
+    for (int count : counts.values()) {
+      assertTrue(count > keys / 4 * 0.85 && count < keys / 4 * 1.15);
+    }
+
+    ring = ring.with("shard-4", "shard-4");
+    int moved = 0;
+    for (int key = 0; key < keys; key++) {
+      String owner = ring.owner("key-" + key);
+      if (!owner.equals(before[key])) {
+        assertEquals("shard-4", owner);
+        moved++;
+      }
+    }
+    // about a fifth of the keys
+    assertTrue(moved > keys / 5 * 0.85 && moved < keys / 5 * 1.15);
+  }
+
+  @Test
+  public void publishAndConsumeShards() throws Exception {
+    MockTracer tracer = new MockTracer(new ThreadLocalScopeManager(),
+        MockTracer.Propagator.TEXT_MAP);
+    LoopbackBroker broker = new LoopbackBroker();
+    TracingConnection first = new TracingConnection(new LoopbackConnection(broker), tracer);
+    TracingConnection second = new TracingConnection(new LoopbackConnection(broker), tracer);
+    first.createChannel().queueDeclare("shard-a", false, false, false, null);
+    second.createChannel().queueDeclare("shard-b", false, false, false, null);
+
+    ShardedPublisher publisher = new ShardedPublisher();
+    publisher.addShard(first, "shard-a");
+    publisher.addShard(second, "shard-b");
+    int messages = 100;
+    CountDownLatch consumed = new CountDownLatch(messages);
+    Map<String, String> shardOfKey = new ConcurrentHashMap<>();
+    ShardedConsumer consumer = new ShardedConsumer(channel -> new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) {
+        shardOfKey.put(new String(body), envelope.getRoutingKey());
+        consumed.countDown();
+      }
+    }, true);
+    consumer.addShard(first, "shard-a");
+    consumer.addShard(second, "shard-b");
+
+    for (int key = 0; key < messages; key++) {
+      publisher.publish("key-" + key, null, ("key-" + key).getBytes());
+    }
+    assertTrue(consumed.await(10, TimeUnit.SECONDS));
+    for (Map.Entry<String, String> entry : shardOfKey.entrySet()) {
+      assertEquals(publisher.getShard(entry.getKey()), entry.getValue());
+    }
+    assertEquals(2, shardOfKey.values().stream().distinct().count());
+
+    consumer.close();
+    publisher.close();
+    first.close();
+    second.close();
+    for (MockSpan span : tracer.finishedSpans()) {
+      assertTrue(span.tags().get(SpanDecorator.SHARD_TAG).toString().startsWith("shard-"));
+    }
+  }
+}
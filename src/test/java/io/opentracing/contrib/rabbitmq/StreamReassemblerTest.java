@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamReassemblerTest {
+
+  @Rule
+  public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Test
+  public void reassemblesSpilledStream() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingChannel channel = (TracingChannel) new TracingConnection(connection, mockTracer)
+        .createChannel();
+    channel.queueDeclare("streams", false, false, false, null);
+    StreamReassembler reassembler = new StreamReassembler(256 * 1024,
+        spillDirectory.getRoot().toPath(), 1, TimeUnit.MINUTES);
+
+    AtomicReference<byte[]> received = new AtomicReference<>();
+    AtomicReference<Span> receivedSpan = new AtomicReference<>();
+    CountDownLatch handled = new CountDownLatch(1);
+    channel.basicConsume("streams", false, reassembler,
+        (consumerTag, envelope, properties, stream, span) -> {
+          received.set(readAll(stream));
+          receivedSpan.set(span);
+          channel.basicAck(envelope.getDeliveryTag(), false);
+          handled.countDown();
+        });
+
+    byte[] payload = new byte[TracingChannel.DEFAULT_CHUNK_SIZE * 8];
+    new Random(42).nextBytes(payload);
+    Scope scope = mockTracer.buildSpan("upload").startActive(true);
+    assertEquals(payload.length, channel.publishStream("", "streams", null,
+        new ByteArrayInputStream(payload)));
+    scope.close();
+    assertTrue(handled.await(10, TimeUnit.SECONDS));
+
+    assertArrayEquals(payload, received.get());
+    assertEquals(1, reassembler.getCompletedCount());
+    assertEquals(1, reassembler.getSpilledCount());
+    assertEquals(0, reassembler.getPartialCount());
+    assertEquals(0, reassembler.getHeapBytes());
+    assertEquals(0, spillDirectory.getRoot().list().length);
+    assertEquals(0, channel.messageCount("streams"));
+
+    MockSpan send = mockTracer.finishedSpans().stream()
+        .filter(span -> span.operationName().equals("send")).findFirst().get();
+    // eight full chunks and an empty last one
+    assertEquals(9, send.tags().get(SpanDecorator.STREAM_CHUNKS_TAG));
+    assertEquals((long) payload.length, send.tags().get(SpanDecorator.STREAM_BYTES_TAG));
+    MockSpan receive = (MockSpan) receivedSpan.get();
+    assertEquals(send.context().traceId(), receive.context().traceId());
+    assertEquals(true, receive.tags().get(SpanDecorator.STREAM_SPILLED_TAG));
+    connection.close();
+  }
+
+  @Test
+  public void settlesChunksWithStream() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    List<String> settled = new CopyOnWriteArrayList<>();
+    TracingChannel channel = new TracingChannel(recording(connection.createChannel(), settled),
+        mockTracer);
+    channel.queueDeclare("streams", false, false, false, null);
+    StreamReassembler reassembler = new StreamReassembler(1 << 20,
+        spillDirectory.getRoot().toPath(), 1, TimeUnit.MINUTES);
+    byte[] payload = new byte[TracingChannel.DEFAULT_CHUNK_SIZE * 3];
+    new Random(42).nextBytes(payload);
+
+    List<byte[]> received = new CopyOnWriteArrayList<>();
+    CountDownLatch handled = new CountDownLatch(2);
+    channel.basicConsume("streams", false, reassembler,
+        (consumerTag, envelope, properties, stream, span) -> {
+          received.add(readAll(stream));
+          // requeued the first time, chunk by chunk, then acked in one multiple ack
+          if (received.size() == 1) {
+            channel.basicNack(envelope.getDeliveryTag(), false, true);
+          } else {
+            channel.basicAck(envelope.getDeliveryTag(), true);
+          }
+          handled.countDown();
+        });
+    // three full chunks and an empty last one
+    channel.publishStream("", "streams", null, new ByteArrayInputStream(payload));
+    assertTrue(handled.await(10, TimeUnit.SECONDS));
+
+    assertArrayEquals(payload, received.get(0));
+    assertArrayEquals(payload, received.get(1));
+    assertEquals(Arrays.asList("basicNack 1 false true", "basicNack 2 false true",
+        "basicNack 3 false true", "basicNack 4 false true", "basicAck 8 true"), settled);
+    assertEquals(0, channel.messageCount("streams"));
+    assertEquals(0, reassembler.getDroppedCount());
+    connection.close();
+  }
+
+  @Test
+  public void leavesOtherConsumersUnsettled() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    List<String> settled = new CopyOnWriteArrayList<>();
+    TracingChannel channel = new TracingChannel(recording(connection.createChannel(), settled),
+        mockTracer);
+    channel.queueDeclare("streams", false, false, false, null);
+    channel.queueDeclare("other", false, false, false, null);
+    StreamReassembler reassembler = new StreamReassembler(1 << 20,
+        spillDirectory.getRoot().toPath(), 1, TimeUnit.MINUTES);
+
+    AtomicReference<Long> otherTag = new AtomicReference<>();
+    CountDownLatch otherReceived = new CountDownLatch(1);
+    channel.basicConsume("other", false, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) {
+        otherTag.set(envelope.getDeliveryTag());
+        otherReceived.countDown();
+      }
+    });
+    channel.basicPublish("", "other", null, new byte[]{1});
+    assertTrue(otherReceived.await(10, TimeUnit.SECONDS));
+
+    CountDownLatch handled = new CountDownLatch(1);
+    channel.basicConsume("streams", false, reassembler,
+        (consumerTag, envelope, properties, stream, span) -> {
+          readAll(stream);
+          channel.basicAck(envelope.getDeliveryTag(), false);
+          handled.countDown();
+        });
+    channel.publishStream("", "streams", null,
+        new ByteArrayInputStream(new byte[TracingChannel.DEFAULT_CHUNK_SIZE]));
+    assertTrue(handled.await(10, TimeUnit.SECONDS));
+    // the other consumer's delivery is not acked along with the stream
+    assertEquals(Arrays.asList("basicAck 2 false", "basicAck 3 false"), settled);
+
+    channel.basicAck(otherTag.get(), false);
+    assertTrue(channel.isOpen());
+    assertEquals(0, channel.messageCount("streams"));
+    assertEquals(0, channel.messageCount("other"));
+    connection.close();
+  }
+
+  @Test
+  public void dropsAbortedStream() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    List<String> settled = new CopyOnWriteArrayList<>();
+    TracingChannel channel = new TracingChannel(recording(connection.createChannel(), settled),
+        mockTracer);
+    channel.queueDeclare("streams", false, false, false, null);
+    StreamReassembler reassembler = new StreamReassembler(1 << 20,
+        spillDirectory.getRoot().toPath(), 1, TimeUnit.MINUTES);
+    channel.basicConsume("streams", false, reassembler,
+        (consumerTag, envelope, properties, stream, span) -> fail("Stream was aborted"));
+
+    InputStream failing = new SequenceInputStream(
+        new ByteArrayInputStream(new byte[TracingChannel.DEFAULT_CHUNK_SIZE * 2]),
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new IOException("Disk on fire");
+          }
+        });
+    try {
+      channel.publishStream("", "streams", null, failing);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Disk on fire", expected.getMessage());
+    }
+
+    for (long start = System.nanoTime(); settled.size() < 3
+        && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10); ) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, reassembler.getDroppedCount());
+    assertEquals(0, reassembler.getPartialCount());
+    assertEquals(0, reassembler.getHeapBytes());
+    // the chunks and the abort marker of a dropped stream are nacked without requeue
+    assertEquals(Arrays.asList("basicNack 1 false false", "basicNack 2 false false",
+        "basicNack 3 false false"), settled);
+    assertEquals(0, channel.messageCount("streams"));
+    assertEquals(true, mockTracer.finishedSpans().stream()
+        .filter(span -> span.operationName().equals("send")).findFirst().get()
+        .tags().get("error"));
+    connection.close();
+  }
+
+  @Test
+  public void expiresPartialStream() throws Exception {
+    StreamReassembler reassembler = new StreamReassembler(1 << 20,
+        spillDirectory.getRoot().toPath(), 0, TimeUnit.SECONDS);
+    Map<String, Object> headers = new HashMap<>();
+    headers.put(StreamReassembler.STREAM_ID_HEADER, "stream");
+    headers.put(StreamReassembler.SEQUENCE_HEADER, 0);
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().headers(headers).build();
+
+    assertNull(reassembler.add(props, new byte[100], mockTracer, null, 0));
+    assertEquals(1, reassembler.getPartialCount());
+    assertEquals(100, reassembler.getHeapBytes());
+    Thread.sleep(1);
+    reassembler.expire();
+    assertEquals(0, reassembler.getPartialCount());
+    assertEquals(0, reassembler.getHeapBytes());
+    assertEquals(1, reassembler.getDroppedCount());
+
+    // the rest of an expired stream is dropped as well
+    headers.put(StreamReassembler.SEQUENCE_HEADER, 1);
+    headers.put(StreamReassembler.LAST_HEADER, true);
+    props = new AMQP.BasicProperties.Builder().headers(headers).build();
+    assertNull(reassembler.add(props, new byte[100], mockTracer, null, 0));
+    assertEquals(2, reassembler.getDroppedCount());
+
+    StreamReassembler.Reassembled message = reassembler.add(
+        new AMQP.BasicProperties.Builder().headers(Collections.emptyMap()).build(),
+        new byte[]{1, 2}, mockTracer, null, 0);
+    assertArrayEquals(new byte[]{1, 2}, readAll(message.input()));
+    message.close();
+  }
+
+  /**
+   * Records the acks, nacks and rejects sent to the channel.
+   */
+  private static Channel recording(Channel channel, List<String> settled) {
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+          if (method.getName().matches("basic(Ack|Nack|Reject)")) {
+            StringBuilder call = new StringBuilder(method.getName());
+            for (Object arg : args) {
+              call.append(' ').append(arg);
+            }
+            settled.add(call.toString());
+          }
+          try {
+            return method.invoke(channel, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) >= 0; ) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracingConsumerTest {
+
+  private static final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Before
+  public void before() {
+    mockTracer.reset();
+  }
+
+  @Test
+  public void spanAwareConsumer() throws Exception {
+    MockSpan parent = mockTracer.buildSpan("parent").startManual();
+    AMQP.BasicProperties props = propsWithContext(parent);
+    parent.finish();
+
+    final Span[] received = new Span[1];
+    TracingConsumer consumer = new TracingConsumer(new TestSpanAwareConsumer() {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body, Span span) {
+        assertNull(mockTracer.activeSpan());
+        received[0] = span;
+      }
+    }, mockTracer);
+
+    consumer.handleDelivery("tag", new Envelope(1, false, "", ""), props, new byte[0]);
+
+    assertNotNull(received[0]);
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    MockSpan receive = finishedSpans.get(1);
+    assertEquals("receive", receive.operationName());
+    assertEquals(parent.context().traceId(), receive.context().traceId());
+    assertEquals(parent.context().spanId(), receive.parentId());
+  }
+
+  @Test
+  public void spanAwareConsumerWithoutContext() throws Exception {
+    final Span[] received = new Span[]{mockTracer.buildSpan("dummy").startManual()};
+    TracingConsumer consumer = new TracingConsumer(new TestSpanAwareConsumer() {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body, Span span) {
+        received[0] = span;
+      }
+    }, mockTracer);
+
+    consumer.handleDelivery("tag", new Envelope(1, false, "", ""), new AMQP.BasicProperties(),
+        new byte[0]);
+
+    assertNull(received[0]);
+    assertEquals(0, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void ackTracking() throws Exception {
+    TracingChannel channel = new TracingChannel(stubChannel(), mockTracer);
+    channel.enableAckTracking();
+    MockSpan parent = mockTracer.buildSpan("parent").startManual();
+    AMQP.BasicProperties props = propsWithContext(parent);
+    parent.finish();
+
+    TracingConsumer consumer = new TracingConsumer(new DefaultConsumer(channel), mockTracer,
+        channel, "queue", false);
+    for (int tag = 1; tag <= 5; tag++) {
+      consumer.handleDelivery("tag", new Envelope(tag, false, "", ""), props, new byte[0]);
+    }
+    assertEquals(5, channel.getUnackedCount());
+    assertEquals(1, mockTracer.finishedSpans().size());
+
+    channel.basicAck(2, false);
+    assertEquals(4, channel.getUnackedCount());
+    channel.basicNack(3, true, true);
+    assertEquals(2, channel.getUnackedCount());
+    channel.basicReject(5, false);
+    assertEquals(1, channel.getUnackedCount());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(5, finishedSpans.size());
+    assertEquals("ack", finishedSpans.get(1).logEntries().get(0).fields().get("event"));
+    assertEquals("nack", finishedSpans.get(2).logEntries().get(0).fields().get("event"));
+    assertEquals("reject", finishedSpans.get(4).logEntries().get(0).fields().get("event"));
+  }
+
+  @Test
+  public void receiveBatching() throws Exception {
+    TracingChannel channel = new TracingChannel(stubChannel(), mockTracer);
+    channel.enableReceiveBatching(3, 2, 1, TimeUnit.HOURS);
+    AMQP.BasicProperties[] props = new AMQP.BasicProperties[4];
+    for (int i = 0; i < props.length; i++) {
+      MockSpan parent = mockTracer.buildSpan("parent").startManual();
+      props[i] = propsWithContext(parent);
+      parent.finish();
+    }
+    mockTracer.reset();
+
+    TracingConsumer consumer = new TracingConsumer(new DefaultConsumer(channel), mockTracer,
+        channel, "queue", true);
+    for (int tag = 1; tag <= 4; tag++) {
+      consumer.handleDelivery("tag", new Envelope(tag, false, "", ""), props[tag - 1],
+          new byte[10]);
+    }
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    MockSpan batch = finishedSpans.get(0);
+    assertEquals("receive-batch", batch.operationName());
+    assertEquals(3, batch.tags().get(SpanDecorator.BATCH_SIZE_TAG));
+    assertEquals(30L, batch.tags().get(SpanDecorator.BATCH_BYTES_TAG));
+    assertNotNull(batch.tags().get(SpanDecorator.HANDLER_MAX_TAG));
+    assertEquals(2, batch.references().size());
+
+    channel.receiveBatcher().flush();
+    assertEquals(1, mockTracer.finishedSpans().get(1).tags().get(SpanDecorator.BATCH_SIZE_TAG));
+  }
+
+  @Test
+  public void receiveBatchStartsWithFirstDelivery() throws Exception {
+    TracingChannel channel = new TracingChannel(stubChannel(), mockTracer);
+    channel.enableReceiveBatching(10, 0, 50, TimeUnit.MILLISECONDS);
+    TracingConsumer consumer = new TracingConsumer(new DefaultConsumer(channel), mockTracer,
+        channel, "queue", true);
+
+    // an idle channel does not count against the window of the next batch
+    TimeUnit.MILLISECONDS.sleep(100);
+    long firstDeliveryMicros = System.currentTimeMillis() * 1000;
+    consumer.handleDelivery("tag", new Envelope(1, false, "", ""), null, new byte[1]);
+    consumer.handleDelivery("tag", new Envelope(2, false, "", ""), null, new byte[1]);
+    channel.receiveBatcher().flushIfDue();
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    TimeUnit.MILLISECONDS.sleep(60);
+    channel.receiveBatcher().flushIfDue();
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(2, finishedSpans.get(0).tags().get(SpanDecorator.BATCH_SIZE_TAG));
+    assertTrue(finishedSpans.get(0).startMicros() >= firstDeliveryMicros);
+  }
+
+  @Test
+  public void receiveBatchingRejectsInvalidSettings() throws Exception {
+    TracingChannel channel = new TracingChannel(stubChannel(), mockTracer);
+    try {
+      channel.enableReceiveBatching(10, -1, 1, TimeUnit.SECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      channel.enableReceiveBatching(10, 2, 0, TimeUnit.SECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertNull(channel.receiveBatcher());
+  }
+
+  @Test
+  public void deliverCallback() throws Exception {
+    Consumer[] registered = new Consumer[1];
+    Channel stub = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+          if (method.getName().equals("basicConsume")) {
+            registered[0] = (Consumer) args[args.length - 1];
+            return "tag";
+          }
+          return null;
+        });
+    TracingChannel channel = new TracingChannel(stub, mockTracer);
+    MockSpan parent = mockTracer.buildSpan("parent").startManual();
+    AMQP.BasicProperties props = propsWithContext(parent);
+    parent.finish();
+
+    final Span[] active = new Span[1];
+    String[] cancelled = new String[1];
+    channel.basicConsume("queue", true,
+        (consumerTag, delivery) -> active[0] = mockTracer.activeSpan(),
+        consumerTag -> cancelled[0] = consumerTag);
+    registered[0].handleDelivery("tag", new Envelope(1, false, "", ""), props, new byte[0]);
+    registered[0].handleCancel("tag");
+
+    assertNotNull(active[0]);
+    assertEquals("tag", cancelled[0]);
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    assertEquals("receive", finishedSpans.get(1).operationName());
+    assertEquals(parent.context().spanId(), finishedSpans.get(1).parentId());
+  }
+
+  @Test
+  public void handlerWatchdog() throws Exception {
+    TracingChannel channel = new TracingChannel(stubChannel(), mockTracer);
+    HandlerWatchdog watchdog = new HandlerWatchdog(20, TimeUnit.MILLISECONDS, 4);
+    channel.setHandlerWatchdog(watchdog);
+    MockSpan parent = mockTracer.buildSpan("parent").startManual();
+    AMQP.BasicProperties props = propsWithContext(parent);
+    parent.finish();
+
+    TracingConsumer consumer = new TracingConsumer(new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) {
+        if (envelope.getDeliveryTag() == 1) {
+          for (long start = System.nanoTime();
+              watchdog.getSlowCount() == 0 && System.nanoTime() - start < 5_000_000_000L; ) {
+            sleepUninterruptibly();
+          }
+        }
+      }
+    }, mockTracer, channel, "queue", true);
+    consumer.handleDelivery("tag", new Envelope(1, false, "", ""), props, new byte[0]);
+    consumer.handleDelivery("tag", new Envelope(2, false, "", ""), props, new byte[0]);
+    watchdog.close();
+
+    assertEquals(1, watchdog.getSlowCount());
+    assertEquals(0, watchdog.getInFlightCount());
+    assertTrue(Arrays.stream(watchdog.getLastStackTrace())
+        .anyMatch(element -> element.getMethodName().equals("sleepUninterruptibly")));
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(3, finishedSpans.size());
+    MockSpan slow = finishedSpans.get(1);
+    assertEquals(true, slow.tags().get(SpanDecorator.SLOW_HANDLER_TAG));
+    assertEquals("slow_handler", slow.logEntries().get(0).fields().get("event"));
+    assertNull(finishedSpans.get(2).tags().get(SpanDecorator.SLOW_HANDLER_TAG));
+  }
+
+  @Test
+  public void packedDelivery() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    TracingChannel channel = (TracingChannel) tracingConnection.createChannel();
+    String queue = channel.queueDeclare("packed", false, false, false, null).getQueue();
+    channel.enablePacking(1 << 16, 100, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 5; i++) {
+      channel.basicPublish("", queue, null, new byte[]{(byte) i});
+    }
+    assertEquals(5, channel.getPackedPendingCount());
+    channel.flushPacks();
+    assertEquals(0, channel.getPackedPendingCount());
+    assertEquals(1, channel.messageCount(queue));
+
+    List<MockSpan> sendSpans = mockTracer.finishedSpans();
+    assertEquals(6, sendSpans.size());
+    // the pack is sent before the messages' spans are finished
+    MockSpan pack = sendSpans.get(0);
+    assertEquals(5, pack.tags().get(SpanDecorator.BATCH_SIZE_TAG));
+    assertEquals(5, pack.references().size());
+
+    // the last message is not acked, so the whole pack is requeued
+    List<Byte> received = consumePacked(tracingConnection, queue, 4);
+    assertEquals(Arrays.asList((byte) 0, (byte) 1, (byte) 2, (byte) 3, (byte) 4), received);
+    assertEquals(1, channel.messageCount(queue));
+    List<MockSpan> receiveSpans = mockTracer.finishedSpans().subList(6, 11);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("receive", receiveSpans.get(i).operationName());
+      assertEquals(sendSpans.get(i + 1).context().spanId(), receiveSpans.get(i).parentId());
+    }
+
+    assertEquals(5, consumePacked(tracingConnection, queue, 5).size());
+    assertEquals(0, channel.messageCount(queue));
+    connection.close();
+  }
+
+  @Test
+  public void packingRejectsConfirmAndTx() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    TracingChannel packing = (TracingChannel) tracingConnection.createChannel();
+    packing.enablePacking(1 << 16, 100, 1, TimeUnit.HOURS);
+    TracingChannel confirming = (TracingChannel) tracingConnection.createChannel();
+    confirming.confirmSelect();
+    TracingChannel transactional = (TracingChannel) tracingConnection.createChannel();
+    transactional.txSelect();
+    String queue = packing.queueDeclare("packed", false, false, false, null).getQueue();
+
+    try {
+      packing.confirmSelect();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      packing.txSelect();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    for (TracingChannel channel : Arrays.asList(confirming, transactional)) {
+      try {
+        channel.enablePacking(1 << 16, 100, 1, TimeUnit.HOURS);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    // publishes in confirm and tx mode go out on their own, covered by the confirm or commit
+    confirming.basicPublish("", queue, null, new byte[]{1});
+    confirming.waitForConfirmsOrDie(10_000);
+    transactional.basicPublish("", queue, null, new byte[]{2});
+    assertEquals(1, confirming.messageCount(queue));
+    transactional.txCommit();
+    assertEquals(2, confirming.messageCount(queue));
+    assertEquals(0, packing.getPackedPendingCount());
+    connection.close();
+  }
+
+  @Test
+  public void packsByDeliveryProperties() throws Exception {
+    LoopbackConnection connection = new LoopbackConnection();
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    TracingChannel channel = (TracingChannel) tracingConnection.createChannel();
+    String queue = channel.queueDeclare("packed", false, false, false, null).getQueue();
+    channel.enablePacking(1 << 16, 100, 1, TimeUnit.HOURS);
+    AMQP.BasicProperties persistent = new AMQP.BasicProperties.Builder()
+        .deliveryMode(2).priority(5).expiration("60000").build();
+    channel.basicPublish("", queue, persistent, new byte[]{0});
+    channel.basicPublish("", queue, null, new byte[]{1});
+    channel.basicPublish("", queue, persistent, new byte[]{2});
+    channel.basicPublish("", queue, persistent.builder().priority(1).build(), new byte[]{3});
+    channel.flushPacks();
+    assertEquals(3, channel.messageCount(queue));
+
+    Channel plain = connection.createChannel();
+    GetResponse first = plain.basicGet(queue, true);
+    assertEquals(2, MessagePacker.count(first.getProps()));
+    assertEquals(Integer.valueOf(2), first.getProps().getDeliveryMode());
+    assertEquals(Integer.valueOf(5), first.getProps().getPriority());
+    assertEquals("60000", first.getProps().getExpiration());
+    AMQP.BasicProperties second = plain.basicGet(queue, true).getProps();
+    assertEquals(1, MessagePacker.count(second));
+    assertNull(second.getDeliveryMode());
+    assertNull(second.getPriority());
+    assertNull(second.getExpiration());
+    assertEquals(Integer.valueOf(1), plain.basicGet(queue, true).getProps().getPriority());
+    connection.close();
+  }
+
+  /**
+   * Consumes the messages of one packed delivery on a channel of its own, acking the first ones.
+   */
+  private static List<Byte> consumePacked(TracingConnection connection, String queue, int acks)
+      throws Exception {
+    TracingChannel channel = (TracingChannel) connection.createChannel();
+    List<Byte> received = new CopyOnWriteArrayList<>();
+    CountDownLatch handled = new CountDownLatch(5);
+    channel.basicConsume(queue, false, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+          AMQP.BasicProperties properties, byte[] body) throws IOException {
+        received.add(body[0]);
+        if (received.size() <= acks) {
+          getChannel().basicAck(envelope.getDeliveryTag(), false);
+        }
+      }
+    }, new TracingConsumer.Listener() {
+      // once the "receive" span is finished
+      @Override
+      public void onHandled(long nanos) {
+        handled.countDown();
+      }
+
+      @Override
+      public void onCancelOk() {
+      }
+    });
+    assertTrue(handled.await(10, TimeUnit.SECONDS));
+    channel.close();
+    return received;
+  }
+
+  private static void sleepUninterruptibly() {
+    try {
+      Thread.sleep(5);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static Channel stubChannel() {
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[]{Channel.class}, (proxy, method, args) -> null);
+  }
+
+  static AMQP.BasicProperties propsWithContext(Span span) {
+    Map<String, Object> headers = new HashMap<>();
+    mockTracer.inject(span.context(), Format.Builtin.TEXT_MAP,
+        new HeadersMapInjectAdapter(headers));
+    return new AMQP.BasicProperties.Builder().headers(headers).build();
+  }
+
+  abstract static class TestSpanAwareConsumer implements SpanAwareConsumer {
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+    }
+  }
+}
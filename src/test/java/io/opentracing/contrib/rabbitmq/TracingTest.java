@@ -20,6 +20,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.BuiltinExchangeType;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -31,7 +33,10 @@ import io.opentracing.mock.MockTracer;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.ThreadLocalScopeManager;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -78,8 +83,11 @@ public class TracingTest {
 
   @After
   public void after() throws IOException, TimeoutException {
-    channel.close();
-    connection.close();
+    // tests closing a tracing connection close the connection too
+    if (connection.isOpen()) {
+      channel.close();
+      connection.close();
+    }
   }
 
   @Test
@@ -149,6 +157,143 @@ public class TracingTest {
     assertNull(mockTracer.activeSpan());
   }
 
+  @Test
+  public void declareTopology() throws Exception {
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    Topology topology = new Topology()
+        .exchange("topologyExchange", BuiltinExchangeType.DIRECT, true)
+        .queue("topologyQueue", true)
+        .bind("topologyQueue", "topologyExchange", "key");
+    tracingConnection.declare(topology);
+    tracingConnection.declare(topology);
+
+    channel.basicPublish("topologyExchange", "key", null, "Hello, world!".getBytes());
+    assertNotNull(channel.basicGet("topologyQueue", true));
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(4, finishedSpans.size());
+    assertEquals("declare", finishedSpans.get(0).operationName());
+    assertEquals(3, finishedSpans.get(0).tags().get(SpanDecorator.DECLARED_TAG));
+    assertEquals(0, finishedSpans.get(1).tags().get(SpanDecorator.DECLARED_TAG));
+    assertEquals(3, finishedSpans.get(1).tags().get(SpanDecorator.DECLARE_SKIPPED_TAG));
+  }
+
+  @Test(expected = IOException.class)
+  public void declareTopologyFails() throws Exception {
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    tracingConnection.declare(new Topology()
+        .queue("topologyFailsQueue", true)
+        .bind("topologyFailsQueue", "missingExchange", "key"));
+  }
+
+  @Test
+  public void sampleQueues() throws Exception {
+    try (TracingConnection tracingConnection = new TracingConnection(connection, mockTracer)) {
+      Channel tracingChannel = tracingConnection.createChannel();
+      tracingChannel.queueDeclare("sampledQueue", false, false, false, null);
+      for (int i = 0; i < 3; i++) {
+        tracingChannel.basicPublish("", "sampledQueue", null, "Hello, world!".getBytes());
+      }
+
+      QueueSampler sampler = tracingConnection.enableQueueSampling(50, TimeUnit.MILLISECONDS);
+      sampler.register("sampledQueue");
+      sampler.register("missingQueue");
+      QueueStats stats = null;
+      for (int tries = 100; tries > 0 && stats == null; tries--) {
+        TimeUnit.MILLISECONDS.sleep(20);
+        stats = sampler.getStats("sampledQueue");
+      }
+
+      assertNotNull(stats);
+      assertEquals(3, stats.getMessageCount());
+      assertEquals(0, stats.getConsumerCount());
+      assertEquals(-1, stats.getDrainTime(TimeUnit.SECONDS));
+      assertEquals(3, tracingChannel.messageCount("sampledQueue"));
+      assertNull(sampler.getStats("missingQueue"));
+    }
+  }
+
+  @Test
+  public void roundTripProbe() throws Exception {
+    try (TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+        RoundTripProbe probe = tracingConnection.enableRoundTripProbe(20,
+            TimeUnit.MILLISECONDS)) {
+      probe.setSlowThreshold(0, TimeUnit.NANOSECONDS);
+      for (int tries = 100; tries > 0 && probe.getHistogram().getCount() < 3; tries--) {
+        TimeUnit.MILLISECONDS.sleep(20);
+      }
+
+      LatencyHistogram histogram = probe.getHistogram();
+      assertTrue(histogram.getCount() >= 3);
+      assertTrue(probe.getLastRoundTrip(TimeUnit.NANOSECONDS) > 0);
+      assertTrue(histogram.getPercentile(50, TimeUnit.MICROSECONDS)
+          <= histogram.getMax(TimeUnit.MICROSECONDS));
+      ConnectionEvent event = probe.getEvents().get(0);
+      assertEquals(ConnectionEvent.Type.SLOW_ROUND_TRIP, event.getType());
+      assertTrue(event.getRoundTrip(TimeUnit.NANOSECONDS) > 0);
+    }
+  }
+
+  @Test
+  public void transactionalBatchPublisher() throws Exception {
+    TracingConnection tracingConnection = new TracingConnection(connection, mockTracer);
+    channel.queueDeclare("transactionalQueue", false, false, false, null);
+    TransactionalBatchPublisher publisher = new TransactionalBatchPublisher(tracingConnection, 10,
+        50, 1000, TimeUnit.MILLISECONDS);
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(publisher.publish("", "transactionalQueue", null, "Hello, world!".getBytes()));
+    }
+    for (CompletableFuture<Void> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    publisher.close();
+
+    assertEquals(5, channel.messageCount("transactionalQueue"));
+    int sent = 0;
+    int referenced = 0;
+    for (MockSpan span : mockTracer.finishedSpans()) {
+      if (span.operationName().equals("send")) {
+        sent++;
+      } else {
+        assertEquals("commit", span.operationName());
+        assertEquals(span.references().size(), span.tags().get(SpanDecorator.BATCH_SIZE_TAG));
+        referenced += span.references().size();
+      }
+    }
+    assertEquals(5, sent);
+    assertEquals(5, referenced);
+  }
+
+  @Test
+  public void latencyAwareConnect() throws Exception {
+    Address broker = new Address("localhost", embeddedAMQPBroker.getBrokerPort());
+    LatencyAwareAddressResolver resolver = new LatencyAwareAddressResolver(
+        Collections.singletonList(broker));
+    resolver.probeAll();
+    assertTrue(resolver.getNodeStats().get(0).getRoundTripLatency(TimeUnit.MICROSECONDS) >= 0);
+
+    TracingConnectionFactory factory = new TracingConnectionFactory(mockTracer);
+    factory.setUsername("guest");
+    factory.setPassword("guest");
+    factory.setVirtualHost("default");
+    Connection tracingConnection = factory.newConnection(resolver);
+    assertEquals(1, resolver.getNodeStats().get(0).getConnections());
+    tracingConnection.close();
+    // shutdown listeners run on the connection's own thread, possibly after close() returned
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (resolver.getNodeStats().get(0).getConnections() > 0
+        && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertEquals(0, resolver.getNodeStats().get(0).getConnections());
+
+    MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals("connect", span.operationName());
+    assertEquals(broker.toString(), span.tags().get(SpanDecorator.NODE_TAG));
+    assertEquals(1, span.tags().get(SpanDecorator.HEALTHY_NODES_TAG));
+  }
+
   private void checkSpans(List<MockSpan> mockSpans) {
     for (MockSpan mockSpan : mockSpans) {
       assertTrue(mockSpan.tags().get(Tags.SPAN_KIND.getKey()).equals(Tags.SPAN_KIND_CONSUMER)
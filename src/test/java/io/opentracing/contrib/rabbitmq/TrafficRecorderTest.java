@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.opentracing.mock.MockTracer;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrafficRecorderTest {
+
+  private final MockTracer mockTracer = new MockTracer(MockTracer.Propagator.TEXT_MAP);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recordsAndReplays() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("traffic.bin");
+    TrafficRecorder recorder = TrafficRecorder.open(file, true);
+    TracingChannel channel = new TracingChannel(TracingConsumerTest.stubChannel(), mockTracer);
+    channel.setTrafficRecorder(recorder);
+
+    Map<String, Object> headers = new HashMap<>();
+    headers.put("tenant", "acme");
+    headers.put("attempt", 3);
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().headers(headers).build();
+    channel.basicPublish("orders", "created", props, "first".getBytes());
+    channel.basicPublish("orders", "deleted", null, "second".getBytes());
+    new TracingConsumer(new DefaultConsumer(channel), mockTracer, channel, "queue", true)
+        .handleDelivery("tag", new Envelope(1, false, "orders", "created"), props,
+            "first".getBytes());
+    recorder.close();
+
+    try (TrafficReader reader = TrafficReader.open(file)) {
+      assertTrue(reader.isBodiesRecorded());
+      TrafficRecord first = reader.next();
+      assertTrue(first.isPublish());
+      assertEquals("orders", first.getExchange());
+      assertEquals("created", first.getRoutingKey());
+      assertEquals("xxxx", first.getHeaders().get("tenant"));
+      assertEquals(0, first.getHeaders().get("attempt"));
+      assertArrayEquals("first".getBytes(), first.getBody());
+
+      TrafficRecord second = reader.next();
+      assertNull(second.getHeaders());
+      assertEquals(6, second.getBodySize());
+      assertTrue(second.getTimestampMicros() >= first.getTimestampMicros());
+
+      assertFalse(reader.next().isPublish());
+      assertNull(reader.next());
+    }
+
+    List<String> published = new ArrayList<>();
+    Channel counting = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+        new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+          if (method.getName().equals("basicPublish")) {
+            published.add(args[1] + ":" + ((byte[]) args[args.length - 1]).length);
+          }
+          return null;
+        });
+    TrafficReplayer replayer = new TrafficReplayer(new TracingChannel(counting, mockTracer), 0);
+    replayer.replay(file);
+    assertEquals(2, replayer.getPublishCount());
+    assertEquals(1, replayer.getDeliveryCount());
+    assertEquals("created:5", published.get(0));
+    assertEquals("deleted:6", published.get(1));
+  }
+}
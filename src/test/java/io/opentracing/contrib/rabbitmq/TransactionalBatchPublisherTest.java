@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.rabbitmq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.rabbitmq.client.Channel;
+import io.opentracing.Scope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TransactionalBatchPublisherTest {
+
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  @Test
+  public void sendSpansFinishWithCommit() throws Exception {
+    TracingConnection connection = new TracingConnection(new LoopbackConnection(), mockTracer);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare("tx", false, false, false, null);
+    TransactionalBatchPublisher publisher = new TransactionalBatchPublisher(connection, 3, 1,
+        1, TimeUnit.SECONDS);
+
+    MockSpan parent = mockTracer.buildSpan("parent").start();
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    try (Scope ignored = mockTracer.scopeManager().activate(parent, false)) {
+      for (int i = 0; i < 3; i++) {
+        futures.add(publisher.publish("", "tx", null, new byte[0]));
+      }
+    }
+    for (CompletableFuture<Void> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    publisher.close();
+
+    // send spans finish after the commit spans of their transactions
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals("commit", spans.get(0).operationName());
+    int sent = 0;
+    for (MockSpan span : spans) {
+      if (span.operationName().equals("send")) {
+        sent++;
+        assertEquals(parent.context().spanId(), span.parentId());
+        assertNull(span.tags().get("error"));
+      }
+    }
+    assertEquals(3, sent);
+    assertEquals(3, channel.messageCount("tx"));
+    connection.close();
+  }
+
+  @Test
+  public void sendSpansAreErrorsOnRollback() throws Exception {
+    LoopbackConnection loopback = new LoopbackConnection() {
+      @Override
+      public Channel createChannel() {
+        Channel channel = super.createChannel();
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+            new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+              if (method.getName().equals("txCommit")) {
+                throw new IOException("commit failed");
+              }
+              try {
+                return method.invoke(channel, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+      }
+    };
+    TracingConnection connection = new TracingConnection(loopback, mockTracer);
+    Channel channel = connection.createChannel();
+    channel.queueDeclare("tx", false, false, false, null);
+    TransactionalBatchPublisher publisher = new TransactionalBatchPublisher(connection, 2, 1,
+        1, TimeUnit.SECONDS);
+
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      futures.add(publisher.publish("", "tx", null, new byte[0]));
+    }
+    for (CompletableFuture<Void> future : futures) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof IOException);
+      }
+    }
+    publisher.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.stream().filter(span -> span.operationName().equals("send")).count());
+    for (MockSpan span : spans) {
+      assertEquals(Boolean.TRUE, span.tags().get("error"));
+    }
+    assertEquals(0, channel.messageCount("tx"));
+    connection.close();
+  }
+}